@@ -0,0 +1,111 @@
+package ru.baby_benz.kontur.intern.chartographer.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.util.unit.DataSize;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.configuration.LockProperties;
+import ru.baby_benz.kontur.intern.chartographer.service.*;
+import ru.baby_benz.kontur.intern.chartographer.service.impl.*;
+import ru.baby_benz.kontur.intern.chartographer.util.BmpHeader;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+
+/**
+ * Wires the services the way the application context does, without Spring, on top of a temporary folder.
+ */
+final class BenchmarkChartas {
+    static final int CHARTA_MAX_WIDTH = 20000;
+    static final int CHARTA_MAX_HEIGHT = 50000;
+    static final int FRAGMENT_MAX_SIDE = 5000;
+    static final int REGIONS_MAX_COUNT = 64;
+    static final long REGIONS_MAX_AREA = 25_000_000L;
+    static final int TILE_SIZE = 256;
+    static final int PYRAMID_MAX_LEVEL = 8;
+    static final int PARALLELISM_THRESHOLD = 65536;
+
+    private BenchmarkChartas() {
+    }
+
+    static ImageProperties createProperties(Path folder, String storageFormat, long tileCacheMegabytes) {
+        return new ImageProperties(
+                "bmp",
+                folder.toString(),
+                new ImageProperties.Charta(new ImageProperties.Charta.MaxDimensions(CHARTA_MAX_WIDTH, CHARTA_MAX_HEIGHT)),
+                new ImageProperties.Fragment(
+                        new ImageProperties.Fragment.MaxDimensions(FRAGMENT_MAX_SIDE, FRAGMENT_MAX_SIDE),
+                        new ImageProperties.Fragment.MaxRegions(REGIONS_MAX_COUNT, REGIONS_MAX_AREA)
+                ),
+                new ImageProperties.Storage(storageFormat, TILE_SIZE, "lz4", null),
+                // The write-back flusher isn't started outside of the application context
+                new ImageProperties.WriteBack(DataSize.ofBytes(0), Duration.ofSeconds(2)),
+                new ImageProperties.TileCache(DataSize.ofMegabytes(tileCacheMegabytes), "lru"),
+                new ImageProperties.Pyramid(PYRAMID_MAX_LEVEL, PARALLELISM_THRESHOLD),
+                // Neither is the checkpointer, the journal would grow for the whole run
+                new ImageProperties.Journal(false, Duration.ofSeconds(30))
+        );
+    }
+
+    /**
+     * The catalog is opened and closed by the caller, as the application context would do it
+     */
+    static ChartasService createService(ImageProperties imageProperties, ChartaCatalog chartaCatalog) {
+        String storageFormat = imageProperties.getStorage().getFormat();
+        ChartaVolumes chartaVolumes = new DefaultChartaVolumes(imageProperties);
+        ChartaStorage chartaStorage = storageFormat.equals("tiled")
+                ? new TiledChartaStorage(imageProperties, chartaVolumes)
+                : new BmpChartaStorage(imageProperties, chartaVolumes);
+        LockerService lockerService = new StripedLockerService(new LockProperties("striped", TILE_SIZE), imageProperties);
+        WriteBackService writeBackService = new DefaultWriteBackService(imageProperties, lockerService, chartaStorage);
+        IOService ioService = new DefaultIOService(
+                imageProperties,
+                lockerService,
+                chartaStorage,
+                chartaCatalog,
+                writeBackService,
+                new DefaultTileCacheService(imageProperties),
+                new DefaultJournalService(imageProperties, writeBackService, chartaStorage),
+                new DefaultChartaVersionService(new LockProperties("striped", TILE_SIZE), imageProperties),
+                new SimpleMeterRegistry()
+        );
+        return new DefaultChartasService(imageProperties, ioService);
+    }
+
+    /**
+     * @param dimensions dimensions in the {@code <width>x<height>} form
+     */
+    static Dimension parseDimensions(String dimensions) {
+        String[] sides = dimensions.split("x");
+        return new Dimension(Integer.parseInt(sides[0]), Integer.parseInt(sides[1]));
+    }
+
+    /**
+     * @return 24-bit BMP image filled with a gradient, so that no row is all black
+     */
+    static byte[] createFragment(Dimension dimensions) {
+        BmpHeader header = BmpHeader.of(dimensions.width, dimensions.height);
+        ByteBuffer image = ByteBuffer.allocate((int) header.getFileSize());
+        image.put(header.toByteBuffer());
+
+        for (int row = 0; row < dimensions.height; row++) {
+            for (int column = 0; column < dimensions.width; column++) {
+                image.put((byte) column).put((byte) row).put((byte) (column + row));
+            }
+            image.position(image.position() + header.getRowSize() - dimensions.width * BmpHeader.BYTES_PER_PIXEL);
+        }
+
+        return image.array();
+    }
+
+    static void deleteFolder(Path folder) throws IOException {
+        try (var files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ru.baby_benz.kontur.intern.chartographer.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartasService;
+import ru.baby_benz.kontur.intern.chartographer.service.impl.DefaultChartaCatalog;
+
+import java.awt.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CreateChartaBenchmark {
+    @Param({"1000x1000", "20000x50000"})
+    private String chartaSize;
+    @Param({"bmp", "tiled"})
+    private String storage;
+
+    private Path folder;
+    private DefaultChartaCatalog chartaCatalog;
+    private ChartasService chartasService;
+    private Dimension chartaDimensions;
+    private final Queue<String> createdIds = new ConcurrentLinkedQueue<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("chartas-benchmark");
+        ImageProperties imageProperties = BenchmarkChartas.createProperties(folder, storage, 0);
+        chartaCatalog = new DefaultChartaCatalog(imageProperties);
+        chartaCatalog.open();
+        chartasService = BenchmarkChartas.createService(imageProperties, chartaCatalog);
+        chartaDimensions = BenchmarkChartas.parseDimensions(chartaSize);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteCreatedChartas() {
+        for (String id = createdIds.poll(); id != null; id = createdIds.poll()) {
+            chartasService.deleteCharta(id);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        chartaCatalog.close();
+        BenchmarkChartas.deleteFolder(folder);
+    }
+
+    @Benchmark
+    public String createCharta() {
+        String id = chartasService.createCharta(chartaDimensions.width, chartaDimensions.height);
+        createdIds.add(id);
+        return id;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String createChartaConcurrently() {
+        return createCharta();
+    }
+}
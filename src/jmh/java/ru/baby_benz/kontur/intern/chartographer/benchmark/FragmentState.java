@@ -0,0 +1,99 @@
+package ru.baby_benz.kontur.intern.chartographer.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.io.ByteArrayResource;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartasService;
+import ru.baby_benz.kontur.intern.chartographer.service.impl.DefaultChartaCatalog;
+
+import java.awt.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Charta shared by all threads of a fragment benchmark and the matrix of sizes and placements.
+ * <p>
+ * {@code inside} fragments of different threads are stacked one under another, so that concurrent
+ * threads work on different rows while the charta is tall enough. {@code edge} fragments of all threads
+ * hang over the bottom right corner of the charta, half of them lying outside it.
+ */
+@State(Scope.Benchmark)
+public class FragmentState {
+    private static final int MAX_THREADS = 4;
+
+    @Param({"1000x1000", "20000x50000"})
+    private String chartaSize;
+    @Param({"100x100", "1000x1000", "5000x5000"})
+    private String fragmentSize;
+    @Param({"inside", "edge"})
+    private String placement;
+    @Param({"bmp", "tiled"})
+    private String storage;
+    @Param({"0"})
+    private long tileCacheMegabytes;
+
+    private Path folder;
+    private DefaultChartaCatalog chartaCatalog;
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    ChartasService chartasService;
+    String id;
+    Dimension chartaDimensions;
+    Dimension fragmentDimensions;
+    byte[] fragment;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("chartas-benchmark");
+        ImageProperties imageProperties = BenchmarkChartas.createProperties(folder, storage, tileCacheMegabytes);
+        chartaCatalog = new DefaultChartaCatalog(imageProperties);
+        chartaCatalog.open();
+        chartasService = BenchmarkChartas.createService(imageProperties, chartaCatalog);
+        chartaDimensions = BenchmarkChartas.parseDimensions(chartaSize);
+        fragmentDimensions = BenchmarkChartas.parseDimensions(fragmentSize);
+        fragment = BenchmarkChartas.createFragment(fragmentDimensions);
+        id = chartasService.createCharta(chartaDimensions.width, chartaDimensions.height);
+        fillPositions();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        chartasService.deleteCharta(id);
+        chartaCatalog.close();
+        BenchmarkChartas.deleteFolder(folder);
+    }
+
+    /**
+     * Writes the fragment at the positions of the first threads, so that reads return data rather than holes
+     */
+    private void fillPositions() {
+        int positionCount = placement.equals("edge") ? 1 : MAX_THREADS;
+        for (int i = 0; i < positionCount; i++) {
+            Point position = nextThreadPosition();
+            chartasService.putFragment(id, position.x, position.y, fragmentDimensions.width,
+                    fragmentDimensions.height, new ByteArrayResource(fragment));
+        }
+        threadCount.set(0);
+    }
+
+    Point nextThreadPosition() {
+        if (placement.equals("edge")) {
+            return new Point(chartaDimensions.width - fragmentDimensions.width / 2,
+                    chartaDimensions.height - fragmentDimensions.height / 2);
+        }
+        int rowCount = Math.max(1, chartaDimensions.height / fragmentDimensions.height);
+        return new Point(0, threadCount.getAndIncrement() % rowCount * fragmentDimensions.height);
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadPosition {
+        Point position;
+
+        @Setup(Level.Trial)
+        public void setUp(FragmentState fragmentState) {
+            position = fragmentState.nextThreadPosition();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package ru.baby_benz.kontur.intern.chartographer.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetFragmentBenchmark {
+    @Benchmark
+    public void getFragment(FragmentState state, FragmentState.ThreadPosition thread) {
+        get(state, thread);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void getFragmentConcurrently(FragmentState state, FragmentState.ThreadPosition thread) {
+        get(state, thread);
+    }
+
+    private void get(FragmentState state, FragmentState.ThreadPosition thread) {
+        state.chartasService.getFragment(state.id, thread.position.x, thread.position.y,
+                state.fragmentDimensions.width, state.fragmentDimensions.height, OutputStream.nullOutputStream());
+    }
+}
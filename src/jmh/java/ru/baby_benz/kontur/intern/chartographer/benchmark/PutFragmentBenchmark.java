@@ -0,0 +1,30 @@
+package ru.baby_benz.kontur.intern.chartographer.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.io.ByteArrayResource;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PutFragmentBenchmark {
+    @Benchmark
+    public void putFragment(FragmentState state, FragmentState.ThreadPosition thread) {
+        put(state, thread);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void putFragmentConcurrently(FragmentState state, FragmentState.ThreadPosition thread) {
+        put(state, thread);
+    }
+
+    private void put(FragmentState state, FragmentState.ThreadPosition thread) {
+        state.chartasService.putFragment(state.id, thread.position.x, thread.position.y,
+                state.fragmentDimensions.width, state.fragmentDimensions.height,
+                new ByteArrayResource(state.fragment));
+    }
+}
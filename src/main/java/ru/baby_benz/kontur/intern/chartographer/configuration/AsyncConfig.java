@@ -0,0 +1,35 @@
+package ru.baby_benz.kontur.intern.chartographer.configuration;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Requests to chartas are served on a bounded pool of threads, so the threads of the web server are released
+ * while the requests wait for locks and disk. Requests beyond the capacity of the pool are rejected.
+ */
+@RequiredArgsConstructor
+@Configuration
+public class AsyncConfig implements WebMvcConfigurer {
+    private final AsyncProperties asyncProperties;
+
+    @Bean
+    public ThreadPoolTaskExecutor chartasExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(asyncProperties.getPoolSize());
+        executor.setMaxPoolSize(asyncProperties.getPoolSize());
+        executor.setQueueCapacity(asyncProperties.getQueueCapacity());
+        executor.setThreadNamePrefix("chartas-");
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        return executor;
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setDefaultTimeout(asyncProperties.getTimeout().toMillis());
+        configurer.setTaskExecutor(chartasExecutor());
+    }
+}
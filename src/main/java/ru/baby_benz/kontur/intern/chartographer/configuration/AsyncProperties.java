@@ -0,0 +1,19 @@
+package ru.baby_benz.kontur.intern.chartographer.configuration;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+
+import java.time.Duration;
+
+@Getter
+@RequiredArgsConstructor
+@ConfigurationProperties(prefix = "service.http.async")
+@ConstructorBinding
+public class AsyncProperties {
+    private final int poolSize;
+    private final int queueCapacity;
+    private final Duration timeout;
+    private final int writeQueueDepth;
+}
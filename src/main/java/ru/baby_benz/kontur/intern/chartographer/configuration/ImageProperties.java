@@ -4,6 +4,10 @@ import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.ConstructorBinding;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.List;
 
 @Getter
 @RequiredArgsConstructor
@@ -14,6 +18,11 @@ public class ImageProperties {
     private final String parentPath;
     private final Charta charta;
     private final Fragment fragment;
+    private final Storage storage;
+    private final WriteBack writeBack;
+    private final TileCache tileCache;
+    private final Pyramid pyramid;
+    private final Journal journal;
 
     @Getter
     @RequiredArgsConstructor
@@ -32,6 +41,7 @@ public class ImageProperties {
     @RequiredArgsConstructor
     public static class Fragment {
         private final MaxDimensions maxDimensions;
+        private final MaxRegions maxRegions;
 
         @Getter
         @RequiredArgsConstructor
@@ -39,5 +49,53 @@ public class ImageProperties {
             private final int width;
             private final int height;
         }
+
+        // Limits of the regions read at once
+        @Getter
+        @RequiredArgsConstructor
+        public static class MaxRegions {
+            private final int count;
+            // Total pixels of the regions
+            private final long area;
+        }
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class Storage {
+        private final String format;
+        private final int tileSize;
+        // Codec of the tiles of new tiled chartas: none, rle, deflate or lz4
+        private final String codec;
+        // Directories of the volumes to spread chartas over, the parent path is used if there are none
+        private final List<String> roots;
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class WriteBack {
+        private final DataSize memoryBudget;
+        private final Duration flushInterval;
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class TileCache {
+        private final DataSize capacity;
+        private final String evictionPolicy;
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class Pyramid {
+        private final int maxLevel;
+        private final int parallelismThreshold;
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class Journal {
+        private final boolean enabled;
+        private final Duration checkpointInterval;
     }
 }
@@ -0,0 +1,15 @@
+package ru.baby_benz.kontur.intern.chartographer.configuration;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+
+@Getter
+@RequiredArgsConstructor
+@ConfigurationProperties(prefix = "service.lock")
+@ConstructorBinding
+public class LockProperties {
+    private final String type;
+    private final int bandHeight;
+}
@@ -0,0 +1,36 @@
+package ru.baby_benz.kontur.intern.chartographer.configuration;
+
+import io.micrometer.core.aop.TimedAspect;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import ru.baby_benz.kontur.intern.chartographer.service.TileCacheService;
+
+/**
+ * Meters of the chartas operations, exposed by Actuator in the Prometheus format.
+ * Methods of the services annotated with {@link io.micrometer.core.annotation.Timed} are timed by their class
+ * and method, the tile cache is measured by its own counters of hits and misses.
+ */
+@Configuration
+public class MetricsConfig {
+    @Bean
+    public TimedAspect timedAspect(MeterRegistry meterRegistry) {
+        return new TimedAspect(meterRegistry);
+    }
+
+    @Bean
+    public MeterBinder tileCacheMetrics(TileCacheService tileCacheService) {
+        return meterRegistry -> {
+            FunctionCounter.builder("chartas.tile.cache.requests", tileCacheService, TileCacheService::getHitCount)
+                    .tag("result", "hit")
+                    .description("Tiles found in the tile cache")
+                    .register(meterRegistry);
+            FunctionCounter.builder("chartas.tile.cache.requests", tileCacheService, TileCacheService::getMissCount)
+                    .tag("result", "miss")
+                    .description("Tiles loaded from the storage on a miss of the tile cache")
+                    .register(meterRegistry);
+        };
+    }
+}
@@ -2,43 +2,123 @@ package ru.baby_benz.kontur.intern.chartographer.controller;
 
 import lombok.RequiredArgsConstructor;
 import org.springframework.core.io.InputStreamResource;
-import org.springframework.core.io.Resource;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
 import ru.baby_benz.kontur.intern.chartographer.service.ChartasService;
+import ru.baby_benz.kontur.intern.chartographer.service.WriteQueueService;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 @RequiredArgsConstructor
 @RestController
 @RequestMapping("/chartas")
 public class ChartasController {
     private final ChartasService chartasService;
+    private final Executor chartasExecutor;
+    private final WriteQueueService writeQueueService;
 
     @ResponseStatus(HttpStatus.CREATED)
     @PostMapping
-    public String createCharta(@RequestParam int width, @RequestParam int height) {
-        return chartasService.createCharta(width, height);
+    public CompletableFuture<String> createCharta(@RequestParam int width, @RequestParam int height) {
+        return CompletableFuture.supplyAsync(() -> chartasService.createCharta(width, height), chartasExecutor);
     }
 
     @ResponseStatus(HttpStatus.OK)
     @PostMapping(value = "/{id}/", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
-    public void putFragment(@RequestBody InputStreamResource fragmentData, @PathVariable("id") String chartaId,
-                                    @RequestParam int x, @RequestParam int y,
-                                    @RequestParam int width, @RequestParam int height) {
-        chartasService.putFragment(chartaId, x, y, width, height, fragmentData);
+    public DeferredResult<Void> putFragment(@RequestBody InputStreamResource fragmentData,
+                                            @PathVariable("id") String chartaId,
+                                            @RequestParam int x, @RequestParam int y,
+                                            @RequestParam int width, @RequestParam int height) {
+        return toDeferredResult(writeQueueService.submit(
+                chartaId, y, (int) Math.min((long) y + height, Integer.MAX_VALUE),
+                () -> chartasService.putFragment(chartaId, x, y, width, height, fragmentData)
+        ));
     }
 
     @ResponseStatus(HttpStatus.OK)
+    @PostMapping(value = "/{id}/batch", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public DeferredResult<Void> putFragments(@RequestBody InputStreamResource fragmentsData,
+                                             @PathVariable("id") String chartaId) {
+        return toDeferredResult(
+                writeQueueService.submit(chartaId, () -> chartasService.putFragments(chartaId, fragmentsData))
+        );
+    }
+
+    /**
+     * Answers with 304 if the client has the current version of the fragment, which is both the entity tag
+     * and the last modification time of the fragment. The version is looked up on the executor too, since it waits
+     * for the charta lock. The status isn't declared, since it would replace 304
+     */
     @GetMapping(value = "/{id}/", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
-    public Resource getFragment(@PathVariable("id") String chartaId,
-                              @RequestParam int x, @RequestParam int y,
-                              @RequestParam int width, @RequestParam int height) {
-        return chartasService.getFragment(chartaId, x, y, width, height);
+    public CompletableFuture<Void> getFragment(@PathVariable("id") String chartaId,
+                                               @RequestParam int x, @RequestParam int y,
+                                               @RequestParam int width, @RequestParam int height,
+                                               @RequestParam(defaultValue = "0") int level,
+                                               ServletWebRequest request,
+                                               HttpServletResponse response) throws IOException {
+        OutputStream output = response.getOutputStream();
+        return CompletableFuture.runAsync(() -> {
+            long version = chartasService.getFragmentVersion(chartaId, level, x, y, width, height);
+            if (!request.checkNotModified("\"" + Long.toHexString(version) + "\"", version)) {
+                response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+                chartasService.getFragment(chartaId, level, x, y, width, height, output);
+            }
+        }, chartasExecutor);
+    }
+
+    @ResponseStatus(HttpStatus.OK)
+    @GetMapping(value = "/{id}/batch", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public CompletableFuture<Void> getFragments(@PathVariable("id") String chartaId,
+                                                @RequestParam int[] regions,
+                                                @RequestParam(defaultValue = "0") int level,
+                                                HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        OutputStream output = response.getOutputStream();
+        return CompletableFuture.runAsync(
+                () -> chartasService.getFragments(chartaId, level, regions, output),
+                chartasExecutor
+        );
     }
 
     @ResponseStatus(HttpStatus.OK)
     @DeleteMapping(value = "/{id}/")
-    public void deleteCharta(@PathVariable("id") String chartaId) {
-        chartasService.deleteCharta(chartaId);
+    public DeferredResult<Void> deleteCharta(@PathVariable("id") String chartaId) {
+        return toDeferredResult(writeQueueService.submit(chartaId, () -> chartasService.deleteCharta(chartaId)));
+    }
+
+    /**
+     * Drops the queued change when the request times out, so a change the client is told has failed is never
+     * applied afterwards. A change which has already started is awaited instead and answered with its outcome
+     */
+    private static DeferredResult<Void> toDeferredResult(CompletableFuture<Void> change) {
+        DeferredResult<Void> result = new DeferredResult<>();
+        result.onTimeout(() -> {
+            if (!change.cancel(false)) {
+                setOutcome(result, change);
+            }
+        });
+        change.whenComplete((ignored, e) -> {
+            if (!change.isCancelled()) {
+                setOutcome(result, change);
+            }
+        });
+        return result;
+    }
+
+    private static void setOutcome(DeferredResult<Void> result, CompletableFuture<Void> change) {
+        try {
+            change.join();
+            result.setResult(null);
+        } catch (CompletionException e) {
+            result.setErrorResult(e.getCause());
+        }
     }
 }
@@ -1,14 +1,18 @@
 package ru.baby_benz.kontur.intern.chartographer.controller.exception;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.lang.Nullable;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.context.request.RequestAttributes;
 import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.AsyncRequestTimeoutException;
 import org.springframework.web.util.WebUtils;
 
 import java.util.Collections;
@@ -18,6 +22,8 @@ import java.util.List;
 public class GlobalExceptionHandler {
     @Value("${service.http.unavailable.retry-after}")
     private String retryAfter;
+    @Autowired
+    private MeterRegistry meterRegistry;
 
     @ExceptionHandler
     public final ResponseEntity<ApiError> handleException(Exception ex, WebRequest request) {
@@ -45,6 +51,22 @@ public class GlobalExceptionHandler {
         return handleExceptionInternal(ex, new ApiError(errors), headers, HttpStatus.SERVICE_UNAVAILABLE, request);
     }
 
+    @ExceptionHandler(WriteQueueIsFullException.class)
+    protected ResponseEntity<ApiError> handleWriteQueueIsFullException(WriteQueueIsFullException ex, WebRequest request) {
+        List<String> errors = Collections.singletonList(ex.getMessage());
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.RETRY_AFTER, retryAfter);
+        return handleExceptionInternal(ex, new ApiError(errors), headers, HttpStatus.SERVICE_UNAVAILABLE, request);
+    }
+
+    @ExceptionHandler({TaskRejectedException.class, AsyncRequestTimeoutException.class})
+    protected ResponseEntity<ApiError> handleServiceIsBusyException(Exception ex, WebRequest request) {
+        List<String> errors = Collections.singletonList("Service is busy. Please, retry later");
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.RETRY_AFTER, retryAfter);
+        return handleExceptionInternal(ex, new ApiError(errors), headers, HttpStatus.SERVICE_UNAVAILABLE, request);
+    }
+
     @ExceptionHandler(ServiceIsUnavailableException.class)
     protected ResponseEntity<ApiError> handleServiceIsUnavailableException(ServiceIsUnavailableException ex, WebRequest request) {
         List<String> errors = Collections.singletonList(ex.getMessage());
@@ -63,6 +85,24 @@ public class GlobalExceptionHandler {
         return handleExceptionInternal(ex, new ApiError(errors), new HttpHeaders(), HttpStatus.BAD_REQUEST, request);
     }
 
+    @ExceptionHandler(InvalidFragmentDataException.class)
+    protected ResponseEntity<ApiError> handleInvalidFragmentDataException(InvalidFragmentDataException ex, WebRequest request) {
+        List<String> errors = Collections.singletonList(ex.getMessage());
+        return handleExceptionInternal(ex, new ApiError(errors), new HttpHeaders(), HttpStatus.BAD_REQUEST, request);
+    }
+
+    @ExceptionHandler(InvalidRegionsException.class)
+    protected ResponseEntity<ApiError> handleInvalidRegionsException(InvalidRegionsException ex, WebRequest request) {
+        List<String> errors = Collections.singletonList(ex.getMessage());
+        return handleExceptionInternal(ex, new ApiError(errors), new HttpHeaders(), HttpStatus.BAD_REQUEST, request);
+    }
+
+    @ExceptionHandler(LevelNotFoundException.class)
+    protected ResponseEntity<ApiError> handleLevelNotFoundException(LevelNotFoundException ex, WebRequest request) {
+        List<String> errors = Collections.singletonList(ex.getMessage());
+        return handleExceptionInternal(ex, new ApiError(errors), new HttpHeaders(), HttpStatus.BAD_REQUEST, request);
+    }
+
     @ExceptionHandler(TooBigChartaException.class)
     protected ResponseEntity<ApiError> handleTooBigChartaException(TooBigChartaException ex, WebRequest request) {
         List<String> errors = Collections.singletonList(ex.getMessage());
@@ -84,6 +124,9 @@ public class GlobalExceptionHandler {
     protected ResponseEntity<ApiError> handleExceptionInternal(Exception ex, @Nullable ApiError body,
                                                                HttpHeaders headers, HttpStatus status,
                                                                WebRequest request) {
+        meterRegistry.counter("chartas.errors", "exception", ex.getClass().getSimpleName(),
+                "status", String.valueOf(status.value())).increment();
+
         if (HttpStatus.INTERNAL_SERVER_ERROR.equals(status)) {
             request.setAttribute(WebUtils.ERROR_EXCEPTION_ATTRIBUTE, ex, RequestAttributes.SCOPE_REQUEST);
         }
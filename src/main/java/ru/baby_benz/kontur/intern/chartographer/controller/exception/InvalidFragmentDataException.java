@@ -0,0 +1,11 @@
+package ru.baby_benz.kontur.intern.chartographer.controller.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(code = HttpStatus.BAD_REQUEST)
+public class InvalidFragmentDataException extends RuntimeException {
+    public InvalidFragmentDataException(final String reason) {
+        super("Passed fragment is not a valid 24-bit BMP image: " + reason);
+    }
+}
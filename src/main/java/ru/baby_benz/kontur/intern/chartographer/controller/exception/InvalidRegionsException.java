@@ -0,0 +1,26 @@
+package ru.baby_benz.kontur.intern.chartographer.controller.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(code = HttpStatus.BAD_REQUEST)
+public class InvalidRegionsException extends RuntimeException {
+    public InvalidRegionsException(final int valueCount) {
+        super("Passed regions must be a non-empty list of x, y, width and height quadruples, got "
+                + valueCount + " values");
+    }
+
+    public InvalidRegionsException(final int count, final long area, final int allowedCount, final long allowedArea) {
+        super(
+                "Passed regions (count:"
+                        + count
+                        + ",area:"
+                        + area
+                        + "px) exceed the maximum allowed regions (count:"
+                        + allowedCount
+                        + ",area:"
+                        + allowedArea
+                        + "px)"
+        );
+    }
+}
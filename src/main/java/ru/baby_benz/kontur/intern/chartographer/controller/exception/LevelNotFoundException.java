@@ -0,0 +1,11 @@
+package ru.baby_benz.kontur.intern.chartographer.controller.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(code = HttpStatus.BAD_REQUEST)
+public class LevelNotFoundException extends RuntimeException {
+    public LevelNotFoundException(final int level, final int levelCount) {
+        super("Passed level " + level + " is out of the charta's levels range [0;" + levelCount + "]");
+    }
+}
@@ -0,0 +1,11 @@
+package ru.baby_benz.kontur.intern.chartographer.controller.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(code = HttpStatus.SERVICE_UNAVAILABLE)
+public class WriteQueueIsFullException extends RuntimeException {
+    public WriteQueueIsFullException(final String id, final int depth) {
+        super("Charta with id " + id + " already has " + depth + " changes waiting. Please, retry later");
+    }
+}
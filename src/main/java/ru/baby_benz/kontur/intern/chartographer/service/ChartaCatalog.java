@@ -0,0 +1,42 @@
+package ru.baby_benz.kontur.intern.chartographer.service;
+
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * Persistent index of the chartas kept in {@link ChartaStorage}, which tells whether a charta exists
+ * and what its dimensions are without touching the storage. Levels of chartas aren't indexed.
+ */
+public interface ChartaCatalog {
+    /**
+     * Starts using the catalog in the current run
+     *
+     * @return whether the previous run has closed the catalog, otherwise the previous run has crashed or predates
+     * the catalog, so the catalog may disagree with the storage
+     */
+    boolean open();
+
+    /**
+     * @return entry of the charta or null if there is no such charta
+     */
+    Entry get(String id);
+
+    /**
+     * Adds or replaces the entry of the charta, the change is persisted once the method returns
+     */
+    void put(String id, Entry entry);
+
+    /**
+     * Removes the entry of the charta, the change is persisted once the method returns
+     */
+    void remove(String id);
+
+    List<String> list();
+
+    @Value
+    class Entry {
+        int width;
+        int height;
+    }
+}
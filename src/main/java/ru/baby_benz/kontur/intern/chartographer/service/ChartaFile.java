@@ -0,0 +1,31 @@
+package ru.baby_benz.kontur.intern.chartographer.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Opened charta giving access to row segments of its pixels in BGR byte order, 3 bytes per pixel.
+ * Rows are counted from the top of the charta.
+ */
+public interface ChartaFile extends Closeable {
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * @return buffer with {@code width} pixels of row {@code y} starting at column {@code x}.
+     * The buffer is only valid until the next call on this file
+     */
+    ByteBuffer readRow(int x, int y, int width) throws IOException;
+
+    /**
+     * Writes the remaining pixels of {@code pixels} into row {@code y} starting at column {@code x}.
+     */
+    void writeRow(int x, int y, ByteBuffer pixels) throws IOException;
+
+    /**
+     * Forces everything written to the file so far onto the storage device.
+     */
+    void force() throws IOException;
+}
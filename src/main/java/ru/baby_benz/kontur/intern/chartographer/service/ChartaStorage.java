@@ -0,0 +1,18 @@
+package ru.baby_benz.kontur.intern.chartographer.service;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * On-disk format of chartas. Implementations are not thread-safe with respect to a single charta,
+ * callers are expected to guard access with {@link LockerService}.
+ */
+public interface ChartaStorage {
+    void create(String id, int width, int height) throws IOException;
+
+    ChartaFile open(String id, boolean writable) throws IOException;
+
+    void delete(String id) throws IOException;
+
+    List<String> list() throws IOException;
+}
@@ -0,0 +1,32 @@
+package ru.baby_benz.kontur.intern.chartographer.service;
+
+/**
+ * Versions of the rows of chartas, which tell clients whether fragments they have read before are still the same.
+ * A version is the time of the last change of the rows in milliseconds, made unique and increasing within a charta,
+ * so it serves as both the entity tag and the last modification time of a fragment. Levels share the versions
+ * of the charta rows they are downsampled from.
+ * <p>
+ * Last modification times are compared to a second only, so changes made within the second after a fragment has
+ * been read aren't noticed by clients revalidating by the time alone. Entity tags are exact.
+ * <p>
+ * Versions aren't persisted, rows which haven't changed since the start are versioned by the start time.
+ */
+public interface ChartaVersionService {
+    /**
+     * Advances the version of the rows of the charta. It's called under the exclusive locks of the rows
+     * before they change, while readers take versions before they lock the rows. A reader may thus get changed rows
+     * under an earlier version, which only costs its client another read, but never gets the rows as they were
+     * before the change under the new version, so a client having stale rows is never answered that they are current
+     *
+     * @param toRow row following the last changed row
+     */
+    void advance(String id, int fromRow, int toRow);
+
+    /**
+     * @param toRow row following the last read row
+     * @return latest version of the rows of the charta
+     */
+    long getVersion(String id, int fromRow, int toRow);
+
+    void remove(String id);
+}
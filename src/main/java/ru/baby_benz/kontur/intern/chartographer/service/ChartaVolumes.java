@@ -0,0 +1,37 @@
+package ru.baby_benz.kontur.intern.chartographer.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Places the files of chartas on the storage volumes for {@link ChartaStorage} implementations. Files of a charta
+ * are kept in a shard directory chosen by a hash of the charta id, so no directory holds more than a fraction
+ * of the chartas, and on a single volume, which is chosen once the charta is created.
+ */
+public interface ChartaVolumes {
+    /**
+     * @return path of the file of the charta on the volume holding it or on the first volume if none does
+     */
+    Path locate(String chartaId, String fileName);
+
+    /**
+     * Chooses the volume for a new charta, so that chartas are spread evenly over the volumes
+     *
+     * @return path of the file of the charta on the chosen volume, whose shard directory exists
+     */
+    Path place(String chartaId, String fileName) throws IOException;
+
+    /**
+     * @return files of all chartas on all volumes
+     */
+    List<Path> list() throws IOException;
+
+    /**
+     * Moves files of chartas stored right under the parent path by earlier versions into shard directories
+     *
+     * @param isChartaFile tells files of chartas from other files by their names
+     */
+    void migrate(Predicate<String> isChartaFile) throws IOException;
+}
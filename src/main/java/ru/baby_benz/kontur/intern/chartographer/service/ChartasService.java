@@ -2,12 +2,41 @@ package ru.baby_benz.kontur.intern.chartographer.service;
 
 import org.springframework.core.io.Resource;
 
+import java.io.OutputStream;
+
 public interface ChartasService {
     String createCharta(int width, int height);
 
     void putFragment(String id, int x, int y, int width, int height, Resource fragmentData);
 
-    Resource getFragment(String id, int x, int y, int width, int height);
+    /**
+     * Puts a length-prefixed batch of fragments, see {@link ru.baby_benz.kontur.intern.chartographer.util.FragmentBatchReader}
+     */
+    void putFragments(String id, Resource fragmentsData);
+
+    default void getFragment(String id, int x, int y, int width, int height, OutputStream output) {
+        getFragment(id, 0, x, y, width, height, output);
+    }
+
+    /**
+     * Validates the fragment as {@link #getFragment(String, int, int, int, int, int, OutputStream)} does
+     *
+     * @return version of the fragment, which is taken before the fragment is extracted, so the extracted fragment
+     * is never older than its version
+     */
+    long getFragmentVersion(String id, int level, int x, int y, int width, int height);
+
+    /**
+     * Extracts a fragment of a level of detail of a charta, coordinates and dimensions are given at the level
+     */
+    void getFragment(String id, int level, int x, int y, int width, int height, OutputStream output);
+
+    /**
+     * Extracts several fragments of a level at once and writes them one after another in their order
+     *
+     * @param regions x, y, width and height of every fragment in a row
+     */
+    void getFragments(String id, int level, int[] regions, OutputStream output);
 
     void deleteCharta(String id);
 }
@@ -1,20 +1,41 @@
 package ru.baby_benz.kontur.intern.chartographer.service;
 
 import org.springframework.core.io.Resource;
+import ru.baby_benz.kontur.intern.chartographer.util.FragmentBatchReader;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
+import java.awt.*;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.function.Consumer;
 
 public interface IOService {
     void createImage(String fileId, int width, int height);
 
-    BufferedImage readImage(String fileId);
+    Dimension readImageDimensions(String fileId);
 
-    BufferedImage readImage(Resource resource);
+    /**
+     * Takes the version of the rows of a region before the region is read, see {@link ChartaVersionService}
+     *
+     * @return version of the rows of the region, which changes whenever any of them does
+     */
+    long readImageRegionVersion(String fileId, int y, int height);
 
-    void writeImage(BufferedImage charta, String fileId);
+    void readImageRegion(String fileId, int x, int y, int width, int height, OutputStream output);
 
-    ByteArrayOutputStream writeImage(BufferedImage charta);
+    /**
+     * Writes the regions one after another as separate BMP images. Rows are read in bands, each under a lock
+     * of its own which is released before the band is written out
+     */
+    void readImageRegions(String fileId, List<Rectangle> regions, OutputStream output);
+
+    void writeImageRegion(String fileId, int x, int y, int width, int height, Resource regionData);
+
+    /**
+     * Writes a batch of regions in the format of {@link FragmentBatchReader} in their order under a single lock.
+     * Every region is passed to {@code regionValidator} before it's written, an exception thrown by the validator
+     * stops the batch leaving the preceding regions written
+     */
+    void writeImageRegions(String fileId, Resource regionsData, Consumer<FragmentBatchReader.Fragment> regionValidator);
 
     void deleteImage(String fileId);
 }
@@ -0,0 +1,42 @@
+package ru.baby_benz.kontur.intern.chartographer.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Append-only journal of the rows written to chartas. A write is durable once its rows are in the journal,
+ * they reach {@link ChartaStorage} later through {@link WriteBackService} and are checkpointed out of the journal.
+ */
+public interface JournalService {
+    /**
+     * @return view of the opened charta which appends every written row to the journal before writing it.
+     * Checkpoints keep the rows of the opened views in the journal, closing the view forces the journal
+     * and closes {@code chartaFile}
+     */
+    ChartaFile wrap(String id, ChartaFile chartaFile) throws IOException;
+
+    /**
+     * Records that the rows of the charta journaled so far no longer apply, e.g. when the charta is deleted
+     * or replaced, and forces the record onto the storage device.
+     */
+    void discard(String id) throws IOException;
+
+    /**
+     * Passes the rows of the journal left by the previous run to {@code rowWriter} in the order they were written,
+     * leaving out the rows of discarded chartas. The journal is kept until the next checkpoint.
+     */
+    void replay(RowWriter rowWriter) throws IOException;
+
+    /**
+     * Flushes {@link WriteBackService}, forces the chartas written so far onto the storage device
+     * and removes their rows from the journal.
+     *
+     * @return whether the journal has been checkpointed, otherwise it's kept until the next checkpoint
+     */
+    boolean checkpoint();
+
+    @FunctionalInterface
+    interface RowWriter {
+        void writeRow(String id, int x, int y, ByteBuffer pixels) throws IOException;
+    }
+}
@@ -2,12 +2,24 @@ package ru.baby_benz.kontur.intern.chartographer.service;
 
 import ru.baby_benz.kontur.intern.chartographer.service.impl.LockType;
 
+/**
+ * Locks of chartas and their levels. Locks are created on demand and dropped once nobody holds or waits for them,
+ * so acquiring the lock of a charta tells nothing about whether the charta exists.
+ */
 public interface LockerService {
-    void addLock(String id);
-
     boolean acquireLock(String id, LockType lockType) throws InterruptedException;
 
+    /**
+     * Locks rows {@code [fromRow, toRow)} of the charta. An empty range only guards the charta
+     * against being replaced or deleted. Implementations without region granularity lock the whole charta.
+     */
+    default boolean acquireLock(String id, LockType lockType, int fromRow, int toRow) throws InterruptedException {
+        return acquireLock(id, lockType);
+    }
+
     void freeLock(String id, LockType lockType);
 
-    void removeLock(String id);
+    default void freeLock(String id, LockType lockType, int fromRow, int toRow) {
+        freeLock(id, lockType);
+    }
 }
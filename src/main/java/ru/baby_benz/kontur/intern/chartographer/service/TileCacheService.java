@@ -0,0 +1,26 @@
+package ru.baby_benz.kontur.intern.chartographer.service;
+
+/**
+ * Bounded cache of charta tiles shared by all readers.
+ */
+public interface TileCacheService {
+    /**
+     * @return view of the opened charta which reads rows through the cache. Closing the view closes {@code chartaFile}
+     */
+    ChartaFile wrap(String id, ChartaFile chartaFile);
+
+    /**
+     * Drops the cached tiles overlapping the region. Must be called after the region has been written
+     * and before its lock is released.
+     */
+    void invalidate(String id, int x, int y, int width, int height);
+
+    /**
+     * Drops all cached tiles of the charta.
+     */
+    void invalidate(String id);
+
+    long getHitCount();
+
+    long getMissCount();
+}
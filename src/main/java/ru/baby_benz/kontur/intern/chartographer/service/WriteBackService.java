@@ -0,0 +1,26 @@
+package ru.baby_benz.kontur.intern.chartographer.service;
+
+/**
+ * In-memory layer of dirty charta rows between fragment uploads and {@link ChartaStorage}.
+ * Uploaded rows are coalesced in memory and written to the storage in batches.
+ */
+public interface WriteBackService {
+    /**
+     * @return view of the opened charta which keeps written rows in memory and reads rows with them applied.
+     * Closing the view closes {@code chartaFile}
+     */
+    ChartaFile wrap(String id, ChartaFile chartaFile);
+
+    /**
+     * Drops the dirty rows of the charta without writing them, e.g. when the charta is deleted or replaced.
+     */
+    void discard(String id);
+
+    /**
+     * Writes all dirty rows to the storage and forces them onto the storage device.
+     *
+     * @return whether all rows dirty when the flush started have been written, rows whose locks couldn't be
+     * acquired in time or which failed to be written stay dirty
+     */
+    boolean flush();
+}
@@ -0,0 +1,25 @@
+package ru.baby_benz.kontur.intern.chartographer.service;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Applies commands changing a charta in the order they arrive. Commands changing a common band of rows of a charta
+ * run one at a time, other commands run concurrently.
+ */
+public interface WriteQueueService {
+    /**
+     * Queues a command changing the whole charta
+     *
+     * @return future completed with the outcome of the command once it has run. Cancelling it before the command
+     * has started drops the command, a started command can't be cancelled
+     */
+    CompletableFuture<Void> submit(String id, Runnable command);
+
+    /**
+     * Queues a command changing the rows of the charta
+     *
+     * @param toRow row following the last changed row
+     * @return the same as {@link #submit(String, Runnable)}
+     */
+    CompletableFuture<Void> submit(String id, int fromRow, int toRow, Runnable command);
+}
@@ -0,0 +1,93 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaFile;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaStorage;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaVolumes;
+import ru.baby_benz.kontur.intern.chartographer.util.Pyramid;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Stores every charta as a single BMP file on one of the {@link ChartaVolumes}.
+ */
+@RequiredArgsConstructor
+@Service
+@ConditionalOnProperty(prefix = "service.image.storage", name = "format", havingValue = "bmp", matchIfMissing = true)
+public class BmpChartaStorage implements ChartaStorage {
+    private final ImageProperties imageProperties;
+    private final ChartaVolumes chartaVolumes;
+
+    @PostConstruct
+    public void migrateChartas() throws IOException {
+        chartaVolumes.migrate(fileName -> fileName.endsWith(getExtension()));
+    }
+
+    /**
+     * Levels go next to their charta, a charta goes to the volume chosen for it
+     */
+    @Override
+    public void create(String id, int width, int height) throws IOException {
+        if (Pyramid.getLevel(id) == 0) {
+            BmpFile.create(chartaVolumes.place(id, getFileName(id)), width, height);
+        } else {
+            BmpFile.create(getPathNextToCharta(id, getFileName(id)), width, height);
+        }
+    }
+
+    @Override
+    public ChartaFile open(String id, boolean writable) throws IOException {
+        if (writable) {
+            return BmpFile.open(getImagePath(id), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } else {
+            return BmpFile.open(getImagePath(id), StandardOpenOption.READ);
+        }
+    }
+
+    @Override
+    public void delete(String id) throws IOException {
+        Files.delete(getImagePath(id));
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        return listIds(getExtension());
+    }
+
+    private List<String> listIds(String extension) throws IOException {
+        return chartaVolumes.list().stream()
+                .map(file -> file.getFileName().toString())
+                .filter(fileName -> fileName.endsWith(extension))
+                .map(fileName -> fileName.substring(0, fileName.length() - extension.length()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Levels are looked up by themselves, since they outlive their charta while it's being deleted
+     */
+    private Path getImagePath(String id) {
+        return chartaVolumes.locate(Pyramid.getChartaId(id), getFileName(id));
+    }
+
+    private Path getPathNextToCharta(String id, String fileName) {
+        String chartaId = Pyramid.getChartaId(id);
+        return chartaVolumes.locate(chartaId, getFileName(chartaId)).resolveSibling(fileName);
+    }
+
+    private String getFileName(String id) {
+        return id + getExtension();
+    }
+
+    private String getExtension() {
+        return "." + imageProperties.getType();
+    }
+}
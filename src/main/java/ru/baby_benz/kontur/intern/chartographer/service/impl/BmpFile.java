@@ -0,0 +1,198 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import lombok.Getter;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaFile;
+import ru.baby_benz.kontur.intern.chartographer.util.BmpHeader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Random access to the pixel rows of a BMP file on disk.
+ * <p>
+ * Only the requested row segments are read or written, so the cost of an operation
+ * is proportional to the size of the region rather than to the size of the image.
+ * Rows are read through memory-mapped windows of whole rows, which keeps every mapping
+ * below the 2 GB limit of {@link MappedByteBuffer} regardless of the image size.
+ * A window is unmapped as soon as another one is mapped or the file is closed, rather than
+ * whenever the garbage collector gets to it, so rows read before must not be used afterwards.
+ */
+public class BmpFile implements ChartaFile {
+    private static final long MAX_WINDOW_SIZE = 1L << 30;
+    private static final Unmapper UNMAPPER = Unmapper.create();
+
+    private final FileChannel channel;
+    @Getter
+    private final BmpHeader header;
+    private final long windowSize;
+    private MappedByteBuffer window;
+    // Read-only view of the window handed out by every read, so reading a row allocates nothing
+    private ByteBuffer windowView;
+    private long windowIndex = -1;
+
+    private BmpFile(FileChannel channel, BmpHeader header) {
+        this.channel = channel;
+        this.header = header;
+        this.windowSize = Math.max(1, MAX_WINDOW_SIZE / header.getRowSize()) * header.getRowSize();
+    }
+
+    /**
+     * Creates a black image by writing the header only and extending the file to its final length.
+     * The extended part is a sparse hole which reads back as zeros, i.e. black pixels.
+     */
+    public static void create(Path path, int width, int height) throws IOException {
+        BmpHeader header = BmpHeader.of(width, height);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, header.toByteBuffer(), 0);
+            writeFully(channel, ByteBuffer.allocate(1), header.getFileSize() - 1);
+        }
+    }
+
+    public static BmpFile open(Path path, OpenOption... options) throws IOException {
+        FileChannel channel = FileChannel.open(path, options);
+        try {
+            ByteBuffer headerBuffer = ByteBuffer.allocate(BmpHeader.SIZE);
+            readFully(channel, headerBuffer, 0);
+            return new BmpFile(channel, BmpHeader.read(headerBuffer.flip()));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return header.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return header.getHeight();
+    }
+
+    /**
+     * @return read-only view of the row segment backed by the mapped file without copying,
+     * the view is shared by all reads of the file
+     */
+    @Override
+    public ByteBuffer readRow(int x, int y, int width) throws IOException {
+        int length = width * BmpHeader.BYTES_PER_PIXEL;
+        long offsetInImage = getSegmentOffset(x, y, length) - header.getDataOffset();
+        int offsetInWindow = (int) (offsetInImage - mapWindow(offsetInImage / windowSize));
+
+        return windowView.clear().position(offsetInWindow).limit(offsetInWindow + length);
+    }
+
+    @Override
+    public void writeRow(int x, int y, ByteBuffer pixels) throws IOException {
+        writeFully(channel, pixels, getSegmentOffset(x, y, pixels.remaining()));
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    private long mapWindow(long index) throws IOException {
+        long windowStart = index * windowSize;
+        if (index != windowIndex) {
+            unmapWindow();
+            long size = Math.min(windowSize, header.getImageSize() - windowStart);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, header.getDataOffset() + windowStart, size);
+            windowView = window.asReadOnlyBuffer();
+            windowIndex = index;
+        }
+        return windowStart;
+    }
+
+    private void unmapWindow() {
+        if (window != null) {
+            MappedByteBuffer mappedWindow = window;
+            window = null;
+            windowView = null;
+            windowIndex = -1;
+            UNMAPPER.unmap(mappedWindow);
+        }
+    }
+
+    private long getSegmentOffset(int x, int y, int length) {
+        if (length % BmpHeader.BYTES_PER_PIXEL != 0) {
+            throw new IllegalArgumentException("Row segment length must be a multiple of the pixel size");
+        }
+        int pixelCount = length / BmpHeader.BYTES_PER_PIXEL;
+        if (x < 0 || y < 0 || y >= getHeight() || x + pixelCount > getWidth()) {
+            throw new IllegalArgumentException("Row segment (x:=" + x + ",y:=" + y + ",width:=" + pixelCount
+                    + ") is out of the image bounds");
+        }
+        return header.getRowOffset(y) + (long) x * BmpHeader.BYTES_PER_PIXEL;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of BMP file");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            unmapWindow();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Releases mappings through the cleaner of the JDK, which isn't a public API. Where it's unavailable mappings
+     * are left to the garbage collector, as they would be without it.
+     */
+    private static class Unmapper {
+        private final Object unsafe;
+        private final Method invokeCleaner;
+
+        private Unmapper(Object unsafe, Method invokeCleaner) {
+            this.unsafe = unsafe;
+            this.invokeCleaner = invokeCleaner;
+        }
+
+        private static Unmapper create() {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                return new Unmapper(theUnsafe.get(null), unsafeClass.getMethod("invokeCleaner", ByteBuffer.class));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return new Unmapper(null, null);
+            }
+        }
+
+        private void unmap(MappedByteBuffer buffer) {
+            if (invokeCleaner != null) {
+                try {
+                    invokeCleaner.invoke(unsafe, buffer);
+                } catch (ReflectiveOperationException | RuntimeException ignored) {
+                    // The mapping is released once the buffer is collected
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.springframework.stereotype.Service;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.controller.exception.ChartaIOException;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaCatalog;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the catalog in an MVStore file next to the chartas. Only the pages of the B-tree which are accessed
+ * are read into memory, so neither opening the catalog nor its heap footprint depend on the number of chartas.
+ * <p>
+ * Entries are stored as arrays of the width and the height of their chartas. Every change is committed before
+ * it's acknowledged, which makes it survive a crash of the process.
+ */
+@Service
+public class DefaultChartaCatalog implements ChartaCatalog {
+    private static final String CATALOG_FILE_NAME = "chartas.catalog";
+    private static final String CLOSED_KEY = "closed";
+
+    private final MVStore store;
+    private final MVMap<String, int[]> entries;
+    private final MVMap<String, Boolean> state;
+
+    public DefaultChartaCatalog(ImageProperties imageProperties) {
+        Path parentPath = Path.of(imageProperties.getParentPath());
+        try {
+            Files.createDirectories(parentPath);
+        } catch (IOException e) {
+            throw new ChartaIOException("I/O error occurred while opening the charta catalog");
+        }
+
+        store = new MVStore.Builder()
+                .fileName(parentPath.resolve(CATALOG_FILE_NAME).toString())
+                .open();
+        entries = store.openMap("entries");
+        state = store.openMap("state");
+    }
+
+    @Override
+    public boolean open() {
+        boolean isClosed = Boolean.TRUE.equals(state.put(CLOSED_KEY, false));
+        store.commit();
+        // A crash before the mark reaches the storage device must not leave the catalog marked as closed
+        store.sync();
+        return isClosed;
+    }
+
+    @PreDestroy
+    public void close() {
+        if (!store.isClosed()) {
+            state.put(CLOSED_KEY, true);
+            store.close();
+        }
+    }
+
+    @Override
+    public Entry get(String id) {
+        int[] dimensions = entries.get(id);
+        if (dimensions == null) {
+            return null;
+        }
+        return new Entry(dimensions[0], dimensions[1]);
+    }
+
+    @Override
+    public void put(String id, Entry entry) {
+        entries.put(id, new int[]{entry.getWidth(), entry.getHeight()});
+        store.commit();
+    }
+
+    @Override
+    public void remove(String id) {
+        if (entries.remove(id) != null) {
+            store.commit();
+        }
+    }
+
+    @Override
+    public List<String> list() {
+        return new ArrayList<>(entries.keySet());
+    }
+}
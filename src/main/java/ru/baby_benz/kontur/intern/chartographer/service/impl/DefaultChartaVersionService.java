@@ -0,0 +1,85 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import org.springframework.stereotype.Service;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.configuration.LockProperties;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaVersionService;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Versions rows in the bands they are locked in rather than one by one, so a change makes fragments of its whole
+ * bands stale. Versions of a charta are kept in memory from its first change to its deletion, reads of a charta
+ * which hasn't changed since the start keep nothing.
+ */
+@Service
+public class DefaultChartaVersionService implements ChartaVersionService {
+    private final ConcurrentMap<String, RowVersions> chartaVersions = new ConcurrentHashMap<>();
+    private final int bandHeight;
+    private final int bandCount;
+    // Versions of the previous runs are earlier, unless the clock has been turned back
+    private final long startTime = System.currentTimeMillis();
+
+    public DefaultChartaVersionService(LockProperties lockProperties, ImageProperties imageProperties) {
+        bandHeight = Math.max(lockProperties.getBandHeight(), 1);
+        bandCount = (imageProperties.getCharta().getMaxDimensions().getHeight() + bandHeight - 1) / bandHeight;
+    }
+
+    @Override
+    public void advance(String id, int fromRow, int toRow) {
+        if (fromRow < toRow) {
+            chartaVersions.computeIfAbsent(id, ignored -> new RowVersions(bandCount, startTime))
+                    .advance(getBand(fromRow), getBand(toRow - 1));
+        }
+    }
+
+    @Override
+    public long getVersion(String id, int fromRow, int toRow) {
+        RowVersions rowVersions = chartaVersions.get(id);
+        if (rowVersions == null || fromRow >= toRow) {
+            return startTime;
+        }
+        return rowVersions.get(getBand(fromRow), getBand(toRow - 1));
+    }
+
+    @Override
+    public void remove(String id) {
+        chartaVersions.remove(id);
+    }
+
+    /**
+     * Rows outside of the tallest allowed charta belong to the nearest band
+     */
+    private int getBand(int row) {
+        return Math.min(Math.max(row, 0) / bandHeight, bandCount - 1);
+    }
+
+    private static class RowVersions {
+        private final long[] bandVersions;
+        private long latestVersion;
+
+        private RowVersions(int bandCount, long startTime) {
+            bandVersions = new long[bandCount];
+            Arrays.fill(bandVersions, startTime);
+            latestVersion = startTime;
+        }
+
+        /**
+         * Versions are the current time unless several changes happen within a millisecond
+         */
+        private synchronized void advance(int fromBand, int toBand) {
+            latestVersion = Math.max(System.currentTimeMillis(), latestVersion + 1);
+            Arrays.fill(bandVersions, fromBand, toBand + 1, latestVersion);
+        }
+
+        private synchronized long get(int fromBand, int toBand) {
+            long version = bandVersions[fromBand];
+            for (int band = fromBand + 1; band <= toBand; band++) {
+                version = Math.max(version, bandVersions[band]);
+            }
+            return version;
+        }
+    }
+}
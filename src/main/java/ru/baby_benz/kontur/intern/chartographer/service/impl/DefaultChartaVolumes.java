@@ -0,0 +1,163 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import org.springframework.stereotype.Service;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.controller.exception.ChartaIOException;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaVolumes;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps chartas under the configured storage roots, one per volume, or under the parent path if there are none.
+ * Shard directories are two levels of 256 directories named by the bytes of the CRC32 of the charta id.
+ * <p>
+ * Volumes holding chartas aren't recorded anywhere, with several roots a file is looked up on every volume in turn.
+ * A single root is never looked up.
+ * <p>
+ * New chartas go to the volumes in turn, starting from a random one, so every run spreads them evenly whatever
+ * the earlier runs have done. Usable space isn't taken into account, since it hardly changes as sparse charta
+ * files are created.
+ */
+@Service
+public class DefaultChartaVolumes implements ChartaVolumes {
+    private static final int SHARD_LEVELS = 2;
+
+    private final Path parentPath;
+    private final List<Path> roots;
+    private final AtomicInteger nextRoot;
+
+    public DefaultChartaVolumes(ImageProperties imageProperties) {
+        parentPath = Path.of(imageProperties.getParentPath());
+        List<String> configuredRoots = imageProperties.getStorage().getRoots();
+        if (configuredRoots == null || configuredRoots.isEmpty()) {
+            roots = List.of(parentPath);
+        } else {
+            roots = configuredRoots.stream().map(Path::of).collect(Collectors.toUnmodifiableList());
+        }
+        nextRoot = new AtomicInteger(ThreadLocalRandom.current().nextInt(roots.size()));
+
+        try {
+            for (Path root : roots) {
+                Files.createDirectories(root);
+            }
+        } catch (IOException e) {
+            throw new ChartaIOException("I/O error occurred while creating storage roots");
+        }
+    }
+
+    @Override
+    public Path locate(String chartaId, String fileName) {
+        Path shardPath = getShardPath(chartaId);
+        if (roots.size() > 1) {
+            for (Path root : roots) {
+                Path path = root.resolve(shardPath).resolve(fileName);
+                if (Files.exists(path)) {
+                    return path;
+                }
+            }
+        }
+        return roots.get(0).resolve(shardPath).resolve(fileName);
+    }
+
+    /**
+     * Roots which have gone missing since the start, e.g. of unmounted volumes, are skipped rather than created
+     */
+    @Override
+    public Path place(String chartaId, String fileName) throws IOException {
+        Path root = null;
+        int firstRoot = Math.floorMod(nextRoot.getAndIncrement(), roots.size());
+        for (int i = 0; i < roots.size() && root == null; i++) {
+            Path candidateRoot = roots.get((firstRoot + i) % roots.size());
+            if (Files.isDirectory(candidateRoot)) {
+                root = candidateRoot;
+            }
+        }
+        if (root == null) {
+            throw new NoSuchFileException(roots.get(0).toString());
+        }
+
+        Path shardDirectory = root.resolve(getShardPath(chartaId));
+        Files.createDirectories(shardDirectory);
+        return shardDirectory.resolve(fileName);
+    }
+
+    @Override
+    public List<Path> list() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        for (Path root : roots) {
+            if (!Files.isDirectory(root)) {
+                continue;
+            }
+            try (Stream<Path> files = Files.walk(root, SHARD_LEVELS + 1)) {
+                // Files right under the parent path, e.g. the journal, are not in shard directories
+                files.filter(file -> root.relativize(file).getNameCount() == SHARD_LEVELS + 1)
+                        .filter(Files::isRegularFile)
+                        .forEach(paths::add);
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Chartas are placed as new ones, files of a charta and its levels end up on the same volume
+     */
+    @Override
+    public void migrate(Predicate<String> isChartaFile) throws IOException {
+        if (!Files.isDirectory(parentPath)) {
+            return;
+        }
+
+        List<Path> chartaFiles;
+        try (Stream<Path> files = Files.list(parentPath)) {
+            chartaFiles = files.filter(Files::isRegularFile)
+                    .filter(file -> isChartaFile.test(file.getFileName().toString()))
+                    .collect(Collectors.toList());
+        }
+        Map<String, Path> shardDirectories = new HashMap<>();
+        for (Path chartaFile : chartaFiles) {
+            String fileName = chartaFile.getFileName().toString();
+            String chartaId = getChartaId(fileName);
+            Path shardDirectory = shardDirectories.get(chartaId);
+            if (shardDirectory == null) {
+                shardDirectory = place(chartaId, fileName).getParent();
+                shardDirectories.put(chartaId, shardDirectory);
+            }
+            // Roots may be on other volumes than the parent path, so the move may turn into a copy
+            Files.move(chartaFile, shardDirectory.resolve(fileName), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private Path getShardPath(String chartaId) {
+        CRC32 checksum = new CRC32();
+        checksum.update(chartaId.getBytes(StandardCharsets.UTF_8));
+        long hash = checksum.getValue();
+        return Path.of(toHex(hash >>> 24), toHex(hash >>> 16));
+    }
+
+    private static String toHex(long value) {
+        return Integer.toHexString(0x100 | (int) (value & 0xff)).substring(1);
+    }
+
+    /**
+     * Ids contain no dots, which separate levels and extensions
+     */
+    private static String getChartaId(String fileName) {
+        int dotIndex = fileName.indexOf('.');
+        return dotIndex < 0 ? fileName : fileName.substring(0, dotIndex);
+    }
+}
@@ -1,7 +1,7 @@
 package ru.baby_benz.kontur.intern.chartographer.service.impl;
 
+import io.micrometer.core.annotation.Timed;
 import lombok.RequiredArgsConstructor;
-import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
 import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
@@ -9,10 +9,12 @@ import ru.baby_benz.kontur.intern.chartographer.controller.exception.*;
 import ru.baby_benz.kontur.intern.chartographer.service.ChartasService;
 import ru.baby_benz.kontur.intern.chartographer.service.IOService;
 import ru.baby_benz.kontur.intern.chartographer.util.IdGenerator;
+import ru.baby_benz.kontur.intern.chartographer.util.Pyramid;
 
 import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 @RequiredArgsConstructor
 @Service
@@ -21,6 +23,7 @@ public class DefaultChartasService implements ChartasService {
     private final IOService ioService;
 
     @Override
+    @Timed("chartas.service")
     public String createCharta(int width, int height) {
         if (exceedsChartaMaxDims(width, height)) {
             throw new TooBigChartaException(
@@ -40,18 +43,107 @@ public class DefaultChartasService implements ChartasService {
     }
 
     @Override
+    @Timed("chartas.service")
     public void putFragment(String id, int x, int y, int width, int height, Resource fragmentData) {
+        checkChartaId(id);
         if (isPlaneNegative(x, y, width, height)) {
             throw new FragmentNegativePlaneException(x, y, width, height);
         }
 
-        BufferedImage charta = ioService.readImage(id);
-        charta = insertFragment(charta, x, y, width, height, fragmentData);
-        ioService.writeImage(charta, id);
+        insertFragment(id, x, y, width, height, fragmentData);
     }
 
     @Override
-    public InputStreamResource getFragment(String id, int x, int y, int width, int height) {
+    @Timed("chartas.service")
+    public void putFragments(String id, Resource fragmentsData) {
+        checkChartaId(id);
+        Dimension chartaDimensions = ioService.readImageDimensions(id);
+        int chartaWidth = chartaDimensions.width;
+        int chartaHeight = chartaDimensions.height;
+
+        ioService.writeImageRegions(id, fragmentsData, fragment -> {
+            int x = fragment.getX();
+            int y = fragment.getY();
+
+            if (isPlaneNegative(x, y, fragment.getWidth(), fragment.getHeight())) {
+                throw new FragmentNegativePlaneException(x, y, fragment.getWidth(), fragment.getHeight());
+            }
+            if (!intersectsCharta(x, y, chartaWidth, chartaHeight)) {
+                throw new NoIntersectionException(x, y, chartaWidth, chartaHeight);
+            }
+        });
+    }
+
+    @Override
+    @Timed("chartas.service")
+    public void getFragment(String id, int level, int x, int y, int width, int height, OutputStream output) {
+        checkChartaId(id);
+        validateExtractedFragment(x, y, width, height);
+
+        extractFragment(id, level, x, y, width, height, output);
+    }
+
+    @Override
+    @Timed("chartas.service")
+    public long getFragmentVersion(String id, int level, int x, int y, int width, int height) {
+        checkChartaId(id);
+        validateExtractedFragment(x, y, width, height);
+
+        Dimension levelDimensions = readLevelDimensions(id, level);
+        if (!intersectsCharta(x, y, levelDimensions.width, levelDimensions.height)) {
+            throw new NoIntersectionException(x, y, levelDimensions.width, levelDimensions.height);
+        }
+
+        return ioService.readImageRegionVersion(Pyramid.getLevelId(id, level), y, height);
+    }
+
+    @Override
+    @Timed("chartas.service")
+    public void getFragments(String id, int level, int[] regions, OutputStream output) {
+        checkChartaId(id);
+        if (regions.length == 0 || regions.length % 4 != 0) {
+            throw new InvalidRegionsException(regions.length);
+        }
+
+        List<Rectangle> fragments = new ArrayList<>(regions.length / 4);
+        long area = 0;
+        for (int i = 0; i < regions.length; i += 4) {
+            Rectangle fragment = new Rectangle(regions[i], regions[i + 1], regions[i + 2], regions[i + 3]);
+            validateExtractedFragment(fragment.x, fragment.y, fragment.width, fragment.height);
+            fragments.add(fragment);
+            area += (long) fragment.width * fragment.height;
+        }
+        if (fragments.size() > getRegionsMaxCount() || area > getRegionsMaxArea()) {
+            throw new InvalidRegionsException(fragments.size(), area, getRegionsMaxCount(), getRegionsMaxArea());
+        }
+
+        Dimension levelDimensions = readLevelDimensions(id, level);
+        for (Rectangle fragment : fragments) {
+            if (!intersectsCharta(fragment.x, fragment.y, levelDimensions.width, levelDimensions.height)) {
+                throw new NoIntersectionException(fragment.x, fragment.y, levelDimensions.width, levelDimensions.height);
+            }
+        }
+
+        ioService.readImageRegions(Pyramid.getLevelId(id, level), fragments, output);
+    }
+
+    @Override
+    @Timed("chartas.service")
+    public void deleteCharta(String id) {
+        checkChartaId(id);
+        ioService.deleteImage(id);
+    }
+
+    /**
+     * Levels are stored as chartas of their own, but they are reachable only through their chartas
+     */
+    private void checkChartaId(String id) {
+        if (!Pyramid.isChartaId(id)) {
+            throw new ChartaNotFoundException(id);
+        }
+    }
+
+    private void validateExtractedFragment(int x, int y, int width, int height) {
         if (exceedsFragmentMaxDims(width, height)) {
             throw new TooBigFragmentException(
                     width,
@@ -66,81 +158,46 @@ public class DefaultChartasService implements ChartasService {
         if (isPlaneNegative(x, y, width, height)) {
             throw new FragmentNegativePlaneException(x, y, width, height);
         }
-
-        return extractFragment(ioService.readImage(id), x, y, width, height);
-    }
-
-    @Override
-    public void deleteCharta(String id) {
-        ioService.deleteImage(id);
     }
 
-    private InputStreamResource extractFragment(BufferedImage charta, int x, int y, int width, int height) {
-        int chartaWidth = charta.getWidth();
-        int chartaHeight = charta.getHeight();
+    private void extractFragment(String id, int level, int x, int y, int width, int height, OutputStream output) {
+        Dimension levelDimensions = readLevelDimensions(id, level);
 
-        if (!intersectsCharta(x, y, chartaWidth, chartaHeight)) {
-            throw new NoIntersectionException(x, y, chartaWidth, chartaHeight);
+        if (!intersectsCharta(x, y, levelDimensions.width, levelDimensions.height)) {
+            throw new NoIntersectionException(x, y, levelDimensions.width, levelDimensions.height);
         }
 
-        BufferedImage fragment = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        ioService.readImageRegion(Pyramid.getLevelId(id, level), x, y, width, height, output);
+    }
 
-        if (x + width > chartaWidth) {
-            width = chartaWidth - x;
-        }
-        if (y + height > chartaHeight) {
-            height = chartaHeight - y;
-        }
+    private Dimension readLevelDimensions(String id, int level) {
+        Dimension chartaDimensions = ioService.readImageDimensions(id);
+        int levelCount = Pyramid.getLevelCount(
+                chartaDimensions.width,
+                chartaDimensions.height,
+                imageProperties.getPyramid().getMaxLevel()
+        );
 
-        int fragmentX = 0, fragmentY = 0;
-        if (x < 0) {
-            width += x;
-            fragmentX = -x;
-            x = 0;
-        }
-        if (y < 0) {
-            height += y;
-            fragmentY = -y;
-            y = 0;
+        if (level < 0 || level > levelCount) {
+            throw new LevelNotFoundException(level, levelCount);
         }
 
-        Graphics fragmentGraphics = fragment.getGraphics();
-        BufferedImage partOfChartaToFragment = charta.getSubimage(x, y, width, height);
-        fragmentGraphics.drawImage(partOfChartaToFragment, fragmentX, fragmentY, null);
-        fragmentGraphics.dispose();
-
-        return new InputStreamResource(new ByteArrayInputStream(ioService.writeImage(fragment).toByteArray()));
+        return new Dimension(
+                Pyramid.getLevelSize(chartaDimensions.width, level),
+                Pyramid.getLevelSize(chartaDimensions.height, level)
+        );
     }
 
-    private BufferedImage insertFragment(BufferedImage charta, int x, int y, int width, int height, Resource fragmentData) {
-        int chartaWidth = charta.getWidth();
-        int chartaHeight = charta.getHeight();
+    private void insertFragment(String id, int x, int y, int width, int height, Resource fragmentData) {
+        Dimension chartaDimensions = ioService.readImageDimensions(id);
+        int chartaWidth = chartaDimensions.width;
+        int chartaHeight = chartaDimensions.height;
 
         if (!intersectsCharta(x, y, chartaWidth, chartaHeight)) {
             throw new NoIntersectionException(x, y, chartaWidth, chartaHeight);
         }
 
-        BufferedImage fragment = ioService.readImage(fragmentData);
-
-        fragment = cropToSize(fragment, x, y, width, height, chartaWidth, chartaHeight);
-
-        if (x < 0) {
-            x = 0;
-        }
-        if (y < 0) {
-            y = 0;
-        }
-
-        BufferedImage fragmentOnCharta = new BufferedImage(charta.getWidth(), charta.getHeight(), BufferedImage.TYPE_INT_RGB);
-
-        Graphics2D fragmentOnChartaGraphics = fragmentOnCharta.createGraphics();
-
-        fragmentOnChartaGraphics.drawImage(charta, 0, 0, null);
-        fragmentOnChartaGraphics.drawImage(fragment, x, y, null);
-
-        fragmentOnChartaGraphics.dispose();
-
-        return fragmentOnCharta;
+        ioService.writeImageRegion(id, x, y, width, height, fragmentData);
     }
 
     private boolean isPlaneNegative(int x, int y, int fragmentWidth, int fragmentHeight) {
@@ -151,28 +208,6 @@ public class DefaultChartasService implements ChartasService {
         return x < chartaWidth && y < chartaHeight;
     }
 
-    private BufferedImage cropToSize(BufferedImage image, int x, int y, int width, int height,
-                                     int targetWidth, int targetHeight) {
-        int xCropFrom = 0, yCropFrom = 0;
-
-        if (x + width > targetWidth) {
-            width = targetWidth - x;
-        }
-        if (y + height > targetHeight) {
-            height = targetHeight - y;
-        }
-        if (x < 0) {
-            xCropFrom = -x;
-            width += x;
-        }
-        if (y < 0) {
-            yCropFrom = -y;
-            height += y;
-        }
-
-        return image.getSubimage(xCropFrom, yCropFrom, width, height);
-    }
-
     private boolean exceedsChartaMaxDims(int width, int height) {
         return width > getChartaMaxWidth() || height > getChartaMaxHeight();
     }
@@ -196,4 +231,12 @@ public class DefaultChartasService implements ChartasService {
     private int getFragmentMaxHeight() {
         return imageProperties.getFragment().getMaxDimensions().getHeight();
     }
+
+    private int getRegionsMaxCount() {
+        return imageProperties.getFragment().getMaxRegions().getCount();
+    }
+
+    private long getRegionsMaxArea() {
+        return imageProperties.getFragment().getMaxRegions().getArea();
+    }
 }
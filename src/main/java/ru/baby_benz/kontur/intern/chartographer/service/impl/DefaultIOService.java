@@ -1,32 +1,74 @@
 package ru.baby_benz.kontur.intern.chartographer.service.impl;
 
+import io.micrometer.core.annotation.Timed;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
 import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
 import ru.baby_benz.kontur.intern.chartographer.controller.exception.ChartaIOException;
+import ru.baby_benz.kontur.intern.chartographer.controller.exception.ChartaNotFoundException;
 import ru.baby_benz.kontur.intern.chartographer.controller.exception.FileIsLockedException;
+import ru.baby_benz.kontur.intern.chartographer.controller.exception.InvalidFragmentDataException;
 import ru.baby_benz.kontur.intern.chartographer.controller.exception.ServiceIsUnavailableException;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaCatalog;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaFile;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaStorage;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaVersionService;
 import ru.baby_benz.kontur.intern.chartographer.service.IOService;
+import ru.baby_benz.kontur.intern.chartographer.service.JournalService;
 import ru.baby_benz.kontur.intern.chartographer.service.LockerService;
+import ru.baby_benz.kontur.intern.chartographer.service.TileCacheService;
+import ru.baby_benz.kontur.intern.chartographer.service.WriteBackService;
+import ru.baby_benz.kontur.intern.chartographer.util.BmpFormatException;
+import ru.baby_benz.kontur.intern.chartographer.util.BmpHeader;
+import ru.baby_benz.kontur.intern.chartographer.util.BmpRowReader;
+import ru.baby_benz.kontur.intern.chartographer.util.FragmentBatchReader;
+import ru.baby_benz.kontur.intern.chartographer.util.Pyramid;
 
 import javax.annotation.PostConstruct;
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
+import java.awt.*;
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 @RequiredArgsConstructor
 @Service
 public class DefaultIOService implements IOService {
+    // Shared source of black pixels for the parts of a region lying outside the charta
+    private static final byte[] BLACK_PIXELS = new byte[8192];
+    // Bytes of a region read under one lock and buffered before they are sent
+    private static final int SENT_BAND_SIZE = 1 << 18;
+    // End of a range of rows standing for all rows of a level
+    private static final int WHOLE_LEVEL = -1;
+    // Number of rows of a level downsampled at once, which bounds the memory taken by a fragment of any size
+    private static final int DOWNSAMPLED_BAND_HEIGHT = 64;
+
     private final ImageProperties imageProperties;
     private final LockerService lockerService;
+    private final ChartaStorage chartaStorage;
+    private final ChartaCatalog chartaCatalog;
+    private final WriteBackService writeBackService;
+    private final TileCacheService tileCacheService;
+    private final JournalService journalService;
+    private final ChartaVersionService chartaVersionService;
+    private final MeterRegistry meterRegistry;
 
     @PostConstruct
     private void prepareService() {
         createChartasFolder();
-        discoverChartas();
+        if (!chartaCatalog.open()) {
+            // Only a crash or the first run with the catalog costs a pass over the whole storage
+            discoverChartas();
+        }
+        replayJournal();
     }
 
     private void createChartasFolder() {
@@ -36,139 +78,591 @@ public class DefaultIOService implements IOService {
         }
     }
 
+    /**
+     * Brings the catalog in agreement with the storage, which is the source of truth for the chartas
+     */
     private void discoverChartas() {
-        File chartasFolder = new File(imageProperties.getParentPath());
-        File[] chartasFiles = chartasFolder.listFiles();
-        if (chartasFiles != null && chartasFiles.length > 0) {
-            String fileName;
-            for (File chartaFile : chartasFiles) {
-                fileName = chartaFile.getName();
-                lockerService.addLock(fileName.substring(0, fileName.lastIndexOf('.')));
+        try {
+            Set<String> storedIds = new HashSet<>(chartaStorage.list());
+
+            for (String storedId : storedIds) {
+                if (!storedIds.contains(Pyramid.getChartaId(storedId))) {
+                    // Level left behind by an interrupted deletion of its charta
+                    chartaStorage.delete(storedId);
+                }
+            }
+            for (String id : storedIds) {
+                if (Pyramid.getLevel(id) == 0) {
+                    discoverLevels(id, storedIds);
+                }
             }
+            for (String id : chartaCatalog.list()) {
+                if (!storedIds.contains(id)) {
+                    chartaCatalog.remove(id);
+                }
+            }
+        } catch (IOException e) {
+            throw new ChartaIOException("I/O error occurred while discovering chartas");
         }
     }
 
+    /**
+     * Catalogs the charta, builds the levels missing from the storage, e.g. of chartas created before the levels
+     * were introduced, and drops the levels above the configured maximum
+     */
+    private void discoverLevels(String id, Set<String> storedIds) throws IOException {
+        int levelCount;
+        try (ChartaFile chartaFile = chartaStorage.open(id, false)) {
+            int width = chartaFile.getWidth();
+            int height = chartaFile.getHeight();
+            levelCount = getLevelCount(width, height);
+            chartaCatalog.put(id, new ChartaCatalog.Entry(width, height));
+
+            boolean areLevelsMissing = false;
+            for (int level = 1; level <= levelCount; level++) {
+                if (!storedIds.contains(Pyramid.getLevelId(id, level))) {
+                    areLevelsMissing = true;
+                    break;
+                }
+            }
+            if (areLevelsMissing) {
+                createLevels(id, 1, levelCount, width, height);
+                try (ChartaLevels levels = new ChartaLevels(id, chartaFile, levelCount)) {
+                    levels.update(0, 0, width, height);
+                }
+            }
+        }
+
+        for (String storedId : storedIds) {
+            if (Pyramid.getLevel(storedId) > levelCount && Pyramid.getChartaId(storedId).equals(id)) {
+                chartaStorage.delete(storedId);
+            }
+        }
+    }
+
+    /**
+     * Writes the rows journaled before the previous run stopped, which may have not reached the storage,
+     * and brings the levels of the written regions up to date. Rows of chartas whose creation didn't reach
+     * the storage are dropped
+     */
+    private void replayJournal() {
+        Map<String, ChartaFile> chartaFiles = new HashMap<>();
+        Map<String, Rectangle> writtenRegions = new HashMap<>();
+
+        try {
+            try {
+                journalService.replay((id, x, y, pixels) -> {
+                    if (chartaCatalog.get(id) == null) {
+                        return;
+                    }
+                    ChartaFile chartaFile = chartaFiles.get(id);
+                    if (chartaFile == null) {
+                        chartaFile = chartaStorage.open(id, true);
+                        chartaFiles.put(id, chartaFile);
+                    }
+
+                    int width = pixels.remaining() / BmpHeader.BYTES_PER_PIXEL;
+                    if (y < chartaFile.getHeight() && x + width <= chartaFile.getWidth()) {
+                        chartaFile.writeRow(x, y, pixels);
+                        writtenRegions.merge(id, new Rectangle(x, y, width, 1), Rectangle::union);
+                    }
+                });
+
+                for (Map.Entry<String, Rectangle> entry : writtenRegions.entrySet()) {
+                    ChartaFile chartaFile = chartaFiles.get(entry.getKey());
+                    Rectangle region = entry.getValue();
+                    int levelCount = getLevelCount(chartaFile.getWidth(), chartaFile.getHeight());
+                    try (ChartaLevels levels = new ChartaLevels(entry.getKey(), chartaFile, levelCount)) {
+                        levels.update(region.x, region.y, region.x + region.width, region.y + region.height);
+                    }
+                }
+            } finally {
+                for (ChartaFile chartaFile : chartaFiles.values()) {
+                    chartaFile.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new ChartaIOException("I/O error occurred while replaying the journal");
+        }
+
+        journalService.checkpoint();
+    }
+
     @Override
+    @Timed("chartas.io")
     public void createImage(String fileId, int width, int height) {
-        BufferedImage bmp = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-
-        String fileName = fileId + "." + imageProperties.getType();
+        int levelCount = getLevelCount(width, height);
 
         try {
-            ImageIO.write(
-                    bmp,
-                    imageProperties.getType(),
-                    Files.newOutputStream(Path.of(imageProperties.getParentPath(), fileName))
-            );
+            chartaStorage.create(fileId, width, height);
+            // Levels of a black charta are black as well, so they need no downsampling
+            createLevels(fileId, 1, levelCount, width, height);
         } catch (IOException ioException) {
             throw new ChartaIOException("I/O error occurred while creating a charta");
         }
-
-        lockerService.addLock(fileId);
+        // The charta exists for the clients only once its files are complete
+        chartaCatalog.put(fileId, new ChartaCatalog.Entry(width, height));
     }
 
     @Override
-    public BufferedImage readImage(String fileId) {
+    @Timed("chartas.io")
+    public Dimension readImageDimensions(String fileId) {
         LockType lockType = LockType.SHARED;
 
         try {
-            boolean isLockAcquired = lockerService.acquireLock(fileId, lockType);
+            boolean isLockAcquired = lockerService.acquireLock(fileId, lockType, 0, 0);
 
             if (!isLockAcquired) {
                 throw new FileIsLockedException(fileId);
             }
+            ChartaCatalog.Entry entry = getEntry(fileId);
 
-            String fileName = fileId + "." + imageProperties.getType();
-            try {
-                return ImageIO.read(Files.newInputStream(Path.of(imageProperties.getParentPath(), fileName)));
-            } catch (IOException e) {
-                lockerService.freeLock(fileId, lockType);
-                throw new ChartaIOException("I/O error occurred while reading a charta");
-            }
+            return new Dimension(entry.getWidth(), entry.getHeight());
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new ServiceIsUnavailableException("Service is shutting down. Please, retry later");
         } finally {
-            lockerService.freeLock(fileId, lockType);
+            lockerService.freeLock(fileId, lockType, 0, 0);
         }
     }
 
+    /**
+     * A row of a level is downsampled from {@code 2^level} rows of the charta, so its version is the newest version
+     * of those rows
+     */
     @Override
-    public BufferedImage readImage(Resource resource) {
+    @Timed("chartas.io")
+    public long readImageRegionVersion(String fileId, int y, int height) {
+        int level = Pyramid.getLevel(fileId);
+        long fromRow = (long) Math.max(y, 0) << level;
+        long toRow = ((long) y + height) << level;
+        return chartaVersionService.getVersion(Pyramid.getChartaId(fileId), (int) Math.min(fromRow, Integer.MAX_VALUE),
+                (int) Math.min(toRow, Integer.MAX_VALUE));
+    }
+
+    @Override
+    @Timed("chartas.io")
+    public void readImageRegion(String fileId, int x, int y, int width, int height, OutputStream output) {
+        readImageRegions(fileId, List.of(new Rectangle(x, y, width, height)), output);
+    }
+
+    @Override
+    @Timed("chartas.io")
+    public void readImageRegions(String fileId, List<Rectangle> regions, OutputStream output) {
         try {
-            return ImageIO.read(resource.getInputStream());
-        } catch (IOException ioException) {
-            throw new ChartaIOException("I/O error occurred while reading a resource");
+            for (Rectangle region : regions) {
+                readRegion(fileId, region, output);
+                countBytes("read", BmpHeader.of(region.width, region.height).getFileSize());
+            }
+            output.flush();
+        } catch (IOException e) {
+            throw new ChartaIOException("I/O error occurred while reading a charta");
         }
     }
 
     @Override
-    public void writeImage(BufferedImage charta, String fileId) {
+    @Timed("chartas.io")
+    public void writeImageRegion(String fileId, int x, int y, int width, int height, Resource regionData) {
         LockType lockType = LockType.EXCLUSIVE;
+        int fromLockedRow = Math.max(y, 0);
+        int toLockedRow = getLockedRegionEnd(y, height);
 
         try {
-            boolean isLockAcquired = lockerService.acquireLock(fileId, lockType);
+            boolean isLockAcquired = lockerService.acquireLock(fileId, lockType, fromLockedRow, toLockedRow);
 
             if (!isLockAcquired) {
                 throw new FileIsLockedException(fileId);
             }
+            getEntry(fileId);
 
-            String fileName = fileId + "." + imageProperties.getType();
-            try {
-                ImageIO.write(
-                        charta,
-                        imageProperties.getType(),
-                        Files.newOutputStream(Path.of(imageProperties.getParentPath(), fileName))
-                );
-            } catch (IOException ioException) {
-                lockerService.freeLock(fileId, lockType);
+            try (ChartaFile chartaFile = journalService.wrap(fileId, openCharta(fileId, true));
+                 InputStream regionStream = regionData.getInputStream()) {
+                int levelCount = getLevelCount(chartaFile.getWidth(), chartaFile.getHeight());
+
+                acquireLevelLocks(fileId, levelCount, fromLockedRow, toLockedRow);
+                try (ChartaLevels levels = new ChartaLevels(fileId, chartaFile, levelCount)) {
+                    writeRegion(levels, x, y, width, height, regionStream);
+                } finally {
+                    freeLevelLocks(fileId, levelCount, fromLockedRow, toLockedRow);
+                }
+            } catch (BmpFormatException e) {
+                throw new InvalidFragmentDataException(e.getMessage());
+            } catch (IOException e) {
                 throw new ChartaIOException("I/O error occurred while writing a charta");
             }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new ServiceIsUnavailableException("Service is shutting down. Please, retry later");
         } finally {
-            lockerService.freeLock(fileId, lockType);
+            lockerService.freeLock(fileId, lockType, fromLockedRow, toLockedRow);
         }
     }
 
     @Override
-    public ByteArrayOutputStream writeImage(BufferedImage image) {
-        final ByteArrayOutputStream output = new ByteArrayOutputStream() {
-            @Override
-            public synchronized byte[] toByteArray() {
-                return this.buf;
-            }
-        };
+    @Timed("chartas.io")
+    public void writeImageRegions(String fileId, Resource regionsData,
+                                  Consumer<FragmentBatchReader.Fragment> regionValidator) {
+        LockType lockType = LockType.EXCLUSIVE;
+
         try {
-            ImageIO.write(image, imageProperties.getType(), output);
-            return output;
-        } catch (IOException e) {
-            throw new ChartaIOException("I/O error occurred while writing a charta");
+            // Regions of a batch are only known while it's being read, so the charta is locked whole
+            boolean isLockAcquired = lockerService.acquireLock(fileId, lockType);
+
+            if (!isLockAcquired) {
+                throw new FileIsLockedException(fileId);
+            }
+            getEntry(fileId);
+
+            try (ChartaFile chartaFile = journalService.wrap(fileId, openCharta(fileId, true));
+                 InputStream regionsStream = regionsData.getInputStream()) {
+                int levelCount = getLevelCount(chartaFile.getWidth(), chartaFile.getHeight());
+
+                acquireLevelLocks(fileId, levelCount, 0, WHOLE_LEVEL);
+                try (ChartaLevels levels = new ChartaLevels(fileId, chartaFile, levelCount)) {
+                    FragmentBatchReader batchReader = new FragmentBatchReader(regionsStream);
+                    FragmentBatchReader.Fragment region;
+
+                    while ((region = batchReader.readFragment()) != null) {
+                        regionValidator.accept(region);
+                        writeRegion(levels, region.getX(), region.getY(), region.getWidth(), region.getHeight(),
+                                region.getData());
+                    }
+                } finally {
+                    freeLevelLocks(fileId, levelCount, 0, WHOLE_LEVEL);
+                }
+            } catch (BmpFormatException e) {
+                throw new InvalidFragmentDataException(e.getMessage());
+            } catch (IOException e) {
+                throw new ChartaIOException("I/O error occurred while writing a charta");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceIsUnavailableException("Service is shutting down. Please, retry later");
+        } finally {
+            lockerService.freeLock(fileId, lockType);
         }
     }
 
     @Override
+    @Timed("chartas.io")
     public void deleteImage(String fileId) {
         LockType lockType = LockType.EXCLUSIVE;
+
         try {
             boolean isLockAcquired = lockerService.acquireLock(fileId, lockType);
 
             if (!isLockAcquired) {
                 throw new FileIsLockedException(fileId);
             }
+            ChartaCatalog.Entry entry = getEntry(fileId);
 
-            String fileName = fileId + "." + imageProperties.getType();
             try {
-                Files.delete(Path.of(imageProperties.getParentPath(), fileName));
-                lockerService.removeLock(fileId);
+                int levelCount = getLevelCount(entry.getWidth(), entry.getHeight());
+
+                acquireLevelLocks(fileId, levelCount, 0, WHOLE_LEVEL);
+                try {
+                    journalService.discard(fileId);
+                    // The charta goes first, so levels left by a failure are dropped as orphans on the next start
+                    for (int level = 0; level <= levelCount; level++) {
+                        deleteLevel(fileId, level);
+                    }
+                    // The entry goes last, so the charta can't come back from files left by a failure
+                    chartaCatalog.remove(fileId);
+                    chartaVersionService.remove(fileId);
+                } finally {
+                    freeLevelLocks(fileId, levelCount, 0, WHOLE_LEVEL);
+                }
             } catch (IOException e) {
-                lockerService.freeLock(fileId, lockType);
                 throw new ChartaIOException("I/O error occurred while deleting a charta");
             }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new ServiceIsUnavailableException("Service is shutting down. Please, retry later");
+        } finally {
+            // Whoever has been waiting for the lock finds the charta missing
+            lockerService.freeLock(fileId, lockType);
+        }
+    }
+
+    private ChartaFile openCharta(String fileId, boolean writable) throws IOException {
+        return writeBackService.wrap(fileId, chartaStorage.open(fileId, writable));
+    }
+
+    private int getLevelCount(int width, int height) {
+        return Pyramid.getLevelCount(width, height, imageProperties.getPyramid().getMaxLevel());
+    }
+
+    /**
+     * Checks whether the charta or its level exists, which holds as long as the charta is locked
+     *
+     * @return catalog entry of the charta
+     */
+    private ChartaCatalog.Entry getEntry(String fileId) {
+        ChartaCatalog.Entry entry = chartaCatalog.get(Pyramid.getChartaId(fileId));
+        if (entry == null || Pyramid.getLevel(fileId) > getLevelCount(entry.getWidth(), entry.getHeight())) {
+            throw new ChartaNotFoundException(fileId);
+        }
+        return entry;
+    }
+
+    private void createLevels(String fileId, int fromLevel, int toLevel, int width, int height) throws IOException {
+        for (int level = fromLevel; level <= toLevel; level++) {
+            chartaStorage.create(
+                    Pyramid.getLevelId(fileId, level),
+                    Pyramid.getLevelSize(width, level),
+                    Pyramid.getLevelSize(height, level)
+            );
+        }
+    }
+
+    private void deleteLevel(String fileId, int level) throws IOException {
+        String levelId = Pyramid.getLevelId(fileId, level);
+        chartaStorage.delete(levelId);
+        writeBackService.discard(levelId);
+        tileCacheService.invalidate(levelId);
+    }
+
+    /**
+     * Writes the region as a BMP image, pixels outside the charta are black. The region is read bottom-up band
+     * by band, every band is buffered under its own lock and written once the lock is released, so a slow client
+     * never keeps the rows locked. Bands are only consistent by themselves
+     */
+    private void readRegion(String fileId, Rectangle region, OutputStream output) throws IOException {
+        BmpHeader regionHeader = BmpHeader.of(region.width, region.height);
+        int bandHeight = Math.min(Math.max(SENT_BAND_SIZE / regionHeader.getRowSize(), 1), region.height);
+        ByteBuffer band = ByteBuffer.allocate(BmpHeader.SIZE + bandHeight * regionHeader.getRowSize());
+        band.put(regionHeader.toByteBuffer());
+
+        for (int toRow = region.y + region.height; toRow > region.y; toRow -= bandHeight) {
+            readBand(fileId, region, Math.max(toRow - bandHeight, region.y), toRow, band);
+            output.write(band.array(), 0, band.position());
+            band.clear();
+        }
+    }
+
+    /**
+     * Puts the rows {@code [fromRow;toRow)} of the region into the band bottom-up
+     */
+    private void readBand(String fileId, Rectangle region, int fromRow, int toRow, ByteBuffer band)
+            throws IOException {
+        LockType lockType = LockType.SHARED;
+        int toLockedRow = getLockedRegionEnd(fromRow, toRow - fromRow);
+        int fromLockedRow = Math.min(Math.max(fromRow, 0), toLockedRow);
+
+        try {
+            boolean isLockAcquired = lockerService.acquireLock(fileId, lockType, fromLockedRow, toLockedRow);
+
+            if (!isLockAcquired) {
+                throw new FileIsLockedException(fileId);
+            }
+            getEntry(fileId);
+
+            try (ChartaFile chartaFile = tileCacheService.wrap(fileId, openCharta(fileId, false))) {
+                int rowSize = BmpHeader.of(region.width, region.height).getRowSize();
+                int fromX = Math.max(region.x, 0);
+                int toX = Math.max(Math.min(region.x + region.width, chartaFile.getWidth()), fromX);
+                int leadingBytes = (fromX - region.x) * BmpHeader.BYTES_PER_PIXEL;
+                int trailingBytes = rowSize - leadingBytes - (toX - fromX) * BmpHeader.BYTES_PER_PIXEL;
+
+                for (int row = toRow - 1; row >= fromRow; row--) {
+                    if (row < 0 || row >= chartaFile.getHeight()) {
+                        putBlack(band, rowSize);
+                    } else {
+                        putBlack(band, leadingBytes);
+                        band.put(chartaFile.readRow(fromX, row, toX - fromX));
+                        putBlack(band, trailingBytes);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceIsUnavailableException("Service is shutting down. Please, retry later");
+        } finally {
+            lockerService.freeLock(fileId, lockType, fromLockedRow, toLockedRow);
+        }
+    }
+
+    /**
+     * Writes the part of a BMP region lying inside the charta and propagates it to the levels.
+     * The charta and its levels have to be locked by the caller
+     */
+    private void writeRegion(ChartaLevels levels, int x, int y, int width, int height, InputStream regionStream)
+            throws IOException {
+        ChartaFile chartaFile = levels.getCharta();
+        BmpRowReader regionReader = new BmpRowReader(regionStream);
+        BmpHeader regionHeader = regionReader.getHeader();
+
+        // Columns and rows of the region lying outside the image are skipped
+        int fromColumn = Math.max(-x, 0);
+        int toColumn = Math.min(Math.min(width, regionHeader.getWidth()), chartaFile.getWidth() - x);
+        int fromRow = Math.max(-y, 0);
+        int toRow = Math.min(Math.min(height, regionHeader.getHeight()), chartaFile.getHeight() - y);
+        // The rows are locked, so their readers haven't taken the new version yet
+        if (fromColumn < toColumn) {
+            chartaVersionService.advance(levels.getFileId(), y + fromRow, y + toRow);
+        }
+
+        // Rows written before a malformed row is met stay written, so only they are propagated
+        int fromWrittenRow = toRow;
+        int toWrittenRow = fromRow;
+        long writtenBytes = 0;
+        try {
+            while (regionReader.hasNextRow() && fromColumn < toColumn) {
+                int row = regionReader.getNextRowY();
+                if (row < fromRow || row >= toRow) {
+                    regionReader.skipRow();
+                } else {
+                    chartaFile.writeRow(x + fromColumn, y + row, regionReader.readRow(fromColumn, toColumn - fromColumn));
+                    fromWrittenRow = Math.min(fromWrittenRow, row);
+                    toWrittenRow = Math.max(toWrittenRow, row + 1);
+                    writtenBytes += (long) (toColumn - fromColumn) * BmpHeader.BYTES_PER_PIXEL;
+                }
+            }
+        } finally {
+            countBytes("written", writtenBytes);
+            tileCacheService.invalidate(levels.getFileId(), x + fromColumn, y + fromRow,
+                    toColumn - fromColumn, toRow - fromRow);
+            if (fromWrittenRow < toWrittenRow) {
+                levels.update(x + fromColumn, y + fromWrittenRow, x + toColumn, y + toWrittenRow);
+            }
+        }
+    }
+
+    /**
+     * Writes the region {@code [fromX;toX) x [fromY;toY)} of {@code targetLevel} averaging 2x2 pixel blocks
+     * of {@code sourceLevel}. Rows are read and written band by band, the bands are downsampled in parallel
+     */
+    private void downsampleRegion(ChartaFile sourceLevel, ChartaFile targetLevel,
+                                  int fromX, int fromY, int toX, int toY) throws IOException {
+        int sourceFromX = fromX * 2;
+        int sourceWidth = Math.min(toX * 2, sourceLevel.getWidth()) - sourceFromX;
+        int bandHeight = Math.min(DOWNSAMPLED_BAND_HEIGHT, toY - fromY);
+        byte[][] sourceRows = new byte[bandHeight * 2][sourceWidth * BmpHeader.BYTES_PER_PIXEL];
+        byte[][] targetRows = new byte[bandHeight][(toX - fromX) * BmpHeader.BYTES_PER_PIXEL];
+
+        for (int fromBandRow = fromY; fromBandRow < toY; fromBandRow += bandHeight) {
+            int toBandRow = Math.min(fromBandRow + bandHeight, toY);
+            int fromSourceRow = fromBandRow * 2;
+            int toSourceRow = Math.min(toBandRow * 2, sourceLevel.getHeight());
+
+            // Rows are copied as the buffers returned by readRow are only valid until the next call
+            for (int row = fromSourceRow; row < toSourceRow; row++) {
+                sourceLevel.readRow(sourceFromX, row, sourceWidth).get(sourceRows[row - fromSourceRow]);
+            }
+
+            Pyramid.downsampleRows(sourceRows, toSourceRow - fromSourceRow, sourceWidth, targetRows,
+                    toBandRow - fromBandRow, imageProperties.getPyramid().getParallelismThreshold());
+
+            for (int row = fromBandRow; row < toBandRow; row++) {
+                targetLevel.writeRow(fromX, row, ByteBuffer.wrap(targetRows[row - fromBandRow]));
+            }
+        }
+    }
+
+    /**
+     * Locks rows {@code [fromRow;toRow)} of the charta scaled down to every level above level 0 in ascending order
+     * of levels, {@link #WHOLE_LEVEL} as {@code toRow} locks the levels whole. The acquired locks are released
+     * when not all of them can be acquired
+     */
+    private void acquireLevelLocks(String fileId, int levelCount, int fromRow, int toRow) throws InterruptedException {
+        int level = 1;
+        try {
+            for (; level <= levelCount; level++) {
+                if (!acquireLevelLock(fileId, level, fromRow, toRow)) {
+                    throw new FileIsLockedException(fileId);
+                }
+            }
+        } catch (RuntimeException | InterruptedException e) {
+            freeLevelLocks(fileId, level - 1, fromRow, toRow);
+            throw e;
+        }
+    }
+
+    private boolean acquireLevelLock(String fileId, int level, int fromRow, int toRow) throws InterruptedException {
+        String levelId = Pyramid.getLevelId(fileId, level);
+        if (toRow == WHOLE_LEVEL) {
+            return lockerService.acquireLock(levelId, LockType.EXCLUSIVE);
+        }
+        return lockerService.acquireLock(levelId, LockType.EXCLUSIVE, fromRow >> level, Pyramid.getLevelSize(toRow, level));
+    }
+
+    private void freeLevelLocks(String fileId, int levelCount, int fromRow, int toRow) {
+        for (int level = levelCount; level >= 1; level--) {
+            String levelId = Pyramid.getLevelId(fileId, level);
+            if (toRow == WHOLE_LEVEL) {
+                lockerService.freeLock(levelId, LockType.EXCLUSIVE);
+            } else {
+                lockerService.freeLock(levelId, LockType.EXCLUSIVE, fromRow >> level, Pyramid.getLevelSize(toRow, level));
+            }
+        }
+    }
+
+    /**
+     * Region rows below the tallest allowed charta are never touched, so they are left out of the lock
+     */
+    private int getLockedRegionEnd(int y, int height) {
+        return (int) Math.min((long) y + height, imageProperties.getCharta().getMaxDimensions().getHeight());
+    }
+
+    /**
+     * Counts pixel bytes moved between the clients and the chartas, BMP headers of read regions included
+     */
+    private void countBytes(String direction, long bytes) {
+        meterRegistry.counter("chartas.io.bytes", "direction", direction).increment(bytes);
+    }
+
+    private static void putBlack(ByteBuffer buffer, int length) {
+        for (int put = 0; put < length; put += BLACK_PIXELS.length) {
+            buffer.put(BLACK_PIXELS, 0, Math.min(BLACK_PIXELS.length, length - put));
+        }
+    }
+
+    /**
+     * Files of a charta and its levels opened for writing. The file of the charta itself is owned by the caller
+     */
+    private class ChartaLevels implements Closeable {
+        @Getter
+        private final String fileId;
+        private final List<ChartaFile> levelFiles = new ArrayList<>();
+
+        private ChartaLevels(String fileId, ChartaFile chartaFile, int levelCount) throws IOException {
+            this.fileId = fileId;
+            levelFiles.add(chartaFile);
+
+            try {
+                for (int level = 1; level <= levelCount; level++) {
+                    levelFiles.add(openCharta(Pyramid.getLevelId(fileId, level), true));
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private ChartaFile getCharta() {
+            return levelFiles.get(0);
+        }
+
+        /**
+         * Recomputes the region of every level covering the region {@code [fromX;toX) x [fromY;toY)} of the charta
+         * from the level below it
+         */
+        private void update(int fromX, int fromY, int toX, int toY) throws IOException {
+            for (int level = 1; level < levelFiles.size(); level++) {
+                fromX >>= 1;
+                fromY >>= 1;
+                toX = Pyramid.getLevelSize(toX, 1);
+                toY = Pyramid.getLevelSize(toY, 1);
+                downsampleRegion(levelFiles.get(level - 1), levelFiles.get(level), fromX, fromY, toX, toY);
+                tileCacheService.invalidate(Pyramid.getLevelId(fileId, level), fromX, fromY, toX - fromX, toY - fromY);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (int level = levelFiles.size() - 1; level >= 1; level--) {
+                levelFiles.remove(level).close();
+            }
         }
     }
 }
@@ -0,0 +1,476 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaFile;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaStorage;
+import ru.baby_benz.kontur.intern.chartographer.service.JournalService;
+import ru.baby_benz.kontur.intern.chartographer.service.WriteBackService;
+import ru.baby_benz.kontur.intern.chartographer.util.Pyramid;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Journals written rows into numbered segment files next to the chartas. Every record is a big-endian length
+ * of its body, the body and a CRC32 of the body, so a record torn by a crash ends the replay of its segment.
+ * The body is the record type and the charta id as a length-prefixed UTF-8 string, followed by x, y
+ * and the pixels for rows.
+ * <p>
+ * Appends go to the current segment and are forced by the first view closed after them, so concurrent writes
+ * share a single force. A checkpoint starts a new segment right away, flushes the write-back, forces the chartas
+ * journaled into the previous segments and deletes them. A segment is kept along with the ones following it while
+ * a view which has appended to it is opened, since its rows may not have reached the write-back yet.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Service
+public class DefaultJournalService implements JournalService {
+    private static final String SEGMENT_EXTENSION = ".journal";
+    private static final byte ROW_RECORD = 1;
+    private static final byte DISCARD_RECORD = 2;
+    // Length of the body, record type and length of the charta id
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES + Byte.BYTES + Short.BYTES;
+    private static final int ROW_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int CHECKSUM_SIZE = Integer.BYTES;
+
+    private final Object syncLock = new Object();
+    private final Object checkpointLock = new Object();
+    // Segments left by the previous run or started before the current one in the order they were written
+    private final List<Segment> previousSegments = new ArrayList<>();
+    private Segment segment;
+    private long appendedBytes;
+    private long syncedBytes;
+    private ScheduledExecutorService checkpointer;
+
+    private final ImageProperties imageProperties;
+    private final WriteBackService writeBackService;
+    private final ChartaStorage chartaStorage;
+
+    @PostConstruct
+    private void startCheckpointer() {
+        if (isEnabled()) {
+            long interval = imageProperties.getJournal().getCheckpointInterval().toMillis();
+            checkpointer = Executors.newSingleThreadScheduledExecutor();
+            checkpointer.scheduleWithFixedDelay(this::checkpoint, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void stopCheckpointer() throws InterruptedException, IOException {
+        if (checkpointer != null) {
+            checkpointer.shutdown();
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        checkpoint();
+        synchronized (this) {
+            if (segment != null) {
+                segment.channel.close();
+            }
+        }
+    }
+
+    @Override
+    public ChartaFile wrap(String id, ChartaFile chartaFile) {
+        if (!isEnabled()) {
+            return chartaFile;
+        }
+        return new JournaledFile(id, chartaFile);
+    }
+
+    @Override
+    public void discard(String id) throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        ByteBuffer record = createHeader(id, DISCARD_RECORD, 0);
+        append(null, id, record.flip(), ByteBuffer.allocate(0), new CRC32());
+        sync();
+    }
+
+    @Override
+    public void replay(RowWriter rowWriter) throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (checkpointLock) {
+            List<Path> segments = listSegments();
+            synchronized (this) {
+                if (segment != null) {
+                    segments.remove(segment.path);
+                }
+            }
+
+            // Rows of a charta are replayed only if they follow its last discard record
+            Map<String, Long> discardedRecords = new HashMap<>();
+            long recordIndex = 0;
+            for (Path replayedSegment : segments) {
+                try (SegmentReader reader = new SegmentReader(replayedSegment)) {
+                    for (; reader.next(); recordIndex++) {
+                        if (reader.type == DISCARD_RECORD) {
+                            discardedRecords.put(reader.id, recordIndex);
+                        }
+                    }
+                }
+            }
+
+            recordIndex = 0;
+            for (Path replayedSegment : segments) {
+                Segment previousSegment = new Segment(replayedSegment, null);
+                try (SegmentReader reader = new SegmentReader(replayedSegment)) {
+                    for (; reader.next(); recordIndex++) {
+                        previousSegment.ids.add(reader.id);
+                        if (reader.type == ROW_RECORD && recordIndex > discardedRecords.getOrDefault(reader.id, -1L)) {
+                            rowWriter.writeRow(reader.id, reader.x, reader.y, reader.pixels);
+                        }
+                    }
+                }
+                if (previousSegments.stream().noneMatch(listed -> listed.path.equals(replayedSegment))) {
+                    previousSegments.add(previousSegment);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean checkpoint() {
+        if (!isEnabled()) {
+            return true;
+        }
+        synchronized (checkpointLock) {
+            try {
+                startSegment();
+                // Segments go in the order they were written, so the replay of the rest stays consistent
+                int retiredCount = 0;
+                synchronized (this) {
+                    while (retiredCount < previousSegments.size()
+                            && previousSegments.get(retiredCount).openViews == 0) {
+                        retiredCount++;
+                    }
+                }
+                if (retiredCount == 0) {
+                    return previousSegments.isEmpty();
+                }
+                if (!writeBackService.flush()) {
+                    return false;
+                }
+
+                List<Segment> retiredSegments = previousSegments.subList(0, retiredCount);
+                Set<String> retiredIds = new HashSet<>();
+                for (Segment retiredSegment : retiredSegments) {
+                    retiredIds.addAll(retiredSegment.ids);
+                }
+                forceChartas(retiredIds);
+                for (Segment retiredSegment : retiredSegments) {
+                    Files.deleteIfExists(retiredSegment.path);
+                }
+                retiredSegments.clear();
+                return previousSegments.isEmpty();
+            } catch (IOException e) {
+                log.error("I/O error occurred while checkpointing the journal, it's kept until the next checkpoint", e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Closes the current segment without waiting for the opened views, the next append starts a new one
+     */
+    private void startSegment() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (segment != null) {
+                    try (FileChannel closedSegment = segment.channel) {
+                        closedSegment.force(false);
+                    }
+                    previousSegments.add(segment);
+                    segment = null;
+                    syncedBytes = appendedBytes;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces the stored chartas and their levels, which have been written either through the write-back
+     * or straight to the storage. Levels are numbered consecutively, so the first missing one ends the charta
+     */
+    private void forceChartas(Set<String> ids) throws IOException {
+        for (String id : ids) {
+            for (int level = 0; ; level++) {
+                try (ChartaFile chartaFile = chartaStorage.open(Pyramid.getLevelId(id, level), false)) {
+                    chartaFile.force();
+                } catch (NoSuchFileException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends a record made of the header, which is positioned at its start, and the pixels. The segment is kept
+     * by checkpoints until the view, if any, is closed
+     */
+    private void append(JournaledFile view, String id, ByteBuffer header, ByteBuffer pixels, CRC32 checksum)
+            throws IOException {
+        checksum.reset();
+        checksum.update(header.duplicate().position(Integer.BYTES));
+        checksum.update(pixels.duplicate());
+        ByteBuffer[] record = {header, pixels, ByteBuffer.allocate(CHECKSUM_SIZE).putInt(0, (int) checksum.getValue())};
+        long length = header.remaining() + pixels.remaining() + CHECKSUM_SIZE;
+
+        synchronized (this) {
+            if (segment == null) {
+                openSegment();
+            }
+            while (record[2].hasRemaining()) {
+                segment.channel.write(record);
+            }
+            appendedBytes += length;
+            segment.ids.add(id);
+            if (view != null && view.segments.add(segment)) {
+                segment.openViews++;
+            }
+        }
+    }
+
+    /**
+     * Forces the current segment unless everything appended so far has been forced by another view
+     */
+    private void sync() throws IOException {
+        long targetBytes;
+        synchronized (this) {
+            targetBytes = appendedBytes;
+        }
+        synchronized (syncLock) {
+            if (syncedBytes >= targetBytes) {
+                return;
+            }
+            FileChannel forcedSegment;
+            long forcedBytes;
+            synchronized (this) {
+                forcedSegment = segment.channel;
+                forcedBytes = appendedBytes;
+            }
+            forcedSegment.force(false);
+            syncedBytes = forcedBytes;
+        }
+    }
+
+    private void openSegment() throws IOException {
+        long sequence = 0;
+        for (Path existingSegment : listSegments()) {
+            sequence = Math.max(sequence, getSequence(existingSegment));
+        }
+        Path segmentPath = Path.of(imageProperties.getParentPath(), (sequence + 1) + SEGMENT_EXTENSION);
+        segment = new Segment(segmentPath,
+                FileChannel.open(segmentPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+    }
+
+    /**
+     * @return segments in the order they were written
+     */
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(Path.of(imageProperties.getParentPath()))) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_EXTENSION))
+                    .sorted((first, second) -> Long.compare(getSequence(first), getSequence(second)))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static long getSequence(Path segmentPath) {
+        String fileName = segmentPath.getFileName().toString();
+        try {
+            return Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return header of a record of the charta with the length of the body counting {@code pixelsLength},
+     * row headers are left to be filled in
+     */
+    private static ByteBuffer createHeader(String id, byte type, int pixelsLength) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int rowHeaderSize = type == ROW_RECORD ? ROW_HEADER_SIZE : 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + idBytes.length + rowHeaderSize);
+        return header.putInt(header.capacity() - Integer.BYTES + pixelsLength)
+                .put(type)
+                .putShort((short) idBytes.length)
+                .put(idBytes);
+    }
+
+    private boolean isEnabled() {
+        return imageProperties.getJournal().isEnabled();
+    }
+
+    private class JournaledFile implements ChartaFile {
+        private final String id;
+        private final ChartaFile chartaFile;
+        // Header of the row records of the charta, only its length, x and y change from row to row
+        private final ByteBuffer header;
+        private final int rowHeaderPosition;
+        private final CRC32 checksum = new CRC32();
+        // Segments the view has appended to, guarded by the service
+        private final Set<Segment> segments = new HashSet<>();
+        private boolean isClosed;
+
+        private JournaledFile(String id, ChartaFile chartaFile) {
+            this.id = id;
+            this.chartaFile = chartaFile;
+            this.header = createHeader(id, ROW_RECORD, 0);
+            this.rowHeaderPosition = header.position();
+        }
+
+        @Override
+        public int getWidth() {
+            return chartaFile.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return chartaFile.getHeight();
+        }
+
+        @Override
+        public ByteBuffer readRow(int x, int y, int width) throws IOException {
+            return chartaFile.readRow(x, y, width);
+        }
+
+        @Override
+        public void writeRow(int x, int y, ByteBuffer pixels) throws IOException {
+            header.putInt(0, header.capacity() - Integer.BYTES + pixels.remaining())
+                    .position(rowHeaderPosition);
+            header.putInt(x).putInt(y).flip();
+            append(this, id, header, pixels.duplicate(), checksum);
+            chartaFile.writeRow(x, y, pixels);
+        }
+
+        @Override
+        public void force() throws IOException {
+            chartaFile.force();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            try (chartaFile) {
+                sync();
+            } finally {
+                synchronized (DefaultJournalService.this) {
+                    for (Segment appendedSegment : segments) {
+                        appendedSegment.openViews--;
+                    }
+                    segments.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Segment file with the chartas journaled into it and the opened views which have appended to it,
+     * both guarded by the service
+     */
+    private static class Segment {
+        private final Path path;
+        // Closed once the segment is no longer current, none for the segments of the previous run
+        private final FileChannel channel;
+        private final Set<String> ids = new HashSet<>();
+        private int openViews;
+
+        private Segment(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Sequential reader of the records of a segment, which stops at the end of the segment
+     * or at the first torn record
+     */
+    private static class SegmentReader implements Closeable {
+        private final DataInputStream input;
+        private final CRC32 checksum = new CRC32();
+        private long remainingBytes;
+        private byte[] body = new byte[0];
+        private byte type;
+        private String id;
+        private int x;
+        private int y;
+        private ByteBuffer pixels;
+
+        private SegmentReader(Path segmentPath) throws IOException {
+            this.remainingBytes = Files.size(segmentPath);
+            this.input = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentPath)));
+        }
+
+        private boolean next() throws IOException {
+            if (remainingBytes < Integer.BYTES) {
+                return false;
+            }
+            int length = input.readInt();
+            remainingBytes -= Integer.BYTES;
+            if (length < RECORD_HEADER_SIZE - Integer.BYTES || length + CHECKSUM_SIZE > remainingBytes) {
+                return false;
+            }
+
+            if (body.length < length) {
+                body = new byte[length];
+            }
+            input.readFully(body, 0, length);
+            int expectedChecksum = input.readInt();
+            remainingBytes -= length + CHECKSUM_SIZE;
+            checksum.reset();
+            checksum.update(body, 0, length);
+            if ((int) checksum.getValue() != expectedChecksum) {
+                return false;
+            }
+
+            ByteBuffer record = ByteBuffer.wrap(body, 0, length);
+            type = record.get();
+            byte[] idBytes = new byte[record.getShort()];
+            record.get(idBytes);
+            id = new String(idBytes, StandardCharsets.UTF_8);
+            if (type == ROW_RECORD) {
+                x = record.getInt();
+                y = record.getInt();
+                pixels = record.slice();
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+}
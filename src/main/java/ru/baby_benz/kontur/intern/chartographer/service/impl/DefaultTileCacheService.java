@@ -0,0 +1,304 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import lombok.Value;
+import org.springframework.stereotype.Service;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaFile;
+import ru.baby_benz.kontur.intern.chartographer.service.TileCacheService;
+import ru.baby_benz.kontur.intern.chartographer.util.BmpHeader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps square tiles of chartas off-heap, bounded by the configured capacity in bytes.
+ * <p>
+ * Tiles are loaded by readers outside of the cache lock. A tile is only inserted if no write
+ * to its charta has invalidated the cache since the load started, so a tile read concurrently
+ * with a write never outlives the write. The striped locker keeps every tile within one band
+ * of rows, so rows of a tile are never written while a reader holding their band loads it.
+ * <p>
+ * Invalidations are counted only for the chartas which have cached tiles or tiles being loaded,
+ * so the cache keeps nothing about the other chartas.
+ */
+@Service
+public class DefaultTileCacheService implements TileCacheService {
+    private final ImageProperties imageProperties;
+    private final EvictionPolicy<TileKey> evictionPolicy;
+    private final Map<TileKey, ByteBuffer> tiles = new HashMap<>();
+    private final Map<String, CachedCharta> cachedChartas = new HashMap<>();
+    private long cachedBytes;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    public DefaultTileCacheService(ImageProperties imageProperties) {
+        this.imageProperties = imageProperties;
+        this.evictionPolicy = createEvictionPolicy(imageProperties.getTileCache().getEvictionPolicy());
+    }
+
+    @Override
+    public ChartaFile wrap(String id, ChartaFile chartaFile) {
+        if (getCapacity() == 0) {
+            return chartaFile;
+        }
+        return new CachedFile(id, chartaFile);
+    }
+
+    @Override
+    public synchronized void invalidate(String id, int x, int y, int width, int height) {
+        CachedCharta cachedCharta = cachedChartas.get(id);
+        if (width <= 0 || height <= 0 || cachedCharta == null) {
+            return;
+        }
+        cachedCharta.version++;
+
+        int tileSize = getTileSize();
+        for (int tileY = Math.max(y, 0) / tileSize; tileY <= (y + height - 1) / tileSize; tileY++) {
+            for (int tileX = Math.max(x, 0) / tileSize; tileX <= (x + width - 1) / tileSize; tileX++) {
+                remove(new TileKey(id, tileX, tileY));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void invalidate(String id) {
+        CachedCharta cachedCharta = cachedChartas.get(id);
+        if (cachedCharta == null) {
+            return;
+        }
+        cachedCharta.version++;
+
+        Iterator<Map.Entry<TileKey, ByteBuffer>> iterator = tiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<TileKey, ByteBuffer> entry = iterator.next();
+            if (entry.getKey().getId().equals(id)) {
+                evictionPolicy.onRemove(entry.getKey());
+                cachedBytes -= entry.getValue().capacity();
+                iterator.remove();
+                cachedCharta.tileCount--;
+            }
+        }
+        removeIfUnused(id, cachedCharta);
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    private synchronized ByteBuffer get(TileKey key) {
+        ByteBuffer tile = tiles.get(key);
+        if (tile != null) {
+            evictionPolicy.onAccess(key);
+        }
+        return tile;
+    }
+
+    /**
+     * @return version of the charta the tile load starts at
+     */
+    private synchronized long startLoad(String id) {
+        CachedCharta cachedCharta = cachedChartas.computeIfAbsent(id, key -> new CachedCharta());
+        cachedCharta.loadCount++;
+        return cachedCharta.version;
+    }
+
+    /**
+     * @param tile loaded tile or null if the load has failed
+     * @return cached tile for the key, which is the given one unless the tile has been cached meanwhile
+     */
+    private synchronized ByteBuffer finishLoad(TileKey key, ByteBuffer tile, long loadVersion) {
+        CachedCharta cachedCharta = cachedChartas.get(key.getId());
+        try {
+            ByteBuffer cachedTile = tiles.get(key);
+            if (cachedTile != null) {
+                return cachedTile;
+            }
+            if (tile == null || loadVersion != cachedCharta.version || tile.capacity() > getCapacity()) {
+                return tile;
+            }
+
+            while (cachedBytes + tile.capacity() > getCapacity()) {
+                remove(evictionPolicy.getVictim());
+            }
+            tiles.put(key, tile);
+            evictionPolicy.onInsert(key);
+            cachedBytes += tile.capacity();
+            cachedCharta.tileCount++;
+            return tile;
+        } finally {
+            // The load is counted until the tile is inserted, so evicting other tiles of the charta keeps it
+            cachedCharta.loadCount--;
+            removeIfUnused(key.getId(), cachedCharta);
+        }
+    }
+
+    private void remove(TileKey key) {
+        ByteBuffer tile = tiles.remove(key);
+        if (tile != null) {
+            evictionPolicy.onRemove(key);
+            cachedBytes -= tile.capacity();
+            CachedCharta cachedCharta = cachedChartas.get(key.getId());
+            cachedCharta.tileCount--;
+            removeIfUnused(key.getId(), cachedCharta);
+        }
+    }
+
+    /**
+     * Forgets the charta once it has neither cached tiles nor tiles being loaded, no load can then be
+     * confused by its version starting over
+     */
+    private void removeIfUnused(String id, CachedCharta cachedCharta) {
+        if (cachedCharta.tileCount == 0 && cachedCharta.loadCount == 0) {
+            cachedChartas.remove(id);
+        }
+    }
+
+    private long getCapacity() {
+        return imageProperties.getTileCache().getCapacity().toBytes();
+    }
+
+    private int getTileSize() {
+        return imageProperties.getStorage().getTileSize();
+    }
+
+    private static EvictionPolicy<TileKey> createEvictionPolicy(String name) {
+        switch (name) {
+            case "lru":
+                return new LruEvictionPolicy<>();
+            case "lfu":
+                return new LfuEvictionPolicy<>();
+            default:
+                throw new IllegalArgumentException("Unknown tile cache eviction policy " + name);
+        }
+    }
+
+    @Value
+    private static class TileKey {
+        String id;
+        int tileX;
+        int tileY;
+    }
+
+    private static class CachedCharta {
+        // Number of invalidations since the charta has been cached
+        private long version;
+        private int tileCount;
+        private int loadCount;
+    }
+
+    private class CachedFile implements ChartaFile {
+        private final String id;
+        private final ChartaFile chartaFile;
+        private final int tileSize = getTileSize();
+        // Views of the tiles of the current tile row, reused across rows
+        private final Map<Integer, ByteBuffer> tileRow = new HashMap<>();
+        private int tileRowIndex = -1;
+        private ByteBuffer rowBuffer = ByteBuffer.allocate(0);
+
+        private CachedFile(String id, ChartaFile chartaFile) {
+            this.id = id;
+            this.chartaFile = chartaFile;
+        }
+
+        @Override
+        public int getWidth() {
+            return chartaFile.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return chartaFile.getHeight();
+        }
+
+        @Override
+        public ByteBuffer readRow(int x, int y, int width) throws IOException {
+            if (x < 0 || y < 0 || y >= getHeight() || width < 0 || x + width > getWidth()) {
+                throw new IllegalArgumentException("Row segment (x:=" + x + ",y:=" + y + ",width:=" + width
+                        + ") is out of the image bounds");
+            }
+            if (y / tileSize != tileRowIndex) {
+                tileRow.clear();
+                tileRowIndex = y / tileSize;
+            }
+
+            int length = width * BmpHeader.BYTES_PER_PIXEL;
+            if (rowBuffer.capacity() < length) {
+                rowBuffer = ByteBuffer.allocate(length);
+            }
+            rowBuffer.clear().limit(length);
+
+            int rowInTile = y % tileSize;
+            for (int column = x; column < x + width; ) {
+                int tileX = column / tileSize;
+                int tileWidth = Math.min(tileSize, getWidth() - tileX * tileSize);
+                int segmentWidth = Math.min(tileX * tileSize + tileWidth, x + width) - column;
+                int offset = (rowInTile * tileWidth + column % tileSize) * BmpHeader.BYTES_PER_PIXEL;
+
+                ByteBuffer tile = getTile(tileX, tileWidth);
+                tile.limit(offset + segmentWidth * BmpHeader.BYTES_PER_PIXEL).position(offset);
+                rowBuffer.put(tile);
+                column += segmentWidth;
+            }
+
+            return rowBuffer.flip();
+        }
+
+        private ByteBuffer getTile(int tileX, int tileWidth) throws IOException {
+            ByteBuffer tile = tileRow.get(tileX);
+            if (tile == null) {
+                TileKey key = new TileKey(id, tileX, tileRowIndex);
+                ByteBuffer cachedTile = get(key);
+                if (cachedTile != null) {
+                    hitCount.incrementAndGet();
+                } else {
+                    missCount.incrementAndGet();
+                    long loadVersion = startLoad(id);
+                    ByteBuffer loadedTile = null;
+                    try {
+                        loadedTile = loadTile(tileX, tileWidth);
+                    } finally {
+                        cachedTile = finishLoad(key, loadedTile, loadVersion);
+                    }
+                }
+                tile = cachedTile.duplicate();
+                tileRow.put(tileX, tile);
+            }
+            return tile.clear();
+        }
+
+        private ByteBuffer loadTile(int tileX, int tileWidth) throws IOException {
+            int fromY = tileRowIndex * tileSize;
+            int tileHeight = Math.min(tileSize, getHeight() - fromY);
+            ByteBuffer tile = ByteBuffer.allocateDirect(tileWidth * tileHeight * BmpHeader.BYTES_PER_PIXEL);
+            for (int row = fromY; row < fromY + tileHeight; row++) {
+                tile.put(chartaFile.readRow(tileX * tileSize, row, tileWidth));
+            }
+            return tile.flip();
+        }
+
+        @Override
+        public void writeRow(int x, int y, ByteBuffer pixels) {
+            throw new UnsupportedOperationException("Chartas read through the tile cache are read-only");
+        }
+
+        @Override
+        public void force() throws IOException {
+            chartaFile.force();
+        }
+
+        @Override
+        public void close() throws IOException {
+            chartaFile.close();
+        }
+    }
+}
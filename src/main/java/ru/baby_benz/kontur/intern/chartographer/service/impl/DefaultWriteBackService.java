@@ -0,0 +1,292 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaFile;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaStorage;
+import ru.baby_benz.kontur.intern.chartographer.service.LockerService;
+import ru.baby_benz.kontur.intern.chartographer.service.WriteBackService;
+import ru.baby_benz.kontur.intern.chartographer.util.BmpHeader;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps written rows of chartas in memory as whole charta rows with a dirty span of columns, so that
+ * adjacent fragments uploaded one after another end up in a single write per row.
+ * <p>
+ * Dirty rows are written by a background flusher, which locks the rows being flushed exclusively
+ * through {@link LockerService}. Readers and writers of a row hold its lock as well, so a row is never
+ * read or changed while it is being moved to the storage.
+ * Once the memory budget is spent, rows which aren't dirty yet are written straight through.
+ * A zero budget turns the write-back off.
+ * <p>
+ * Only chartas with dirty rows are tracked, a charta is added by its first dirty row and removed once a flush
+ * leaves it clean, so views which only read take no memory.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Service
+public class DefaultWriteBackService implements WriteBackService {
+    private final ConcurrentMap<String, ConcurrentNavigableMap<Integer, DirtyRow>> dirtyChartas =
+            new ConcurrentHashMap<>();
+    private final AtomicLong dirtyBytes = new AtomicLong();
+    private final AtomicBoolean isFlushRequested = new AtomicBoolean();
+    private ScheduledExecutorService flusher;
+
+    private final ImageProperties imageProperties;
+    private final LockerService lockerService;
+    private final ChartaStorage chartaStorage;
+
+    @PostConstruct
+    private void startFlusher() {
+        if (isEnabled()) {
+            long interval = imageProperties.getWriteBack().getFlushInterval().toMillis();
+            flusher = Executors.newSingleThreadScheduledExecutor();
+            flusher.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void stopFlusher() throws InterruptedException {
+        if (flusher != null) {
+            flusher.shutdown();
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        flush();
+    }
+
+    @Override
+    public ChartaFile wrap(String id, ChartaFile chartaFile) {
+        if (!isEnabled()) {
+            return chartaFile;
+        }
+        return new WriteBackFile(id, chartaFile);
+    }
+
+    @Override
+    public void discard(String id) {
+        Map<Integer, DirtyRow> dirtyRows = dirtyChartas.remove(id);
+        if (dirtyRows != null) {
+            for (DirtyRow dirtyRow : dirtyRows.values()) {
+                dirtyBytes.addAndGet(-dirtyRow.pixels.length);
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean flush() {
+        isFlushRequested.set(false);
+        boolean isFlushed = true;
+        for (Map.Entry<String, ConcurrentNavigableMap<Integer, DirtyRow>> entry : dirtyChartas.entrySet()) {
+            try {
+                isFlushed &= flush(entry.getKey(), entry.getValue());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return isFlushed;
+    }
+
+    private boolean flush(String id, ConcurrentNavigableMap<Integer, DirtyRow> dirtyRows) throws InterruptedException {
+        if (dirtyRows.isEmpty()) {
+            return true;
+        }
+        int fromRow = dirtyRows.firstKey();
+        int toRow = dirtyRows.lastKey() + 1;
+        LockType lockType = LockType.EXCLUSIVE;
+
+        if (!lockerService.acquireLock(id, lockType, fromRow, toRow)) {
+            // Rows are busy, they will be flushed next time
+            return false;
+        }
+
+        if (dirtyChartas.get(id) != dirtyRows) {
+            // The charta has been replaced or deleted while the lock was awaited
+            lockerService.freeLock(id, lockType, fromRow, toRow);
+            return true;
+        }
+
+        try (ChartaFile chartaFile = chartaStorage.open(id, true)) {
+            Map<Integer, DirtyRow> flushedRows = dirtyRows.subMap(fromRow, toRow);
+            for (Map.Entry<Integer, DirtyRow> entry : flushedRows.entrySet()) {
+                DirtyRow dirtyRow = entry.getValue();
+                chartaFile.writeRow(dirtyRow.fromX, entry.getKey(), dirtyRow.getDirtyPixels());
+            }
+            chartaFile.force();
+
+            for (DirtyRow dirtyRow : flushedRows.values()) {
+                dirtyBytes.addAndGet(-dirtyRow.pixels.length);
+            }
+            flushedRows.clear();
+            // Rows are added along with their charta, so the charta stays if a row has been added meanwhile
+            dirtyChartas.computeIfPresent(id, (key, rows) -> rows.isEmpty() ? null : rows);
+            return true;
+        } catch (IOException e) {
+            log.error("I/O error occurred while flushing charta " + id + ", dirty rows are kept in memory", e);
+            return false;
+        } finally {
+            lockerService.freeLock(id, lockType, fromRow, toRow);
+        }
+    }
+
+    private boolean reserve(int length) {
+        long budget = imageProperties.getWriteBack().getMemoryBudget().toBytes();
+        long reserved;
+        do {
+            reserved = dirtyBytes.get();
+            if (reserved + length > budget) {
+                requestFlush();
+                return false;
+            }
+        } while (!dirtyBytes.compareAndSet(reserved, reserved + length));
+        return true;
+    }
+
+    private void requestFlush() {
+        if (flusher != null && isFlushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flush);
+            } catch (RejectedExecutionException ignore) {
+            }
+        }
+    }
+
+    private boolean isEnabled() {
+        return imageProperties.getWriteBack().getMemoryBudget().toBytes() > 0;
+    }
+
+    private static class DirtyRow {
+        // Pixels of the whole charta row, only the columns [fromX, toX) are meaningful
+        private final byte[] pixels;
+        private int fromX;
+        private int toX;
+
+        private DirtyRow(int width, int fromX, int toX) {
+            this.pixels = new byte[width * BmpHeader.BYTES_PER_PIXEL];
+            this.fromX = fromX;
+            this.toX = toX;
+        }
+
+        private ByteBuffer getDirtyPixels() {
+            return ByteBuffer.wrap(pixels, fromX * BmpHeader.BYTES_PER_PIXEL,
+                    (toX - fromX) * BmpHeader.BYTES_PER_PIXEL);
+        }
+    }
+
+    @RequiredArgsConstructor
+    private class WriteBackFile implements ChartaFile {
+        private final String id;
+        private final ChartaFile chartaFile;
+        private ByteBuffer rowBuffer = ByteBuffer.allocate(0);
+
+        @Override
+        public int getWidth() {
+            return chartaFile.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return chartaFile.getHeight();
+        }
+
+        @Override
+        public ByteBuffer readRow(int x, int y, int width) throws IOException {
+            DirtyRow dirtyRow = getDirtyRow(y);
+            int toX = x + width;
+            if (dirtyRow == null || dirtyRow.toX <= x || dirtyRow.fromX >= toX) {
+                return chartaFile.readRow(x, y, width);
+            }
+            if (dirtyRow.fromX <= x && dirtyRow.toX >= toX) {
+                return ByteBuffer.wrap(dirtyRow.pixels, x * BmpHeader.BYTES_PER_PIXEL,
+                        width * BmpHeader.BYTES_PER_PIXEL).asReadOnlyBuffer();
+            }
+
+            // The segment is partially dirty, the dirty part is laid over the stored one
+            int length = width * BmpHeader.BYTES_PER_PIXEL;
+            if (rowBuffer.capacity() < length) {
+                rowBuffer = ByteBuffer.allocate(length);
+            }
+            rowBuffer.clear().limit(length);
+            rowBuffer.put(chartaFile.readRow(x, y, width));
+
+            int fromDirtyX = Math.max(x, dirtyRow.fromX);
+            int toDirtyX = Math.min(toX, dirtyRow.toX);
+            rowBuffer.position((fromDirtyX - x) * BmpHeader.BYTES_PER_PIXEL);
+            rowBuffer.put(dirtyRow.pixels, fromDirtyX * BmpHeader.BYTES_PER_PIXEL,
+                    (toDirtyX - fromDirtyX) * BmpHeader.BYTES_PER_PIXEL);
+            return rowBuffer.position(0);
+        }
+
+        @Override
+        public void writeRow(int x, int y, ByteBuffer pixels) throws IOException {
+            if (pixels.remaining() % BmpHeader.BYTES_PER_PIXEL != 0) {
+                throw new IllegalArgumentException("Row segment length must be a multiple of the pixel size");
+            }
+            int toX = x + pixels.remaining() / BmpHeader.BYTES_PER_PIXEL;
+            if (x < 0 || y < 0 || y >= getHeight() || toX > getWidth()) {
+                throw new IllegalArgumentException("Row segment (x:=" + x + ",y:=" + y + ",width:=" + (toX - x)
+                        + ") is out of the image bounds");
+            }
+
+            DirtyRow dirtyRow = getDirtyRow(y);
+            if (dirtyRow == null) {
+                if (!reserve(getWidth() * BmpHeader.BYTES_PER_PIXEL)) {
+                    chartaFile.writeRow(x, y, pixels);
+                    return;
+                }
+                DirtyRow addedRow = new DirtyRow(getWidth(), x, toX);
+                dirtyChartas.compute(id, (key, rows) -> {
+                    ConcurrentNavigableMap<Integer, DirtyRow> dirtyRows = rows == null
+                            ? new ConcurrentSkipListMap<>()
+                            : rows;
+                    dirtyRows.put(y, addedRow);
+                    return dirtyRows;
+                });
+                dirtyRow = addedRow;
+            } else {
+                // Columns between the dirty span and the segment are filled from the storage to keep the span whole
+                if (toX < dirtyRow.fromX) {
+                    fillFromStorage(dirtyRow, toX, y, dirtyRow.fromX);
+                } else if (x > dirtyRow.toX) {
+                    fillFromStorage(dirtyRow, dirtyRow.toX, y, x);
+                }
+                dirtyRow.fromX = Math.min(dirtyRow.fromX, x);
+                dirtyRow.toX = Math.max(dirtyRow.toX, toX);
+            }
+            pixels.get(dirtyRow.pixels, x * BmpHeader.BYTES_PER_PIXEL, pixels.remaining());
+        }
+
+        /**
+         * The dirty rows are looked up on every access, since a flush may remove them along with the charta
+         */
+        private DirtyRow getDirtyRow(int y) {
+            Map<Integer, DirtyRow> dirtyRows = dirtyChartas.get(id);
+            return dirtyRows == null ? null : dirtyRows.get(y);
+        }
+
+        private void fillFromStorage(DirtyRow dirtyRow, int fromX, int y, int toX) throws IOException {
+            chartaFile.readRow(fromX, y, toX - fromX)
+                    .get(dirtyRow.pixels, fromX * BmpHeader.BYTES_PER_PIXEL, (toX - fromX) * BmpHeader.BYTES_PER_PIXEL);
+        }
+
+        @Override
+        public void force() throws IOException {
+            chartaFile.force();
+        }
+
+        @Override
+        public void close() throws IOException {
+            chartaFile.close();
+        }
+    }
+}
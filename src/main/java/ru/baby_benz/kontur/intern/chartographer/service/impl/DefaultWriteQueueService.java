@@ -0,0 +1,176 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+import ru.baby_benz.kontur.intern.chartographer.configuration.AsyncProperties;
+import ru.baby_benz.kontur.intern.chartographer.configuration.LockProperties;
+import ru.baby_benz.kontur.intern.chartographer.controller.exception.WriteQueueIsFullException;
+import ru.baby_benz.kontur.intern.chartographer.service.WriteQueueService;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps a bounded queue of commands per charta. A command is dispatched to the executor once no command queued
+ * before it changes any of its bands of rows, which are the bands the charta is locked by, so commands changing
+ * disjoint bands run in parallel and the others run in arrival order. A task keeps running the commands its command
+ * has let through, so a queue of commands changing the same bands is drained by a single task.
+ * <p>
+ * Writers of a charta don't compete for the locks of the same bands, so they neither wait for each other nor fail
+ * after the lock timeout. Readers aren't queued and only wait for the command being applied to the rows they read.
+ */
+@RequiredArgsConstructor
+@Service
+public class DefaultWriteQueueService implements WriteQueueService {
+    private final AsyncProperties asyncProperties;
+    private final LockProperties lockProperties;
+    private final Executor chartasExecutor;
+    // Queues are only changed inside of the atomic operations of the map and are removed once they are drained
+    private final ConcurrentMap<String, WriteQueue> queueMap = new ConcurrentHashMap<>();
+
+    @Override
+    public CompletableFuture<Void> submit(String id, Runnable command) {
+        return submit(new Command(id, 0, Integer.MAX_VALUE, command));
+    }
+
+    /**
+     * Rows above the charta belong to its first band. An empty range of rows still takes the band it starts in,
+     * so the command keeps its place among the commands changing the whole charta
+     */
+    @Override
+    public CompletableFuture<Void> submit(String id, int fromRow, int toRow, Runnable command) {
+        int bandHeight = Math.max(lockProperties.getBandHeight(), 1);
+        int fromBand = Math.max(fromRow, 0) / bandHeight;
+        int toBand = toRow > Math.max(fromRow, 0) ? (toRow - 1) / bandHeight + 1 : fromBand + 1;
+        return submit(new Command(id, fromBand, toBand, command));
+    }
+
+    private CompletableFuture<Void> submit(Command command) {
+        queueMap.compute(command.id, (key, queue) -> {
+            if (queue == null) {
+                queue = new WriteQueue();
+            }
+            if (queue.commands.size() >= asyncProperties.getWriteQueueDepth()) {
+                throw new WriteQueueIsFullException(command.id, queue.commands.size());
+            }
+            command.isDispatched = queue.isFree(queue.commands.size(), command);
+            queue.commands.add(command);
+            return queue;
+        });
+
+        if (command.isDispatched) {
+            dispatch(command);
+        }
+        return command.result;
+    }
+
+    private void dispatch(Command command) {
+        try {
+            chartasExecutor.execute(() -> drain(command));
+        } catch (RejectedExecutionException e) {
+            // Nothing would run the command, so the commands it lets through are rejected as well
+            command.result.completeExceptionally(e);
+            for (Command nextCommand : finish(command)) {
+                dispatch(nextCommand);
+            }
+        }
+    }
+
+    private void drain(Command command) {
+        while (command != null) {
+            command.run();
+
+            Iterator<Command> nextCommands = finish(command).iterator();
+            command = nextCommands.hasNext() ? nextCommands.next() : null;
+            nextCommands.forEachRemaining(this::dispatch);
+        }
+    }
+
+    /**
+     * Removes the command from its queue
+     *
+     * @return commands let through by the removal, which are to be dispatched by the caller
+     */
+    private List<Command> finish(Command command) {
+        List<Command> nextCommands = new ArrayList<>();
+        queueMap.computeIfPresent(command.id, (key, queue) -> {
+            queue.commands.remove(command);
+            for (int index = 0; index < queue.commands.size(); index++) {
+                Command nextCommand = queue.commands.get(index);
+                if (!nextCommand.isDispatched && queue.isFree(index, nextCommand)) {
+                    nextCommand.isDispatched = true;
+                    nextCommands.add(nextCommand);
+                }
+            }
+            return queue.commands.isEmpty() ? null : queue;
+        });
+        return nextCommands;
+    }
+
+    private static class WriteQueue {
+        // Commands in arrival order, including the dispatched ones until they have run
+        private final List<Command> commands = new ArrayList<>();
+
+        /**
+         * @return whether none of the commands queued before the index changes the bands of the command
+         */
+        private boolean isFree(int index, Command command) {
+            for (int earlierIndex = 0; earlierIndex < index; earlierIndex++) {
+                Command earlierCommand = commands.get(earlierIndex);
+                if (earlierCommand.fromBand < command.toBand && command.fromBand < earlierCommand.toBand) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class Command {
+        private final String id;
+        private final int fromBand;
+        // Band following the last changed band
+        private final int toBand;
+        private final Runnable action;
+        private final CommandResult result = new CommandResult();
+        // Guarded by the queue map like the queue the command is in
+        private boolean isDispatched;
+
+        private void run() {
+            if (!result.start()) {
+                // The command has been cancelled while it was queued
+                return;
+            }
+            try {
+                action.run();
+                result.complete(null);
+            } catch (RuntimeException | Error e) {
+                // The queue has to keep draining whatever the command throws
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Result which can only be cancelled until its command starts
+     */
+    private static class CommandResult extends CompletableFuture<Void> {
+        private final AtomicBoolean isStarted = new AtomicBoolean();
+
+        private boolean start() {
+            return isStarted.compareAndSet(false, true);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return start() && super.cancel(mayInterruptIfRunning);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+/**
+ * Chooses which cache entry to drop when the cache is full. Implementations aren't thread-safe,
+ * the cache calls them under its own lock.
+ */
+public interface EvictionPolicy<K> {
+    void onInsert(K key);
+
+    void onAccess(K key);
+
+    void onRemove(K key);
+
+    /**
+     * @return key to be evicted next or {@code null} when nothing is tracked
+     */
+    K getVictim();
+}
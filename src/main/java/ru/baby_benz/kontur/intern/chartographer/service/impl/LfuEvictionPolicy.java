@@ -0,0 +1,52 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Evicts the entry with the fewest accesses, the least recently used one among equally frequent entries.
+ */
+public class LfuEvictionPolicy<K> implements EvictionPolicy<K> {
+    private final Map<K, Long> frequencies = new HashMap<>();
+    private final TreeMap<Long, Set<K>> keysByFrequency = new TreeMap<>();
+
+    @Override
+    public void onInsert(K key) {
+        frequencies.put(key, 1L);
+        keysByFrequency.computeIfAbsent(1L, frequency -> new LinkedHashSet<>()).add(key);
+    }
+
+    @Override
+    public void onAccess(K key) {
+        Long frequency = frequencies.get(key);
+        if (frequency != null) {
+            removeFromFrequency(key, frequency);
+            frequencies.put(key, frequency + 1);
+            keysByFrequency.computeIfAbsent(frequency + 1, newFrequency -> new LinkedHashSet<>()).add(key);
+        }
+    }
+
+    @Override
+    public void onRemove(K key) {
+        Long frequency = frequencies.remove(key);
+        if (frequency != null) {
+            removeFromFrequency(key, frequency);
+        }
+    }
+
+    @Override
+    public K getVictim() {
+        return keysByFrequency.isEmpty() ? null : keysByFrequency.firstEntry().getValue().iterator().next();
+    }
+
+    private void removeFromFrequency(K key, long frequency) {
+        Set<K> keys = keysByFrequency.get(frequency);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            keysByFrequency.remove(frequency);
+        }
+    }
+}
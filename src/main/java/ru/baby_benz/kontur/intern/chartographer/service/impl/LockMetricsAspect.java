@@ -0,0 +1,90 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.After;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long chartas locks are waited for and held, per {@link LockType}.
+ * <p>
+ * Locks are acquired and freed by the same thread, so the acquisition times of the held locks are kept per thread.
+ * A lock acquired again by the thread holding it is measured from its first acquisition until it's freed
+ * for the first time.
+ */
+@Aspect
+@Component
+@RequiredArgsConstructor
+public class LockMetricsAspect {
+    private static final String LOCKER_SERVICE = "ru.baby_benz.kontur.intern.chartographer.service.LockerService";
+
+    private final MeterRegistry meterRegistry;
+    private final ThreadLocal<Map<HeldLock, Long>> heldLocks = ThreadLocal.withInitial(HashMap::new);
+
+    @Around("execution(boolean " + LOCKER_SERVICE + ".acquireLock(..))")
+    public Object measureWait(ProceedingJoinPoint joinPoint) throws Throwable {
+        HeldLock lock = HeldLock.of(joinPoint.getArgs());
+        long startTime = System.nanoTime();
+        boolean isAcquired = false;
+        try {
+            isAcquired = (boolean) joinPoint.proceed();
+            return isAcquired;
+        } finally {
+            long acquisitionTime = System.nanoTime();
+            meterRegistry.timer("chartas.lock.wait", "type", lock.getLockType().name(),
+                            "acquired", String.valueOf(isAcquired))
+                    .record(acquisitionTime - startTime, TimeUnit.NANOSECONDS);
+            if (isAcquired) {
+                heldLocks.get().putIfAbsent(lock, acquisitionTime);
+            }
+        }
+    }
+
+    /**
+     * Locks are freed after failed acquisitions as well, such locks aren't held and aren't measured
+     */
+    @After("execution(void " + LOCKER_SERVICE + ".freeLock(..))")
+    public void measureHold(JoinPoint joinPoint) {
+        HeldLock lock = HeldLock.of(joinPoint.getArgs());
+        Long acquisitionTime = heldLocks.get().remove(lock);
+        if (acquisitionTime != null) {
+            recordHold(lock, acquisitionTime);
+        }
+    }
+
+    private void recordHold(HeldLock lock, long acquisitionTime) {
+        meterRegistry.timer("chartas.lock.hold", "type", lock.getLockType().name())
+                .record(System.nanoTime() - acquisitionTime, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Lock of a range of rows, whole-charta locks have no rows
+     */
+    @Value
+    private static class HeldLock {
+        private static final int NO_ROW = -1;
+
+        String id;
+        LockType lockType;
+        int fromRow;
+        int toRow;
+
+        private static HeldLock of(Object[] lockArgs) {
+            String id = (String) lockArgs[0];
+            LockType lockType = (LockType) lockArgs[1];
+            if (lockArgs.length == 4) {
+                return new HeldLock(id, lockType, (int) lockArgs[2], (int) lockArgs[3]);
+            }
+            return new HeldLock(id, lockType, NO_ROW, NO_ROW);
+        }
+    }
+}
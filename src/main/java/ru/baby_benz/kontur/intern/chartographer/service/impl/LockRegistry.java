@@ -0,0 +1,49 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Locks which exist only while they are held or waited for, so the registry takes as much memory
+ * as there are chartas in use rather than stored.
+ * <p>
+ * Every attempt to acquire a lock retains it beforehand, the lock is released once it's freed or the attempt
+ * fails. A lock is dropped with its last retainer, nobody holds or waits for it by then, and whoever comes next
+ * gets a new lock. Retaining and releasing a key are atomic with respect to each other, so everyone who locks
+ * a key at the same time shares one lock.
+ */
+class LockRegistry<K> {
+    private final ConcurrentMap<K, RetainedLock> locks = new ConcurrentHashMap<>();
+
+    ReadWriteLock retain(K key) {
+        return locks.compute(key, (k, retainedLock) -> {
+            RetainedLock lock = retainedLock == null ? new RetainedLock() : retainedLock;
+            lock.retainCount++;
+            return lock;
+        }).lock;
+    }
+
+    /**
+     * @return lock of the key or null if nobody has retained it
+     */
+    ReadWriteLock get(K key) {
+        RetainedLock retainedLock = locks.get(key);
+        return retainedLock == null ? null : retainedLock.lock;
+    }
+
+    void release(K key) {
+        locks.computeIfPresent(key, (k, retainedLock) -> --retainedLock.retainCount == 0 ? null : retainedLock);
+    }
+
+    int size() {
+        return locks.size();
+    }
+
+    private static class RetainedLock {
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        // Changed only inside the atomic operations of the map on the key
+        private int retainCount;
+    }
+}
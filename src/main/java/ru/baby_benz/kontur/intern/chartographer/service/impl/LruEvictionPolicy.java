@@ -0,0 +1,31 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Evicts the entry which hasn't been accessed for the longest time.
+ */
+public class LruEvictionPolicy<K> implements EvictionPolicy<K> {
+    private final Map<K, Boolean> accessOrder = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public void onInsert(K key) {
+        accessOrder.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    public void onAccess(K key) {
+        accessOrder.get(key);
+    }
+
+    @Override
+    public void onRemove(K key) {
+        accessOrder.remove(key);
+    }
+
+    @Override
+    public K getVictim() {
+        return accessOrder.isEmpty() ? null : accessOrder.keySet().iterator().next();
+    }
+}
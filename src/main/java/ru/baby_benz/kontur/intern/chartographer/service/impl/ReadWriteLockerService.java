@@ -1,57 +1,60 @@
 package ru.baby_benz.kontur.intern.chartographer.service.impl;
 
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
-import ru.baby_benz.kontur.intern.chartographer.controller.exception.ChartaNotFoundException;
 import ru.baby_benz.kontur.intern.chartographer.service.LockerService;
 
 import java.time.Duration;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Locks chartas as a whole. Locks are kept in a {@link LockRegistry} only while they are in use, existence
+ * of chartas is left to the callers.
+ */
 @Service
+@ConditionalOnProperty(prefix = "service.lock", name = "type", havingValue = "charta")
 public class ReadWriteLockerService implements LockerService {
-    private final ConcurrentMap<String, ReadWriteLock> lockMap = new ConcurrentHashMap<>();
-    private static final Duration TRYING_SECONDS_DURATION = Duration.ofSeconds(10);
-
-    @Override
-    public void addLock(String id) {
-        lockMap.put(id, new ReentrantReadWriteLock());
-    }
+    private final LockRegistry<String> lockRegistry = new LockRegistry<>();
+    protected static final Duration TRYING_SECONDS_DURATION = Duration.ofSeconds(10);
 
     @Override
     public boolean acquireLock(String id, LockType lockType) throws InterruptedException {
-        ReadWriteLock lock = lockMap.get(id);
-        if (lock != null) {
-            if (lockType.equals(LockType.SHARED)) {
-                return lock.readLock().tryLock(TRYING_SECONDS_DURATION.getSeconds(), TimeUnit.SECONDS);
-            } else {
-                return lock.writeLock().tryLock(TRYING_SECONDS_DURATION.getSeconds(), TimeUnit.SECONDS);
+        Lock lock = getLock(lockRegistry.retain(id), lockType);
+        boolean isAcquired = false;
+        try {
+            isAcquired = lock.tryLock(TRYING_SECONDS_DURATION.getSeconds(), TimeUnit.SECONDS);
+        } finally {
+            if (!isAcquired) {
+                lockRegistry.release(id);
             }
-        } else {
-            throw new ChartaNotFoundException(id);
         }
+        return isAcquired;
     }
 
     @Override
     public void freeLock(String id, LockType lockType) {
-        ReadWriteLock lock = lockMap.get(id);
+        ReadWriteLock lock = lockRegistry.get(id);
         if (lock != null) {
             try {
-                if (lockType.equals(LockType.SHARED)) {
-                    lock.readLock().unlock();
-                } else {
-                    lock.writeLock().unlock();
-                }
+                getLock(lock, lockType).unlock();
             } catch (IllegalMonitorStateException ignore) {
+                // The lock isn't held by the thread, so it hasn't been retained by it either
+                return;
             }
+            lockRegistry.release(id);
         }
     }
 
-    @Override
-    public void removeLock(String id) {
-        lockMap.remove(id);
+    /**
+     * @return number of locks in use
+     */
+    int getLockCount() {
+        return lockRegistry.size();
+    }
+
+    static Lock getLock(ReadWriteLock lock, LockType lockType) {
+        return lockType.equals(LockType.SHARED) ? lock.readLock() : lock.writeLock();
     }
 }
@@ -0,0 +1,123 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.configuration.LockProperties;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * Locks chartas by bands of rows, so that regions of one charta which do not share a band
+ * can be read and written in parallel.
+ * <p>
+ * A region lock holds the charta-level lock in shared mode and then the locks of its bands
+ * in ascending order, which keeps concurrent region locks free of deadlocks.
+ * Whole-charta locks take the charta-level lock exclusively, since the number of bands of
+ * a charta isn't known to the locker.
+ * <p>
+ * Band locks are kept in a {@link LockRegistry} of their own while they are in use.
+ * <p>
+ * The band height is rounded up to a multiple of the tile size, so that a tile of the tiled storage
+ * or of the tile cache never spans two bands.
+ */
+@Service
+@ConditionalOnProperty(prefix = "service.lock", name = "type", havingValue = "striped", matchIfMissing = true)
+@RequiredArgsConstructor
+public class StripedLockerService extends ReadWriteLockerService {
+    private final LockRegistry<Band> bandLockRegistry = new LockRegistry<>();
+    private final LockProperties lockProperties;
+    private final ImageProperties imageProperties;
+
+    @Override
+    public boolean acquireLock(String id, LockType lockType) throws InterruptedException {
+        return super.acquireLock(id, LockType.EXCLUSIVE);
+    }
+
+    @Override
+    public boolean acquireLock(String id, LockType lockType, int fromRow, int toRow) throws InterruptedException {
+        long deadline = System.nanoTime() + TRYING_SECONDS_DURATION.toNanos();
+        if (!super.acquireLock(id, LockType.SHARED)) {
+            return false;
+        }
+
+        int firstBand = getFirstBand(fromRow);
+        int lastBand = getLastBand(fromRow, toRow);
+        for (int index = firstBand; index <= lastBand; index++) {
+            Band band = new Band(id, index);
+            Lock lock = getLock(bandLockRegistry.retain(band), lockType);
+            boolean isAcquired = false;
+            try {
+                isAcquired = lock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } finally {
+                if (!isAcquired) {
+                    bandLockRegistry.release(band);
+                    freeBands(id, lockType, firstBand, index - 1);
+                    super.freeLock(id, LockType.SHARED);
+                }
+            }
+            if (!isAcquired) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void freeLock(String id, LockType lockType) {
+        super.freeLock(id, LockType.EXCLUSIVE);
+    }
+
+    @Override
+    public void freeLock(String id, LockType lockType, int fromRow, int toRow) {
+        freeBands(id, lockType, getFirstBand(fromRow), getLastBand(fromRow, toRow));
+        super.freeLock(id, LockType.SHARED);
+    }
+
+    @Override
+    int getLockCount() {
+        return super.getLockCount() + bandLockRegistry.size();
+    }
+
+    private void freeBands(String id, LockType lockType, int firstBand, int lastBand) {
+        for (int index = lastBand; index >= firstBand; index--) {
+            Band band = new Band(id, index);
+            ReadWriteLock lock = bandLockRegistry.get(band);
+            if (lock == null) {
+                continue;
+            }
+            try {
+                getLock(lock, lockType).unlock();
+            } catch (IllegalMonitorStateException ignore) {
+                continue;
+            }
+            bandLockRegistry.release(band);
+        }
+    }
+
+    private int getFirstBand(int fromRow) {
+        return fromRow / getBandHeight();
+    }
+
+    /**
+     * @return index of the band holding the last row of the range or {@code firstBand - 1} for an empty range
+     */
+    private int getLastBand(int fromRow, int toRow) {
+        return toRow > fromRow ? (toRow - 1) / getBandHeight() : getFirstBand(fromRow) - 1;
+    }
+
+    private int getBandHeight() {
+        int tileSize = imageProperties.getStorage().getTileSize();
+        return (lockProperties.getBandHeight() + tileSize - 1) / tileSize * tileSize;
+    }
+
+    @Value
+    private static class Band {
+        String id;
+        int index;
+    }
+}
@@ -0,0 +1,263 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import ru.baby_benz.kontur.intern.chartographer.util.BmpHeader;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodings of the tiles of {@link TiledChartaFile}. Every tile is recorded with the id of its codec, so ids never
+ * change once they are written.
+ * <p>
+ * Encoding fails rather than produce more bytes than the tile has, such tiles are stored {@link #RAW}.
+ */
+public enum TileCodec {
+    /**
+     * Tile whose pixels are all black, it takes no bytes at all
+     */
+    BLACK(0) {
+        @Override
+        int encode(byte[] pixels, byte[] encoded) {
+            return isBlack(pixels) ? 0 : -1;
+        }
+
+        @Override
+        void decode(byte[] encoded, int length, byte[] pixels) {
+            Arrays.fill(pixels, (byte) 0);
+        }
+    },
+    RAW(1) {
+        @Override
+        int encode(byte[] pixels, byte[] encoded) {
+            if (encoded.length < pixels.length) {
+                return -1;
+            }
+            System.arraycopy(pixels, 0, encoded, 0, pixels.length);
+            return pixels.length;
+        }
+
+        @Override
+        void decode(byte[] encoded, int length, byte[] pixels) throws IOException {
+            if (length != pixels.length) {
+                throw new IOException("Raw tile is corrupted");
+            }
+            System.arraycopy(encoded, 0, pixels, 0, length);
+        }
+    },
+    /**
+     * PackBits over whole pixels: a header byte from 0 to 127 is followed by that many plus one literal pixels,
+     * a header byte from -1 to -127 is followed by one pixel repeated one minus that many times
+     */
+    RLE(2) {
+        private static final int MAX_RUN = 128;
+
+        @Override
+        int encode(byte[] pixels, byte[] encoded) {
+            int pixelCount = pixels.length / BmpHeader.BYTES_PER_PIXEL;
+            int length = 0;
+            for (int pixel = 0; pixel < pixelCount; ) {
+                int run = 1;
+                while (pixel + run < pixelCount && run < MAX_RUN && isSamePixel(pixels, pixel, pixel + run)) {
+                    run++;
+                }
+
+                if (run > 1) {
+                    if (length + 1 + BmpHeader.BYTES_PER_PIXEL > encoded.length) {
+                        return -1;
+                    }
+                    encoded[length++] = (byte) (1 - run);
+                    System.arraycopy(pixels, pixel * BmpHeader.BYTES_PER_PIXEL, encoded, length,
+                            BmpHeader.BYTES_PER_PIXEL);
+                    length += BmpHeader.BYTES_PER_PIXEL;
+                } else {
+                    // Literals end where a run of at least two pixels starts
+                    run = 1;
+                    while (pixel + run < pixelCount && run < MAX_RUN
+                            && !(pixel + run + 1 < pixelCount && isSamePixel(pixels, pixel + run, pixel + run + 1))) {
+                        run++;
+                    }
+                    int literalLength = run * BmpHeader.BYTES_PER_PIXEL;
+                    if (length + 1 + literalLength > encoded.length) {
+                        return -1;
+                    }
+                    encoded[length++] = (byte) (run - 1);
+                    System.arraycopy(pixels, pixel * BmpHeader.BYTES_PER_PIXEL, encoded, length, literalLength);
+                    length += literalLength;
+                }
+                pixel += run;
+            }
+            return length;
+        }
+
+        @Override
+        void decode(byte[] encoded, int length, byte[] pixels) throws IOException {
+            int offset = 0;
+            for (int position = 0; position < length; ) {
+                int header = encoded[position++];
+                if (header >= 0) {
+                    int literalLength = (header + 1) * BmpHeader.BYTES_PER_PIXEL;
+                    if (position + literalLength > length || offset + literalLength > pixels.length) {
+                        throw new IOException("RLE tile is corrupted");
+                    }
+                    System.arraycopy(encoded, position, pixels, offset, literalLength);
+                    position += literalLength;
+                    offset += literalLength;
+                } else {
+                    int run = 1 - header;
+                    if (position + BmpHeader.BYTES_PER_PIXEL > length
+                            || offset + run * BmpHeader.BYTES_PER_PIXEL > pixels.length) {
+                        throw new IOException("RLE tile is corrupted");
+                    }
+                    for (int i = 0; i < run; i++) {
+                        System.arraycopy(encoded, position, pixels, offset, BmpHeader.BYTES_PER_PIXEL);
+                        offset += BmpHeader.BYTES_PER_PIXEL;
+                    }
+                    position += BmpHeader.BYTES_PER_PIXEL;
+                }
+            }
+            if (offset != pixels.length) {
+                throw new IOException("RLE tile is corrupted");
+            }
+        }
+
+        private boolean isSamePixel(byte[] pixels, int first, int second) {
+            int firstOffset = first * BmpHeader.BYTES_PER_PIXEL;
+            int secondOffset = second * BmpHeader.BYTES_PER_PIXEL;
+            return pixels[firstOffset] == pixels[secondOffset]
+                    && pixels[firstOffset + 1] == pixels[secondOffset + 1]
+                    && pixels[firstOffset + 2] == pixels[secondOffset + 2];
+        }
+    },
+    /**
+     * Deflate at the best speed, which is the only level worth it for tiles flushed on every tile row switch
+     */
+    DEFLATE(3) {
+        @Override
+        int encode(byte[] pixels, byte[] encoded) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(pixels);
+                deflater.finish();
+                int length = 0;
+                while (!deflater.finished() && length < encoded.length) {
+                    length += deflater.deflate(encoded, length, encoded.length - length);
+                }
+                return deflater.finished() ? length : -1;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        void decode(byte[] encoded, int length, byte[] pixels) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(encoded, 0, length);
+                int offset = 0;
+                while (offset < pixels.length) {
+                    int inflated = inflater.inflate(pixels, offset, pixels.length - offset);
+                    if (inflated == 0) {
+                        // Either the stream has ended or it needs more input than there is
+                        break;
+                    }
+                    offset += inflated;
+                }
+                if (offset != pixels.length) {
+                    throw new IOException("Deflated tile is corrupted");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Deflated tile is corrupted", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    },
+    LZ4(4) {
+        private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+        private final LZ4SafeDecompressor decompressor = LZ4Factory.fastestInstance().safeDecompressor();
+
+        @Override
+        int encode(byte[] pixels, byte[] encoded) {
+            try {
+                return compressor.compress(pixels, 0, pixels.length, encoded, 0, encoded.length);
+            } catch (LZ4Exception e) {
+                // The tile doesn't fit into the buffer once compressed
+                return -1;
+            }
+        }
+
+        @Override
+        void decode(byte[] encoded, int length, byte[] pixels) throws IOException {
+            try {
+                if (decompressor.decompress(encoded, 0, length, pixels, 0, pixels.length) != pixels.length) {
+                    throw new IOException("LZ4 tile is corrupted");
+                }
+            } catch (LZ4Exception e) {
+                throw new IOException("LZ4 tile is corrupted", e);
+            }
+        }
+    };
+
+    private final int id;
+
+    TileCodec(int id) {
+        this.id = id;
+    }
+
+    /**
+     * @return length of the tile once encoded into the buffer or -1 if it doesn't fit into the buffer
+     */
+    abstract int encode(byte[] pixels, byte[] encoded);
+
+    /**
+     * Decodes the tile filling all the pixels
+     */
+    abstract void decode(byte[] encoded, int length, byte[] pixels) throws IOException;
+
+    int getId() {
+        return id;
+    }
+
+    static TileCodec fromId(int id) throws IOException {
+        for (TileCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IOException("Unknown tile codec " + id);
+    }
+
+    /**
+     * @param name name of the codec in the configuration, black tiles are never encoded by any other codec
+     */
+    public static TileCodec fromName(String name) {
+        switch (name) {
+            case "none":
+                return RAW;
+            case "rle":
+                return RLE;
+            case "deflate":
+                return DEFLATE;
+            case "lz4":
+                return LZ4;
+            default:
+                throw new IllegalArgumentException("Unknown tile codec " + name);
+        }
+    }
+
+    static boolean isBlack(byte[] pixels) {
+        for (byte pixel : pixels) {
+            if (pixel != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
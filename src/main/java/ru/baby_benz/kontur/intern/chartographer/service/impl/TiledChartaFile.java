@@ -0,0 +1,389 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaFile;
+import ru.baby_benz.kontur.intern.chartographer.util.BmpHeader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Charta split into square tiles of BGR pixels, every tile is encoded by a {@link TileCodec} of its own.
+ * <p>
+ * The index file holds the charta dimensions, the tile size, the codec tiles are written with and one entry
+ * per tile with its codec, slot and encoded length. Every tile owns two fixed slots of the data file ordered
+ * row by row, a rewritten tile goes to the slot not holding the tile, and the entry switches to it only after
+ * the data file is forced, so the index never points to a slot whose tile may not have reached the storage device,
+ * and a torn write never damages the encoded tile the index points to.
+ * Black tiles are only recorded in the index, they take no space in the sparse data file and are read
+ * without touching the disk, as are tiles that were never written. Slots are not shrunk, so the data file
+ * takes as much space as the encoded tiles it has ever held rounded up to file system blocks.
+ * <p>
+ * Tiles of the current tile row are kept in memory decoded and written back when another tile row is accessed
+ * or the file is closed, so fragments decode only the tiles they touch and the data file is forced once
+ * per written back tile row.
+ */
+public class TiledChartaFile implements ChartaFile {
+    private static final int MAGIC = 0x43485431;
+    private static final int INDEX_HEADER_SIZE = 20;
+    private static final int INDEX_ENTRY_SIZE = 6;
+    private static final int SLOTS_PER_TILE = 2;
+
+    private final FileChannel indexChannel;
+    private final FileChannel dataChannel;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int tileColumns;
+    // Codec of written tiles except for the black ones
+    private final TileCodec codec;
+    private final TileCodec[] tileCodecs;
+    private final byte[] tileSlots;
+    private final int[] tileLengths;
+    private final byte[] blackSegment;
+    private final Map<Integer, Tile> tileRow = new HashMap<>();
+    private int tileRowIndex = -1;
+    private ByteBuffer rowBuffer = ByteBuffer.allocate(0);
+    private byte[] encodedTile;
+
+    private TiledChartaFile(FileChannel indexChannel, FileChannel dataChannel, ByteBuffer index) throws IOException {
+        this.indexChannel = indexChannel;
+        this.dataChannel = dataChannel;
+        this.width = index.getInt(4);
+        this.height = index.getInt(8);
+        this.tileSize = index.getInt(12);
+        this.tileColumns = getTileCount(width, tileSize);
+        this.codec = TileCodec.fromId(index.getInt(16));
+
+        int tileCount = tileColumns * getTileCount(height, tileSize);
+        this.tileCodecs = new TileCodec[tileCount];
+        this.tileSlots = new byte[tileCount];
+        this.tileLengths = new int[tileCount];
+        for (int tileIndex = 0; tileIndex < tileCount; tileIndex++) {
+            readIndexEntry(index, tileIndex);
+        }
+        this.blackSegment = new byte[tileSize * BmpHeader.BYTES_PER_PIXEL];
+    }
+
+    public static void create(Path indexPath, Path dataPath, int width, int height, int tileSize, TileCodec codec)
+            throws IOException {
+        if (codec == TileCodec.BLACK) {
+            throw new IllegalArgumentException("Tiles can't be written with the codec of black tiles");
+        }
+        int tileCount = getTileCount(width, tileSize) * getTileCount(height, tileSize);
+
+        try (FileChannel indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             FileChannel dataChannel = FileChannel.open(dataPath, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Entries of zeros are black tiles in the first slot
+            ByteBuffer index = ByteBuffer.allocate(INDEX_HEADER_SIZE + tileCount * INDEX_ENTRY_SIZE)
+                    .putInt(MAGIC)
+                    .putInt(width)
+                    .putInt(height)
+                    .putInt(tileSize)
+                    .putInt(codec.getId());
+            writeFully(indexChannel, index.clear(), 0);
+        }
+    }
+
+    public static TiledChartaFile open(Path indexPath, Path dataPath, boolean writable) throws IOException {
+        StandardOpenOption[] options = writable
+                ? new StandardOpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE}
+                : new StandardOpenOption[]{StandardOpenOption.READ};
+
+        FileChannel indexChannel = FileChannel.open(indexPath, options);
+        try {
+            ByteBuffer index = ByteBuffer.allocate((int) indexChannel.size());
+            readFully(indexChannel, index, 0);
+            if (!isIndexValid(index)) {
+                throw new IOException("Tile index " + indexPath + " is corrupted");
+            }
+
+            FileChannel dataChannel = FileChannel.open(dataPath, options);
+            return new TiledChartaFile(indexChannel, dataChannel, index);
+        } catch (IOException | RuntimeException e) {
+            indexChannel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public ByteBuffer readRow(int x, int y, int width) throws IOException {
+        checkSegment(x, y, width);
+        selectTileRow(y / tileSize);
+
+        int length = width * BmpHeader.BYTES_PER_PIXEL;
+        if (rowBuffer.capacity() < length) {
+            rowBuffer = ByteBuffer.allocate(length);
+        }
+        rowBuffer.clear().limit(length);
+
+        int rowInTile = y % tileSize;
+        for (int column = x; column < x + width; ) {
+            int columnInTile = column % tileSize;
+            int segmentLength = Math.min(tileSize - columnInTile, x + width - column) * BmpHeader.BYTES_PER_PIXEL;
+
+            Tile tile = getTile(column / tileSize, false);
+            if (tile == null) {
+                rowBuffer.put(blackSegment, 0, segmentLength);
+            } else {
+                rowBuffer.put(tile.pixels, getOffsetInTile(columnInTile, rowInTile), segmentLength);
+            }
+            column += segmentLength / BmpHeader.BYTES_PER_PIXEL;
+        }
+
+        return rowBuffer.flip();
+    }
+
+    @Override
+    public void writeRow(int x, int y, ByteBuffer pixels) throws IOException {
+        if (pixels.remaining() % BmpHeader.BYTES_PER_PIXEL != 0) {
+            throw new IllegalArgumentException("Row segment length must be a multiple of the pixel size");
+        }
+        int width = pixels.remaining() / BmpHeader.BYTES_PER_PIXEL;
+        checkSegment(x, y, width);
+        selectTileRow(y / tileSize);
+
+        int rowInTile = y % tileSize;
+        for (int column = x; column < x + width; ) {
+            int columnInTile = column % tileSize;
+            int segmentLength = Math.min(tileSize - columnInTile, x + width - column) * BmpHeader.BYTES_PER_PIXEL;
+
+            Tile tile = getTile(column / tileSize, true);
+            pixels.get(tile.pixels, getOffsetInTile(columnInTile, rowInTile), segmentLength);
+            tile.dirty = true;
+            column += segmentLength / BmpHeader.BYTES_PER_PIXEL;
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        flush();
+        dataChannel.force(false);
+        indexChannel.force(false);
+    }
+
+    private void selectTileRow(int index) throws IOException {
+        if (index != tileRowIndex) {
+            flush();
+            tileRow.clear();
+            tileRowIndex = index;
+        }
+    }
+
+    private Tile getTile(int tileColumn, boolean create) throws IOException {
+        Tile tile = tileRow.get(tileColumn);
+        if (tile == null) {
+            int tileIndex = tileRowIndex * tileColumns + tileColumn;
+            TileCodec tileCodec = tileCodecs[tileIndex];
+            if (tileCodec != TileCodec.BLACK) {
+                tile = new Tile(new byte[getTileLength()]);
+                int length = tileLengths[tileIndex];
+                long position = getTilePosition(tileIndex, tileSlots[tileIndex]);
+                if (tileCodec == TileCodec.RAW) {
+                    readFully(dataChannel, ByteBuffer.wrap(tile.pixels), position);
+                } else {
+                    byte[] encoded = getEncodedTile();
+                    readFully(dataChannel, ByteBuffer.wrap(encoded, 0, length), position);
+                    tileCodec.decode(encoded, length, tile.pixels);
+                }
+            } else if (create) {
+                tile = new Tile(new byte[getTileLength()]);
+            } else {
+                return null;
+            }
+            tileRow.put(tileColumn, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Writes the dirty tiles of the current tile row, forces the data file once they are all written
+     * and only then points their index entries to them
+     */
+    private void flush() throws IOException {
+        List<TileEntry> entries = new ArrayList<>();
+        boolean isDataWritten = false;
+        for (Map.Entry<Integer, Tile> entry : tileRow.entrySet()) {
+            Tile tile = entry.getValue();
+            if (tile.dirty) {
+                TileEntry tileEntry = writeTile(tileRowIndex * tileColumns + entry.getKey(), tile.pixels);
+                isDataWritten |= tileEntry.codec != TileCodec.BLACK;
+                entries.add(tileEntry);
+            }
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        if (isDataWritten) {
+            dataChannel.force(false);
+        }
+        for (TileEntry entry : entries) {
+            updateIndexEntry(entry.tileIndex, entry.codec, entry.slot, entry.length);
+        }
+        for (Tile tile : tileRow.values()) {
+            tile.dirty = false;
+        }
+    }
+
+    /**
+     * Writes the tile encoded to the slot not holding the tile, unless it's black
+     *
+     * @return index entry of the written tile, which is left to be updated
+     */
+    private TileEntry writeTile(int tileIndex, byte[] pixels) throws IOException {
+        if (TileCodec.isBlack(pixels)) {
+            return new TileEntry(tileIndex, TileCodec.BLACK, tileSlots[tileIndex], 0);
+        }
+
+        TileCodec tileCodec = codec;
+        byte[] encoded = getEncodedTile();
+        int length = codec == TileCodec.RAW ? -1 : codec.encode(pixels, encoded);
+        if (length < 0 || length >= pixels.length) {
+            // Tiles which don't get any shorter are stored as they are
+            tileCodec = TileCodec.RAW;
+            encoded = pixels;
+            length = pixels.length;
+        }
+
+        byte slot = 0;
+        if (tileCodecs[tileIndex] != TileCodec.BLACK) {
+            slot = (byte) (1 - tileSlots[tileIndex]);
+        }
+        writeFully(dataChannel, ByteBuffer.wrap(encoded, 0, length), getTilePosition(tileIndex, slot));
+        return new TileEntry(tileIndex, tileCodec, slot, length);
+    }
+
+    private void readIndexEntry(ByteBuffer index, int tileIndex) throws IOException {
+        int position = INDEX_HEADER_SIZE + tileIndex * INDEX_ENTRY_SIZE;
+        TileCodec tileCodec = TileCodec.fromId(index.get(position));
+        byte slot = index.get(position + 1);
+        int length = index.getInt(position + 2);
+        boolean isLengthValid = tileCodec == TileCodec.BLACK ? length == 0
+                : tileCodec == TileCodec.RAW ? length == getTileLength() : length > 0 && length < getTileLength();
+        if (slot < 0 || slot >= SLOTS_PER_TILE || !isLengthValid) {
+            throw new IOException("Tile index entry " + tileIndex + " is corrupted");
+        }
+        tileCodecs[tileIndex] = tileCodec;
+        tileSlots[tileIndex] = slot;
+        tileLengths[tileIndex] = length;
+    }
+
+    private void updateIndexEntry(int tileIndex, TileCodec tileCodec, byte slot, int length) throws IOException {
+        if (tileCodecs[tileIndex] == tileCodec && tileSlots[tileIndex] == slot && tileLengths[tileIndex] == length) {
+            return;
+        }
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE).put((byte) tileCodec.getId()).put(slot).putInt(length);
+        writeFully(indexChannel, entry.flip(), INDEX_HEADER_SIZE + (long) tileIndex * INDEX_ENTRY_SIZE);
+        tileCodecs[tileIndex] = tileCodec;
+        tileSlots[tileIndex] = slot;
+        tileLengths[tileIndex] = length;
+    }
+
+    private byte[] getEncodedTile() {
+        if (encodedTile == null) {
+            encodedTile = new byte[getTileLength()];
+        }
+        return encodedTile;
+    }
+
+    private static boolean isIndexValid(ByteBuffer index) {
+        if (index.capacity() < INDEX_HEADER_SIZE || index.getInt(0) != MAGIC) {
+            return false;
+        }
+        int width = index.getInt(4);
+        int height = index.getInt(8);
+        int tileSize = index.getInt(12);
+        return width > 0 && height > 0 && tileSize > 0
+                && index.capacity() == INDEX_HEADER_SIZE
+                + (long) getTileCount(width, tileSize) * getTileCount(height, tileSize) * INDEX_ENTRY_SIZE;
+    }
+
+    private void checkSegment(int x, int y, int width) {
+        if (x < 0 || y < 0 || y >= height || width < 0 || x + width > this.width) {
+            throw new IllegalArgumentException("Row segment (x:=" + x + ",y:=" + y + ",width:=" + width
+                    + ") is out of the image bounds");
+        }
+    }
+
+    private int getOffsetInTile(int column, int row) {
+        return (row * tileSize + column) * BmpHeader.BYTES_PER_PIXEL;
+    }
+
+    private int getTileLength() {
+        return tileSize * tileSize * BmpHeader.BYTES_PER_PIXEL;
+    }
+
+    private long getTilePosition(int tileIndex, int slot) {
+        return ((long) tileIndex * SLOTS_PER_TILE + slot) * getTileLength();
+    }
+
+    private static int getTileCount(int length, int tileSize) {
+        return (length + tileSize - 1) / tileSize;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of tile file");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (indexChannel; dataChannel) {
+            flush();
+        }
+    }
+
+    private static class TileEntry {
+        private final int tileIndex;
+        private final TileCodec codec;
+        private final byte slot;
+        private final int length;
+
+        private TileEntry(int tileIndex, TileCodec codec, byte slot, int length) {
+            this.tileIndex = tileIndex;
+            this.codec = codec;
+            this.slot = slot;
+            this.length = length;
+        }
+    }
+
+    private static class Tile {
+        private final byte[] pixels;
+        private boolean dirty;
+
+        private Tile(byte[] pixels) {
+            this.pixels = pixels;
+        }
+    }
+}
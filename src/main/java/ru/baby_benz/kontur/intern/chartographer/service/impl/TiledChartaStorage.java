@@ -0,0 +1,119 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaFile;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaStorage;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaVolumes;
+import ru.baby_benz.kontur.intern.chartographer.util.Pyramid;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Stores every charta as a tile index file and a sparse tile data file next to each other on one
+ * of the {@link ChartaVolumes}. BMP is only produced and consumed at the HTTP boundary.
+ * <p>
+ * New chartas have their tiles encoded by the configured {@link TileCodec}, stored chartas keep
+ * the codec they were created with.
+ */
+@RequiredArgsConstructor
+@Service
+@ConditionalOnProperty(prefix = "service.image.storage", name = "format", havingValue = "tiled")
+public class TiledChartaStorage implements ChartaStorage {
+    private static final String INDEX_EXTENSION = ".tile-index";
+    private static final String DATA_EXTENSION = ".tile-data";
+
+    private final ImageProperties imageProperties;
+    private final ChartaVolumes chartaVolumes;
+
+    @PostConstruct
+    public void migrateChartas() throws IOException {
+        chartaVolumes.migrate(fileName -> fileName.endsWith(INDEX_EXTENSION) || fileName.endsWith(DATA_EXTENSION));
+        deleteOrphanedData();
+    }
+
+    /**
+     * Deletes the data files left without their indexes by interrupted deletions
+     */
+    private void deleteOrphanedData() throws IOException {
+        List<Path> files = chartaVolumes.list();
+        Set<Path> indexPaths = new HashSet<>();
+        for (Path file : files) {
+            if (file.getFileName().toString().endsWith(INDEX_EXTENSION)) {
+                indexPaths.add(file);
+            }
+        }
+        for (Path file : files) {
+            String fileName = file.getFileName().toString();
+            if (fileName.endsWith(DATA_EXTENSION)) {
+                String id = fileName.substring(0, fileName.length() - DATA_EXTENSION.length());
+                if (!indexPaths.contains(file.resolveSibling(id + INDEX_EXTENSION))) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Levels go next to their charta, a charta goes to the volume chosen for it
+     */
+    @Override
+    public void create(String id, int width, int height) throws IOException {
+        Path indexPath = Pyramid.getLevel(id) == 0
+                ? chartaVolumes.place(id, id + INDEX_EXTENSION)
+                : getPathNextToCharta(id, id + INDEX_EXTENSION);
+        TiledChartaFile.create(indexPath, getDataPath(indexPath, id), width, height,
+                imageProperties.getStorage().getTileSize(), getCodec());
+    }
+
+    @Override
+    public ChartaFile open(String id, boolean writable) throws IOException {
+        Path indexPath = getIndexPath(id);
+        return TiledChartaFile.open(indexPath, getDataPath(indexPath, id), writable);
+    }
+
+    @Override
+    public void delete(String id) throws IOException {
+        Path indexPath = getIndexPath(id);
+        Files.delete(indexPath);
+        Files.deleteIfExists(getDataPath(indexPath, id));
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        return chartaVolumes.list().stream()
+                .map(file -> file.getFileName().toString())
+                .filter(fileName -> fileName.endsWith(INDEX_EXTENSION))
+                .map(fileName -> fileName.substring(0, fileName.length() - INDEX_EXTENSION.length()))
+                .collect(Collectors.toList());
+    }
+
+    private TileCodec getCodec() {
+        return TileCodec.fromName(imageProperties.getStorage().getCodec());
+    }
+
+    /**
+     * Levels are looked up by themselves, since they outlive their charta while it's being deleted
+     */
+    private Path getIndexPath(String id) {
+        return chartaVolumes.locate(Pyramid.getChartaId(id), id + INDEX_EXTENSION);
+    }
+
+    private Path getPathNextToCharta(String id, String fileName) {
+        String chartaId = Pyramid.getChartaId(id);
+        return chartaVolumes.locate(chartaId, chartaId + INDEX_EXTENSION).resolveSibling(fileName);
+    }
+
+    private Path getDataPath(Path indexPath, String id) {
+        return indexPath.resolveSibling(id + DATA_EXTENSION);
+    }
+}
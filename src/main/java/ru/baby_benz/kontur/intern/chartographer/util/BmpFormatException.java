@@ -0,0 +1,9 @@
+package ru.baby_benz.kontur.intern.chartographer.util;
+
+import java.io.IOException;
+
+public class BmpFormatException extends IOException {
+    public BmpFormatException(final String message) {
+        super(message);
+    }
+}
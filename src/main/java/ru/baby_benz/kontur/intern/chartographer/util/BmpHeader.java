@@ -0,0 +1,113 @@
+package ru.baby_benz.kontur.intern.chartographer.util;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * File header and info header of an uncompressed 24-bit BMP image.
+ * <p>
+ * Pixel rows are stored in BGR order and every row is padded to a multiple of 4 bytes.
+ * Rows are stored bottom-up unless the height in the header is negative.
+ */
+@Getter
+@RequiredArgsConstructor
+public class BmpHeader {
+    public static final int SIZE = 54;
+    public static final int BYTES_PER_PIXEL = 3;
+
+    private static final short SIGNATURE = 0x4D42;
+    private static final int INFO_HEADER_SIZE = 40;
+    private static final short PLANES = 1;
+    private static final short BITS_PER_PIXEL = 24;
+    private static final int BI_RGB = 0;
+
+    private final int width;
+    private final int height;
+    private final boolean topDown;
+    private final long dataOffset;
+
+    public static BmpHeader of(int width, int height) {
+        return new BmpHeader(width, height, false, SIZE);
+    }
+
+    public static BmpHeader read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < SIZE) {
+            throw new BmpFormatException("BMP header is truncated");
+        }
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int start = buffer.position();
+
+        if (buffer.getShort(start) != SIGNATURE) {
+            throw new BmpFormatException("Not a BMP image");
+        }
+        long dataOffset = Integer.toUnsignedLong(buffer.getInt(start + 10));
+        int width = buffer.getInt(start + 18);
+        int height = buffer.getInt(start + 22);
+        short bitsPerPixel = buffer.getShort(start + 28);
+        int compression = buffer.getInt(start + 30);
+
+        if (bitsPerPixel != BITS_PER_PIXEL || compression != BI_RGB) {
+            throw new BmpFormatException("Only uncompressed 24-bit BMP images are supported");
+        }
+        if (width <= 0 || width > (Integer.MAX_VALUE - 3) / BYTES_PER_PIXEL
+                || height == 0 || height == Integer.MIN_VALUE || dataOffset < SIZE) {
+            throw new BmpFormatException("BMP header contains invalid dimensions or data offset");
+        }
+
+        buffer.position(start + SIZE);
+        return new BmpHeader(width, Math.abs(height), height < 0, dataOffset);
+    }
+
+    public static int getRowSize(int width) {
+        return (width * BYTES_PER_PIXEL + 3) & ~3;
+    }
+
+    public int getRowSize() {
+        return getRowSize(width);
+    }
+
+    public long getImageSize() {
+        return (long) getRowSize() * height;
+    }
+
+    public long getFileSize() {
+        return dataOffset + getImageSize();
+    }
+
+    /**
+     * @param y row index counted from the top of the image
+     * @return absolute position of the row's first byte in the file
+     */
+    public long getRowOffset(int y) {
+        int storedRow = topDown ? y : height - 1 - y;
+        return dataOffset + (long) storedRow * getRowSize();
+    }
+
+    public ByteBuffer toByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putShort(SIGNATURE);
+        buffer.putInt((int) getFileSize());
+        buffer.putInt(0);
+        buffer.putInt((int) dataOffset);
+
+        buffer.putInt(INFO_HEADER_SIZE);
+        buffer.putInt(width);
+        buffer.putInt(topDown ? -height : height);
+        buffer.putShort(PLANES);
+        buffer.putShort(BITS_PER_PIXEL);
+        buffer.putInt(BI_RGB);
+        buffer.putInt((int) getImageSize());
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,96 @@
+package ru.baby_benz.kontur.intern.chartographer.util;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Sequential reader of the pixel rows of a 24-bit BMP image coming from a stream.
+ * <p>
+ * Rows are returned in the order they are stored, i.e. bottom-up unless the image is top-down.
+ * Only the requested segment of a row is held in memory, the rest of the row is skipped.
+ * Segments are read into an array shared by the readers of the same thread, so reading a fragment allocates nothing
+ * per row.
+ */
+public class BmpRowReader {
+    private static final ThreadLocalBuffer HEADER_BUFFER = new ThreadLocalBuffer();
+    private static final ThreadLocalBuffer SEGMENT_BUFFER = new ThreadLocalBuffer();
+
+    private final InputStream input;
+    @Getter
+    private final BmpHeader header;
+    private int rowsRead;
+
+    public BmpRowReader(InputStream input) throws IOException {
+        this.input = input;
+
+        byte[] headerBytes = HEADER_BUFFER.get(BmpHeader.SIZE);
+        readFully(headerBytes, BmpHeader.SIZE);
+        header = BmpHeader.read(ByteBuffer.wrap(headerBytes, 0, BmpHeader.SIZE));
+        skipFully(header.getDataOffset() - BmpHeader.SIZE);
+    }
+
+    public boolean hasNextRow() {
+        return rowsRead < header.getHeight();
+    }
+
+    /**
+     * @return index of the next row counted from the top of the image
+     */
+    public int getNextRowY() {
+        return header.isTopDown() ? rowsRead : header.getHeight() - 1 - rowsRead;
+    }
+
+    /**
+     * Reads the next row and returns {@code width} of its BGR pixels starting at column {@code x}.
+     * The returned buffer is reused by subsequent calls of any reader on the same thread.
+     */
+    public ByteBuffer readRow(int x, int width) throws IOException {
+        if (x < 0 || width < 0 || x + width > header.getWidth()) {
+            throw new IllegalArgumentException("Row segment (x:=" + x + ",width:=" + width
+                    + ") is out of the image bounds");
+        }
+
+        int offset = x * BmpHeader.BYTES_PER_PIXEL;
+        int length = width * BmpHeader.BYTES_PER_PIXEL;
+        byte[] segment = SEGMENT_BUFFER.get(length);
+
+        skipFully(offset);
+        readFully(segment, length);
+        skipFully(header.getRowSize() - offset - length);
+        rowsRead++;
+
+        return ByteBuffer.wrap(segment, 0, length);
+    }
+
+    public void skipRow() throws IOException {
+        skipFully(header.getRowSize());
+        rowsRead++;
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read = input.read(buffer, offset, length - offset);
+            if (read < 0) {
+                throw new BmpFormatException("Unexpected end of BMP data");
+            }
+            offset += read;
+        }
+    }
+
+    private void skipFully(long length) throws IOException {
+        while (length > 0) {
+            long skipped = input.skip(length);
+            if (skipped <= 0) {
+                if (input.read() < 0) {
+                    throw new BmpFormatException("Unexpected end of BMP data");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+}
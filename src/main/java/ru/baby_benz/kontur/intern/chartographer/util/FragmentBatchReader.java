@@ -0,0 +1,113 @@
+package ru.baby_benz.kontur.intern.chartographer.util;
+
+import lombok.Value;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Sequential reader of a batch of fragments coming from a stream.
+ * <p>
+ * Every fragment is a header of five big-endian 32-bit integers: x, y, width, height and the length of the BMP data
+ * of the fragment, followed by the BMP data itself.
+ */
+public class FragmentBatchReader {
+    private final DataInputStream input;
+    private FragmentInputStream fragmentData;
+
+    public FragmentBatchReader(InputStream input) {
+        this.input = new DataInputStream(input);
+    }
+
+    /**
+     * Skips what is left of the data of the previous fragment and reads the header of the next one.
+     *
+     * @return next fragment or {@code null} at the end of the batch
+     */
+    public Fragment readFragment() throws IOException {
+        if (fragmentData != null) {
+            fragmentData.skipRemaining();
+        }
+
+        int x;
+        try {
+            x = input.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        try {
+            int y = input.readInt();
+            int width = input.readInt();
+            int height = input.readInt();
+            int length = input.readInt();
+            if (length < 0) {
+                throw new BmpFormatException("Fragment data length " + length + " is negative");
+            }
+
+            fragmentData = new FragmentInputStream(length);
+            return new Fragment(x, y, width, height, fragmentData);
+        } catch (EOFException e) {
+            throw new BmpFormatException("Unexpected end of fragment batch");
+        }
+    }
+
+    @Value
+    public static class Fragment {
+        int x;
+        int y;
+        int width;
+        int height;
+        InputStream data;
+    }
+
+    /**
+     * Data of a single fragment, which ends where the next fragment begins
+     */
+    private class FragmentInputStream extends InputStream {
+        private int remaining;
+
+        private FragmentInputStream(int length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int value = input.read();
+            if (value >= 0) {
+                remaining--;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int read = input.read(bytes, offset, Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        private void skipRemaining() throws IOException {
+            while (remaining > 0) {
+                long skipped = input.skip(remaining);
+                if (skipped <= 0) {
+                    if (input.read() < 0) {
+                        throw new BmpFormatException("Unexpected end of fragment batch");
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ru.baby_benz.kontur.intern.chartographer.util;
+
+import lombok.RequiredArgsConstructor;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Levels of detail of a charta. Level 0 is the charta itself, every next level halves both dimensions
+ * of the previous one, rounding up, by averaging blocks of 2x2 pixels.
+ * <p>
+ * Levels are stored as separate chartas whose ids are derived from the charta id.
+ */
+public final class Pyramid {
+    private static final char LEVEL_SEPARATOR = '.';
+
+    private Pyramid() {
+    }
+
+    public static String getLevelId(String id, int level) {
+        return level == 0 ? id : id + LEVEL_SEPARATOR + level;
+    }
+
+    /**
+     * @return level of a stored charta id, 0 for ids of chartas themselves
+     */
+    public static int getLevel(String storedId) {
+        int separatorIndex = storedId.lastIndexOf(LEVEL_SEPARATOR);
+        if (separatorIndex < 0) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(storedId.substring(separatorIndex + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return whether the id is the id of a charta rather than of a level, ids of chartas have no separators
+     */
+    public static boolean isChartaId(String id) {
+        return id.indexOf(LEVEL_SEPARATOR) < 0;
+    }
+
+    public static String getChartaId(String storedId) {
+        return getLevel(storedId) == 0 ? storedId : storedId.substring(0, storedId.lastIndexOf(LEVEL_SEPARATOR));
+    }
+
+    /**
+     * @return length of a side at the level, which is also the end of a range of rows or columns at the level
+     */
+    public static int getLevelSize(int size, int level) {
+        return (int) (((long) size + (1L << level) - 1) >> level);
+    }
+
+    /**
+     * @return number of levels above level 0, which stop once the level is a single pixel or at {@code maxLevel}
+     */
+    public static int getLevelCount(int width, int height, int maxLevel) {
+        int level = 0;
+        while (level < maxLevel && (getLevelSize(width, level) > 1 || getLevelSize(height, level) > 1)) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Downsamples a band of rows, source rows {@code 2i} and {@code 2i + 1} make target row {@code i}.
+     * The band is split into smaller bands downsampled in parallel on the common fork-join pool
+     * while they have more than {@code parallelismThreshold} target pixels.
+     *
+     * @param sourceRowCount number of source rows, the last target row is made of a single row when it's odd
+     */
+    public static void downsampleRows(byte[][] sourceRows, int sourceRowCount, int sourceWidth,
+                                      byte[][] targetRows, int targetRowCount, int parallelismThreshold) {
+        DownsampleTask task = new DownsampleTask(sourceRows, sourceRowCount, sourceWidth, targetRows,
+                parallelismThreshold, 0, targetRowCount);
+        if ((long) targetRowCount * getLevelSize(sourceWidth, 1) > parallelismThreshold) {
+            ForkJoinPool.commonPool().invoke(task);
+        } else {
+            task.compute();
+        }
+    }
+
+    /**
+     * Averages blocks of 2x2 BGR pixels of two adjacent rows into a row of the next level.
+     *
+     * @param lowerRow    second row or {@code null} when the upper row is the last row of the level
+     * @param sourceWidth number of pixels in the rows, the last block is 1 pixel wide when it's odd
+     */
+    public static void downsampleRow(byte[] upperRow, byte[] lowerRow, int sourceWidth, byte[] targetRow) {
+        int rowCount = lowerRow == null ? 1 : 2;
+        for (int source = 0, target = 0; source < sourceWidth; source += 2, target++) {
+            int columnCount = Math.min(2, sourceWidth - source);
+            int pixelCount = columnCount * rowCount;
+
+            for (int channel = 0; channel < BmpHeader.BYTES_PER_PIXEL; channel++) {
+                int sum = 0;
+                for (int column = source; column < source + columnCount; column++) {
+                    sum += upperRow[column * BmpHeader.BYTES_PER_PIXEL + channel] & 0xFF;
+                    if (lowerRow != null) {
+                        sum += lowerRow[column * BmpHeader.BYTES_PER_PIXEL + channel] & 0xFF;
+                    }
+                }
+                targetRow[target * BmpHeader.BYTES_PER_PIXEL + channel] = (byte) ((sum + pixelCount / 2) / pixelCount);
+            }
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class DownsampleTask extends RecursiveAction {
+        private final byte[][] sourceRows;
+        private final int sourceRowCount;
+        private final int sourceWidth;
+        private final byte[][] targetRows;
+        private final int parallelismThreshold;
+        private final int fromRow;
+        private final int toRow;
+
+        @Override
+        protected void compute() {
+            int rowCount = toRow - fromRow;
+            if (rowCount > 1 && (long) rowCount * getLevelSize(sourceWidth, 1) > parallelismThreshold) {
+                int middleRow = fromRow + rowCount / 2;
+                invokeAll(
+                        new DownsampleTask(sourceRows, sourceRowCount, sourceWidth, targetRows,
+                                parallelismThreshold, fromRow, middleRow),
+                        new DownsampleTask(sourceRows, sourceRowCount, sourceWidth, targetRows,
+                                parallelismThreshold, middleRow, toRow)
+                );
+                return;
+            }
+
+            for (int row = fromRow; row < toRow; row++) {
+                byte[] lowerRow = row * 2 + 1 < sourceRowCount ? sourceRows[row * 2 + 1] : null;
+                downsampleRow(sourceRows[row * 2], lowerRow, sourceWidth, targetRows[row]);
+            }
+        }
+    }
+}
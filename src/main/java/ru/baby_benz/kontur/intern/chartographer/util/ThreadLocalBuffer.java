@@ -0,0 +1,21 @@
+package ru.baby_benz.kontur.intern.chartographer.util;
+
+/**
+ * Byte array reused by all calls made on the same thread, which keeps the per-row paths free of allocations.
+ * Every user owns a separate instance, so arrays of different users never alias.
+ */
+public final class ThreadLocalBuffer {
+    private final ThreadLocal<byte[]> buffer = ThreadLocal.withInitial(() -> new byte[0]);
+
+    /**
+     * @return array of at least {@code length} bytes with undefined contents, which is only grown and never shrunk
+     */
+    public byte[] get(int length) {
+        byte[] bytes = buffer.get();
+        if (bytes.length < length) {
+            bytes = new byte[length];
+            buffer.set(bytes);
+        }
+        return bytes;
+    }
+}
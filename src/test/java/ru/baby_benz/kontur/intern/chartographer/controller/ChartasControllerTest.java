@@ -0,0 +1,153 @@
+package ru.baby_benz.kontur.intern.chartographer.controller;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.ConfigDataApplicationContextInitializer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import ru.baby_benz.kontur.intern.chartographer.configuration.AsyncProperties;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.configuration.LockProperties;
+import ru.baby_benz.kontur.intern.chartographer.controller.exception.GlobalExceptionHandler;
+import ru.baby_benz.kontur.intern.chartographer.service.IOService;
+import ru.baby_benz.kontur.intern.chartographer.service.impl.DefaultChartasService;
+import ru.baby_benz.kontur.intern.chartographer.service.impl.DefaultWriteQueueService;
+import ru.baby_benz.kontur.intern.chartographer.util.Pyramid;
+
+import javax.servlet.AsyncListener;
+import java.awt.*;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(SpringExtension.class)
+@ContextConfiguration(initializers = ConfigDataApplicationContextInitializer.class)
+@EnableConfigurationProperties(ImageProperties.class)
+@ActiveProfiles("test")
+public class ChartasControllerTest {
+    private static final String LEVEL_ID = Pyramid.getLevelId(UUID.randomUUID().toString(), 1);
+
+    @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
+    @Autowired
+    private ImageProperties imageProperties;
+    private IOService ioService;
+    private MockMvc mockMvc;
+
+    @BeforeEach
+    public void setUp() {
+        ioService = Mockito.mock(IOService.class);
+        // Requests are served on the calling thread
+        mockMvc = createMockMvc(Runnable::run);
+    }
+
+    @Test
+    public void givenCurrentEntityTag_whenGetFragment_thenNotModifiedIsReturnedWithoutReading() throws Exception {
+        String id = UUID.randomUUID().toString();
+        Mockito.doReturn(new Dimension(2, 2)).when(ioService).readImageDimensions(id);
+        Mockito.doReturn(42L).when(ioService).readImageRegionVersion(id, 0, 1);
+
+        assertEquals(304, getStatus(MockMvcRequestBuilders.get("/chartas/{id}/", id)
+                .param("x", "0").param("y", "0").param("width", "1").param("height", "1")
+                .header(HttpHeaders.IF_NONE_MATCH, "\"2a\"")));
+        Mockito.verify(ioService, Mockito.never()).readImageRegion(Mockito.anyString(), Mockito.anyInt(),
+                Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt(), Mockito.any());
+    }
+
+    @Test
+    public void givenBusyExecutor_whenGetFragment_thenChartaIsNotTouchedOnRequestThread() throws Exception {
+        // Tasks are never run
+        mockMvc = createMockMvc(task -> {
+        });
+
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get("/chartas/{id}/", UUID.randomUUID().toString())
+                .param("x", "0").param("y", "0").param("width", "1").param("height", "1")).andReturn();
+
+        assertTrue(result.getRequest().isAsyncStarted());
+        Mockito.verifyNoInteractions(ioService);
+    }
+
+    @Test
+    public void givenBusyExecutor_whenDeleteChartaTimesOut_thenChartaIsNotDeletedLater() throws Exception {
+        List<Runnable> tasks = new ArrayList<>();
+        mockMvc = createMockMvc(tasks::add);
+
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.delete("/chartas/{id}/", UUID.randomUUID().toString()))
+                .andReturn();
+        MockAsyncContext asyncContext = (MockAsyncContext) result.getRequest().getAsyncContext();
+        for (AsyncListener listener : asyncContext.getListeners()) {
+            listener.onTimeout(null);
+        }
+        tasks.forEach(Runnable::run);
+
+        Mockito.verifyNoInteractions(ioService);
+    }
+
+    @Test
+    public void givenLevelId_whenGetFragment_thenNotFoundIsReturned() throws Exception {
+        assertEquals(404, getStatus(MockMvcRequestBuilders.get("/chartas/{id}/", LEVEL_ID)
+                .param("x", "0").param("y", "0").param("width", "1").param("height", "1")));
+        Mockito.verifyNoInteractions(ioService);
+    }
+
+    @Test
+    public void givenLevelId_whenPutFragment_thenNotFoundIsReturned() throws Exception {
+        assertEquals(404, getStatus(MockMvcRequestBuilders.post("/chartas/{id}/", LEVEL_ID)
+                .param("x", "0").param("y", "0").param("width", "1").param("height", "1")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .content(new byte[]{'B', 'M'})));
+        Mockito.verifyNoInteractions(ioService);
+    }
+
+    @Test
+    public void givenLevelId_whenDeleteCharta_thenNotFoundIsReturned() throws Exception {
+        assertEquals(404, getStatus(MockMvcRequestBuilders.delete("/chartas/{id}/", LEVEL_ID)));
+        Mockito.verifyNoInteractions(ioService);
+    }
+
+    private MockMvc createMockMvc(Executor chartasExecutor) {
+        ChartasController chartasController = new ChartasController(
+                new DefaultChartasService(imageProperties, ioService),
+                chartasExecutor,
+                new DefaultWriteQueueService(new AsyncProperties(1, 1, Duration.ofSeconds(1), 1),
+                        new LockProperties("striped", 1), chartasExecutor)
+        );
+
+        GlobalExceptionHandler exceptionHandler = new GlobalExceptionHandler();
+        ReflectionTestUtils.setField(exceptionHandler, "retryAfter", "1");
+        ReflectionTestUtils.setField(exceptionHandler, "meterRegistry", new SimpleMeterRegistry());
+        return MockMvcBuilders.standaloneSetup(chartasController)
+                .setControllerAdvice(exceptionHandler)
+                .build();
+    }
+
+    /**
+     * Completes the request, dispatching it once more if it has been processed asynchronously
+     */
+    private int getStatus(MockHttpServletRequestBuilder request) throws Exception {
+        MvcResult result = mockMvc.perform(request).andReturn();
+        if (result.getRequest().isAsyncStarted()) {
+            result = mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(result)).andReturn();
+        }
+        return result.getResponse().getStatus();
+    }
+}
@@ -0,0 +1,101 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.ConfigDataApplicationContextInitializer;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaCatalog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(SpringExtension.class)
+@ContextConfiguration(initializers = ConfigDataApplicationContextInitializer.class)
+@EnableConfigurationProperties(ImageProperties.class)
+@ActiveProfiles("test")
+@Slf4j
+public class DefaultChartaCatalogTest {
+    private static final ChartaCatalog.Entry ENTRY = new ChartaCatalog.Entry(3, 2);
+
+    @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
+    @Autowired
+    private ImageProperties imageProperties;
+    private DefaultChartaCatalog chartaCatalog;
+
+    @BeforeEach
+    public void setUp() {
+        chartaCatalog = new DefaultChartaCatalog(imageProperties);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        chartaCatalog.close();
+        deleteTestFolder();
+    }
+
+    @Test
+    public void givenId_whenPutAndGet_thenEntryIsReturned() {
+        chartaCatalog.put("id", ENTRY);
+        assertEquals(ENTRY, chartaCatalog.get("id"));
+        assertEquals(List.of("id"), chartaCatalog.list());
+    }
+
+    @Test
+    public void givenId_whenPutAndRemoveAndGet_thenNullIsReturned() {
+        chartaCatalog.put("id", ENTRY);
+        chartaCatalog.remove("id");
+        assertNull(chartaCatalog.get("id"));
+        assertTrue(chartaCatalog.list().isEmpty());
+    }
+
+    @Test
+    public void givenNewCatalog_whenOpen_thenFalseIsReturned() {
+        assertFalse(chartaCatalog.open());
+    }
+
+    @Test
+    public void givenClosedCatalog_whenReopen_thenTrueIsReturnedAndEntryIsKept() {
+        chartaCatalog.open();
+        chartaCatalog.put("id", ENTRY);
+        chartaCatalog.close();
+
+        chartaCatalog = new DefaultChartaCatalog(imageProperties);
+        assertTrue(chartaCatalog.open());
+        assertEquals(ENTRY, chartaCatalog.get("id"));
+    }
+
+    @Test
+    public void givenOpenedCatalog_whenOpenAgain_thenFalseIsReturned() {
+        chartaCatalog.open();
+        // The catalog hasn't been closed in between, as after a crash
+        assertFalse(chartaCatalog.open());
+    }
+
+    private void deleteTestFolder() throws IOException {
+        Files.walk(Path.of(imageProperties.getParentPath()))
+                .sorted(Comparator.reverseOrder())
+                .map(Path::toFile)
+                .forEach((File fileToBeDeleted) -> {
+                    if (!fileToBeDeleted.delete()) {
+                        log.warn(
+                                "Error while deleting test folder " + imageProperties.getParentPath()
+                                        + ". Please, delete it manually"
+                        );
+                    }
+                });
+    }
+}
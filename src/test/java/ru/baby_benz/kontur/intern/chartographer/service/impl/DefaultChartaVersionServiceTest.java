@@ -0,0 +1,89 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.ConfigDataApplicationContextInitializer;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.configuration.LockProperties;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaVersionService;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(SpringExtension.class)
+@ContextConfiguration(initializers = ConfigDataApplicationContextInitializer.class)
+@EnableConfigurationProperties({ImageProperties.class, LockProperties.class})
+@ActiveProfiles("test")
+public class DefaultChartaVersionServiceTest {
+    private static final String ID = "id";
+
+    @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
+    @Autowired
+    private ImageProperties imageProperties;
+    @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
+    @Autowired
+    private LockProperties lockProperties;
+    private ChartaVersionService chartaVersionService;
+
+    @BeforeEach
+    public void setUp() {
+        chartaVersionService = new DefaultChartaVersionService(lockProperties, imageProperties);
+    }
+
+    @Test
+    public void givenId_whenAdvanceRows_thenOnlyVersionsOfTheirBandsAdvance() {
+        int bandHeight = lockProperties.getBandHeight();
+        long version = chartaVersionService.getVersion(ID, 0, getChartaMaxHeight());
+
+        chartaVersionService.advance(ID, bandHeight + 1, bandHeight + 2);
+
+        assertEquals(version, chartaVersionService.getVersion(ID, 0, bandHeight));
+        assertEquals(version, chartaVersionService.getVersion(ID, bandHeight * 2, getChartaMaxHeight()));
+        assertTrue(chartaVersionService.getVersion(ID, bandHeight, bandHeight + 1) > version);
+        assertTrue(chartaVersionService.getVersion(ID, 0, getChartaMaxHeight()) > version);
+    }
+
+    @Test
+    public void givenId_whenAdvanceRowsTwiceAtOnce_thenVersionsDiffer() {
+        chartaVersionService.advance(ID, 0, 1);
+        long version = chartaVersionService.getVersion(ID, 0, 1);
+
+        chartaVersionService.advance(ID, 0, 1);
+
+        assertTrue(chartaVersionService.getVersion(ID, 0, 1) > version);
+    }
+
+    @Test
+    public void givenAdvancedId_whenRemove_thenOtherIdsKeepVersions() {
+        String otherId = "other";
+        chartaVersionService.advance(ID, 0, 1);
+        chartaVersionService.advance(otherId, 0, 1);
+        long otherVersion = chartaVersionService.getVersion(otherId, 0, 1);
+        long version = chartaVersionService.getVersion(ID, 0, 1);
+
+        chartaVersionService.remove(ID);
+
+        assertEquals(otherVersion, chartaVersionService.getVersion(otherId, 0, 1));
+        assertTrue(chartaVersionService.getVersion(ID, 0, 1) < version);
+    }
+
+    @Test
+    public void givenUnchangedId_whenGetVersion_thenNoVersionsAreKept() {
+        long version = chartaVersionService.getVersion(ID, 0, 1);
+
+        assertEquals(version, chartaVersionService.getVersion(ID, 0, getChartaMaxHeight()));
+        assertTrue(((Map<?, ?>) ReflectionTestUtils.getField(chartaVersionService, "chartaVersions")).isEmpty());
+    }
+
+    private int getChartaMaxHeight() {
+        return imageProperties.getCharta().getMaxDimensions().getHeight();
+    }
+}
@@ -0,0 +1,166 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.ConfigDataApplicationContextInitializer;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaVolumes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(SpringExtension.class)
+@ContextConfiguration(initializers = ConfigDataApplicationContextInitializer.class)
+@EnableConfigurationProperties(ImageProperties.class)
+@ActiveProfiles("test")
+@Slf4j
+public class DefaultChartaVolumesTest {
+    private static final String ID = "id";
+
+    @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
+    @Autowired
+    private ImageProperties imageProperties;
+    private Path parentPath;
+
+    @BeforeEach
+    public void setUp() {
+        parentPath = Path.of(imageProperties.getParentPath());
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        deleteTestFolder();
+    }
+
+    @Test
+    public void givenId_whenPlace_thenFileIsInShardDirectoryAndIsLocated() throws IOException {
+        ChartaVolumes chartaVolumes = new DefaultChartaVolumes(imageProperties);
+
+        Path path = chartaVolumes.place(ID, ID + ".bmp");
+        Files.createFile(path);
+
+        assertEquals(3, parentPath.relativize(path).getNameCount());
+        assertEquals(path, chartaVolumes.locate(ID, ID + ".bmp"));
+        assertEquals(List.of(path), chartaVolumes.list());
+    }
+
+    @Test
+    public void givenMissingFirstRoot_whenPlaceAndLocate_thenFileIsOnSecondRoot() throws IOException {
+        Path firstRoot = parentPath.resolve("first");
+        Path secondRoot = parentPath.resolve("second");
+        ChartaVolumes chartaVolumes = new DefaultChartaVolumes(createImageProperties(firstRoot, secondRoot));
+        Files.delete(firstRoot);
+
+        Path path = chartaVolumes.place(ID, ID + ".bmp");
+        Files.createFile(path);
+        Files.createDirectory(firstRoot);
+
+        assertTrue(path.startsWith(secondRoot));
+        assertEquals(path, chartaVolumes.locate(ID, ID + ".bmp"));
+        // Files missing from every volume are located on the first one
+        assertTrue(chartaVolumes.locate(ID, ID + ".1.bmp").startsWith(firstRoot));
+    }
+
+    @Test
+    public void givenTwoRoots_whenPlaceTwoChartas_thenChartasAreOnDifferentRoots() throws IOException {
+        Path firstRoot = parentPath.resolve("first");
+        Path secondRoot = parentPath.resolve("second");
+        ChartaVolumes chartaVolumes = new DefaultChartaVolumes(createImageProperties(firstRoot, secondRoot));
+
+        Path path = chartaVolumes.place(ID, ID + ".bmp");
+        Path otherPath = chartaVolumes.place("other", "other.bmp");
+
+        assertNotEquals(path.startsWith(firstRoot), otherPath.startsWith(firstRoot));
+    }
+
+    @Test
+    public void givenFlatChartaFilesAndTwoRoots_whenMigrate_thenChartasAreSpreadAndKeepTheirLevels() throws IOException {
+        Path firstRoot = parentPath.resolve("first");
+        Path secondRoot = parentPath.resolve("second");
+        ChartaVolumes chartaVolumes = new DefaultChartaVolumes(createImageProperties(firstRoot, secondRoot));
+        Files.createFile(parentPath.resolve(ID + ".bmp"));
+        Files.createFile(parentPath.resolve(ID + ".1.bmp"));
+        Files.createFile(parentPath.resolve("other.bmp"));
+
+        chartaVolumes.migrate(fileName -> fileName.endsWith(".bmp"));
+
+        Path path = chartaVolumes.locate(ID, ID + ".bmp");
+        assertTrue(Files.exists(path));
+        assertEquals(path.getParent(), chartaVolumes.locate(ID, ID + ".1.bmp").getParent());
+        assertNotEquals(path.startsWith(firstRoot), chartaVolumes.locate("other", "other.bmp").startsWith(firstRoot));
+    }
+
+    @Test
+    public void givenFileUnderParentPath_whenList_thenFileIsNotListed() throws IOException {
+        ChartaVolumes chartaVolumes = new DefaultChartaVolumes(imageProperties);
+        Files.createFile(parentPath.resolve("1.journal"));
+
+        assertTrue(chartaVolumes.list().isEmpty());
+    }
+
+    @Test
+    public void givenFlatChartaFiles_whenMigrate_thenChartaFilesAreMovedToShardDirectory() throws IOException {
+        ChartaVolumes chartaVolumes = new DefaultChartaVolumes(imageProperties);
+        Files.createFile(parentPath.resolve(ID + ".bmp"));
+        Files.createFile(parentPath.resolve(ID + ".1.bmp"));
+        Files.createFile(parentPath.resolve("1.journal"));
+
+        chartaVolumes.migrate(fileName -> fileName.endsWith(".bmp"));
+
+        assertTrue(Files.exists(chartaVolumes.locate(ID, ID + ".bmp")));
+        assertTrue(Files.exists(chartaVolumes.locate(ID, ID + ".1.bmp")));
+        assertFalse(Files.exists(parentPath.resolve(ID + ".bmp")));
+        assertTrue(Files.exists(parentPath.resolve("1.journal")));
+        assertEquals(2, chartaVolumes.list().size());
+    }
+
+    private ImageProperties createImageProperties(Path firstRoot, Path secondRoot) {
+        return new ImageProperties(
+                imageProperties.getType(),
+                imageProperties.getParentPath(),
+                imageProperties.getCharta(),
+                imageProperties.getFragment(),
+                new ImageProperties.Storage(
+                        imageProperties.getStorage().getFormat(),
+                        imageProperties.getStorage().getTileSize(),
+                        imageProperties.getStorage().getCodec(),
+                        List.of(firstRoot.toString(), secondRoot.toString())
+                ),
+                imageProperties.getWriteBack(),
+                imageProperties.getTileCache(),
+                imageProperties.getPyramid(),
+                imageProperties.getJournal()
+        );
+    }
+
+    private void deleteTestFolder() throws IOException {
+        if (!Files.exists(parentPath)) {
+            return;
+        }
+        Files.walk(parentPath)
+                .sorted(Comparator.reverseOrder())
+                .map(Path::toFile)
+                .forEach((File fileToBeDeleted) -> {
+                    if (!fileToBeDeleted.delete()) {
+                        log.warn(
+                                "Error while deleting test folder " + imageProperties.getParentPath()
+                                        + ". Please, delete it manually"
+                        );
+                    }
+                });
+    }
+}
@@ -1,5 +1,6 @@
 package ru.baby_benz.kontur.intern.chartographer.service.impl;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -10,23 +11,35 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.boot.test.context.ConfigDataApplicationContextInitializer;
 import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.configuration.LockProperties;
 import ru.baby_benz.kontur.intern.chartographer.controller.exception.*;
 import ru.baby_benz.kontur.intern.chartographer.service.ChartasService;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaCatalog;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaStorage;
 import ru.baby_benz.kontur.intern.chartographer.service.IOService;
 import ru.baby_benz.kontur.intern.chartographer.service.LockerService;
+import ru.baby_benz.kontur.intern.chartographer.service.WriteBackService;
+import ru.baby_benz.kontur.intern.chartographer.util.FragmentBatchReader;
+import ru.baby_benz.kontur.intern.chartographer.util.Pyramid;
 
-import java.awt.image.BufferedImage;
+import java.awt.*;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Comparator;
+import java.util.List;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -40,8 +53,10 @@ public class DefaultChartasServiceTest {
     @Autowired
     private ImageProperties imageProperties;
     private ChartasService chartasService;
+    private IOService ioService;
 
     // Byte form of the RGB black 2x2 bmp image
+    private static final int BAND_HEIGHT = 8;
     private static final byte[] TEST_FRAGMENT_DATA = {
             66, 77, 70, 0, 0, 0, 0, 0, 0, 0, 54, 0, 0, 0, 40, 0, 0, 0, 2, 0, 0, 0,
             2, 0, 0, 0, 1, 0, 24, 0, 0, 0, 0, 0, 16, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
@@ -50,7 +65,20 @@ public class DefaultChartasServiceTest {
     @BeforeEach
     public void setUp() {
         createTestFolder();
-        IOService ioService = Mockito.spy(new DefaultIOService(imageProperties, Mockito.mock(LockerService.class)));
+        LockerService lockerService = Mockito.mock(LockerService.class);
+        ChartaStorage chartaStorage = new BmpChartaStorage(imageProperties, new DefaultChartaVolumes(imageProperties));
+        WriteBackService writeBackService = new DefaultWriteBackService(imageProperties, lockerService, chartaStorage);
+        ioService = Mockito.spy(new DefaultIOService(
+                imageProperties,
+                lockerService,
+                chartaStorage,
+                Mockito.mock(ChartaCatalog.class),
+                writeBackService,
+                new DefaultTileCacheService(imageProperties),
+                new DefaultJournalService(imageProperties, writeBackService, chartaStorage),
+                new DefaultChartaVersionService(new LockProperties("striped", BAND_HEIGHT), imageProperties),
+                new SimpleMeterRegistry()
+        ));
         mockIOServiceFileMethods(ioService);
         chartasService = new DefaultChartasService(imageProperties, ioService);
     }
@@ -382,6 +410,31 @@ public class DefaultChartasServiceTest {
         );
     }
 
+    @Test
+    public void givenNegativePlaneFragmentInBatch_whenPutFragments_thenExceptionIsThrown() throws IOException {
+        String id = createMaxCharta();
+        byte[] batch = toBatch(new int[]{0, 0, 2, 2}, new int[]{-2, -2, 2, 2});
+        assertThrows(FragmentNegativePlaneException.class, () -> chartasService.putFragments(
+                id, new InputStreamResource(new ByteArrayInputStream(batch)))
+        );
+    }
+
+    @Test
+    public void givenOutOfMaxXFragmentInBatch_whenPutFragments_thenExceptionIsThrown() throws IOException {
+        String id = createMaxCharta();
+        byte[] batch = toBatch(new int[]{getChartaMaxWidth() + 1, 0, 2, 2});
+        assertThrows(NoIntersectionException.class, () -> chartasService.putFragments(
+                id, new InputStreamResource(new ByteArrayInputStream(batch)))
+        );
+    }
+
+    @Test
+    public void givenIntersectingFragmentsInBatch_whenPutFragments_thenNoExceptionIsThrown() throws IOException {
+        String id = createMaxCharta();
+        byte[] batch = toBatch(new int[]{-1, -1, 2, 2}, new int[]{1, 1, 2, 2});
+        assertDoesNotThrow(() -> chartasService.putFragments(id, new InputStreamResource(new ByteArrayInputStream(batch))));
+    }
+
     @Test
     public void givenExceedMaximumWidth_whenGetFragment_thenExceptionIsThrown() {
         assertThrows(TooBigFragmentException.class, () -> chartasService.getFragment(
@@ -389,7 +442,8 @@ public class DefaultChartasServiceTest {
                 1,
                 1,
                 getFragmentMaxWidth() + 1,
-                0)
+                0,
+                OutputStream.nullOutputStream())
         );
     }
 
@@ -400,7 +454,8 @@ public class DefaultChartasServiceTest {
                 1,
                 1,
                 0,
-                getFragmentMaxHeight() + 1)
+                getFragmentMaxHeight() + 1,
+                OutputStream.nullOutputStream())
         );
     }
 
@@ -411,7 +466,8 @@ public class DefaultChartasServiceTest {
                 1,
                 1,
                 getFragmentMaxWidth() + 1,
-                getFragmentMaxHeight() + 1)
+                getFragmentMaxHeight() + 1,
+                OutputStream.nullOutputStream())
         );
     }
 
@@ -423,7 +479,8 @@ public class DefaultChartasServiceTest {
                 0,
                 0,
                 -1,
-                -1)
+                -1,
+                OutputStream.nullOutputStream())
         );
     }
 
@@ -434,7 +491,8 @@ public class DefaultChartasServiceTest {
                 0,
                 0,
                 -1,
-                1)
+                1,
+                OutputStream.nullOutputStream())
         );
     }
 
@@ -445,7 +503,8 @@ public class DefaultChartasServiceTest {
                 0,
                 0,
                 1,
-                -1)
+                -1,
+                OutputStream.nullOutputStream())
         );
     }
 
@@ -456,7 +515,8 @@ public class DefaultChartasServiceTest {
                 0,
                 0,
                 0,
-                0)
+                0,
+                OutputStream.nullOutputStream())
         );
     }
 
@@ -467,7 +527,8 @@ public class DefaultChartasServiceTest {
                 0,
                 0,
                 0,
-                1)
+                1,
+                OutputStream.nullOutputStream())
         );
     }
 
@@ -478,7 +539,8 @@ public class DefaultChartasServiceTest {
                 0,
                 0,
                 1,
-                0)
+                0,
+                OutputStream.nullOutputStream())
         );
     }
 
@@ -489,7 +551,8 @@ public class DefaultChartasServiceTest {
                 -1,
                 -1,
                 1,
-                1)
+                1,
+                OutputStream.nullOutputStream())
         );
     }
 
@@ -500,7 +563,8 @@ public class DefaultChartasServiceTest {
                 -1,
                 0,
                 1,
-                1)
+                1,
+                OutputStream.nullOutputStream())
         );
     }
 
@@ -511,7 +575,8 @@ public class DefaultChartasServiceTest {
                 0,
                 -1,
                 1,
-                1)
+                1,
+                OutputStream.nullOutputStream())
         );
     }
 
@@ -522,7 +587,8 @@ public class DefaultChartasServiceTest {
                 getChartaMaxWidth() + 1,
                 getChartaMaxHeight() + 1,
                 1,
-                1)
+                1,
+                OutputStream.nullOutputStream())
         );
     }
 
@@ -533,7 +599,8 @@ public class DefaultChartasServiceTest {
                 getChartaMaxWidth() + 1,
                 1,
                 1,
-                1)
+                1,
+                OutputStream.nullOutputStream())
         );
     }
 
@@ -544,92 +611,268 @@ public class DefaultChartasServiceTest {
                 1,
                 getChartaMaxHeight() + 1,
                 1,
-                1)
+                1,
+                OutputStream.nullOutputStream())
         );
     }
 
     @Test
-    public void givenNegativeXAndYFragmentIntersects_whenGetFragment_thenInstanceOfInputStreamResourceReturns() {
-        assertInstanceOf(InputStreamResource.class, chartasService.getFragment(
+    public void givenNegativeXAndYFragmentIntersects_whenGetFragment_thenFragmentIsWritten() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        chartasService.getFragment(
                 createMaxCharta(),
                 -1,
                 -1,
                 2,
-                2)
-        );
+                2,
+                output);
+        assertArrayEquals(TEST_FRAGMENT_DATA, output.toByteArray());
     }
 
     @Test
-    public void givenNegativeXFragmentIntersects_whenGetFragment_thenInstanceOfInputStreamResourceReturns() {
-        assertInstanceOf(InputStreamResource.class, chartasService.getFragment(
+    public void givenNegativeXFragmentIntersects_whenGetFragment_thenFragmentIsWritten() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        chartasService.getFragment(
                 createMaxCharta(),
                 -1,
                 0,
                 2,
-                2)
-        );
+                2,
+                output);
+        assertArrayEquals(TEST_FRAGMENT_DATA, output.toByteArray());
     }
 
     @Test
-    public void givenNegativeYFragmentIntersects_whenGetFragment_thenInstanceOfInputStreamResourceReturns() {
-        assertInstanceOf(InputStreamResource.class, chartasService.getFragment(
+    public void givenNegativeYFragmentIntersects_whenGetFragment_thenFragmentIsWritten() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        chartasService.getFragment(
                 createMaxCharta(),
                 0,
                 -1,
                 2,
-                2)
-        );
+                2,
+                output);
+        assertArrayEquals(TEST_FRAGMENT_DATA, output.toByteArray());
     }
 
     @Test
-    public void givenPositiveXAndYFragmentIntersects_whenGetFragment_thenInstanceOfInputStreamResourceReturns() {
-        assertInstanceOf(InputStreamResource.class, chartasService.getFragment(
+    public void givenPositiveXAndYFragmentIntersects_whenGetFragment_thenFragmentIsWritten() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        chartasService.getFragment(
                 createMaxCharta(),
                 getChartaMaxWidth() - 1,
                 getChartaMaxHeight() - 1,
                 2,
-                2)
-        );
+                2,
+                output);
+        assertArrayEquals(TEST_FRAGMENT_DATA, output.toByteArray());
     }
 
     @Test
-    public void givenPositiveXFragmentIntersects_whenGetFragment_thenInstanceOfInputStreamResourceReturns() {
-        assertInstanceOf(InputStreamResource.class, chartasService.getFragment(
+    public void givenPositiveXFragmentIntersects_whenGetFragment_thenFragmentIsWritten() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        chartasService.getFragment(
                 createMaxCharta(),
                 getChartaMaxWidth() - 1,
                 0,
                 2,
-                2)
-        );
+                2,
+                output);
+        assertArrayEquals(TEST_FRAGMENT_DATA, output.toByteArray());
     }
 
     @Test
-    public void givenPositiveYFragmentIntersects_whenPutFragment_whenGetFragment_thenInstanceOfInputStreamResourceReturns() {
-        assertInstanceOf(InputStreamResource.class, chartasService.getFragment(
+    public void givenPositiveYFragmentIntersects_whenPutFragment_whenGetFragment_thenFragmentIsWritten() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        chartasService.getFragment(
                 createMaxCharta(),
                 0,
                 getChartaMaxHeight() - 1,
                 2,
-                2)
+                2,
+                output);
+        assertArrayEquals(TEST_FRAGMENT_DATA, output.toByteArray());
+    }
+
+    @Test
+    public void givenNonZeroXAndYInBoundsFragment_whenPutFragment_thenFragmentIsWritten() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        chartasService.getFragment(
+                createMaxCharta(),
+                1,
+                1,
+                2,
+                2,
+                output);
+        assertArrayEquals(TEST_FRAGMENT_DATA, output.toByteArray());
+    }
+
+    @Test
+    public void givenLevelAboveMaxLevel_whenGetFragment_thenExceptionIsThrown() {
+        assertThrows(LevelNotFoundException.class, () -> chartasService.getFragment(
+                createMaxCharta(),
+                imageProperties.getPyramid().getMaxLevel() + 1,
+                0,
+                0,
+                1,
+                1,
+                OutputStream.nullOutputStream())
         );
     }
 
     @Test
-    public void givenNonZeroXAndYInBoundsFragment_whenPutFragment_thenInstanceOfInputStreamResourceReturns() {
-        assertInstanceOf(InputStreamResource.class, chartasService.getFragment(
+    public void givenNegativeLevel_whenGetFragment_thenExceptionIsThrown() {
+        assertThrows(LevelNotFoundException.class, () -> chartasService.getFragment(
                 createMaxCharta(),
+                -1,
+                0,
+                0,
+                1,
                 1,
+                OutputStream.nullOutputStream())
+        );
+    }
+
+    @Test
+    public void givenOutOfLevelX_whenGetFragment_thenExceptionIsThrown() {
+        assertThrows(NoIntersectionException.class, () -> chartasService.getFragment(
+                createMaxCharta(),
+                1,
+                (getChartaMaxWidth() + 1) / 2,
+                0,
+                1,
+                1,
+                OutputStream.nullOutputStream())
+        );
+    }
+
+    @Test
+    public void givenInLevelBoundsFragment_whenGetFragment_thenLevelFragmentIsWritten() {
+        String id = createMaxCharta();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        chartasService.getFragment(
+                id,
                 1,
+                0,
+                0,
+                2,
                 2,
-                2)
+                output);
+        assertArrayEquals(TEST_FRAGMENT_DATA, output.toByteArray());
+        Mockito.verify(ioService).readImageRegion(Pyramid.getLevelId(id, 1), 0, 0, 2, 2, output);
+    }
+
+    @Test
+    public void givenOutOfLevelX_whenGetFragmentVersion_thenExceptionIsThrown() {
+        assertThrows(NoIntersectionException.class, () -> chartasService.getFragmentVersion(
+                createMaxCharta(),
+                1,
+                (getChartaMaxWidth() + 1) / 2,
+                0,
+                1,
+                1)
+        );
+    }
+
+    @Test
+    public void givenInLevelBoundsFragment_whenGetFragmentVersion_thenLevelRegionVersionIsRead() {
+        String id = createMaxCharta();
+        chartasService.getFragmentVersion(id, 1, 0, 1, 2, 2);
+        Mockito.verify(ioService).readImageRegionVersion(Pyramid.getLevelId(id, 1), 1, 2);
+    }
+
+    @Test
+    public void givenIncompleteRegion_whenGetFragments_thenExceptionIsThrown() {
+        assertThrows(InvalidRegionsException.class, () -> chartasService.getFragments(
+                createMaxCharta(),
+                0,
+                new int[]{0, 0, 2, 2, 0, 0},
+                OutputStream.nullOutputStream())
+        );
+    }
+
+    @Test
+    public void givenExceedMaximumWidthRegion_whenGetFragments_thenExceptionIsThrown() {
+        assertThrows(TooBigFragmentException.class, () -> chartasService.getFragments(
+                createMaxCharta(),
+                0,
+                new int[]{0, 0, 2, 2, 0, 0, getFragmentMaxWidth() + 1, 2},
+                OutputStream.nullOutputStream())
+        );
+    }
+
+    @Test
+    public void givenTooManyRegions_whenGetFragments_thenExceptionIsThrown() {
+        int[] regions = new int[(getRegionsMaxCount() + 1) * 4];
+        for (int i = 0; i < regions.length; i += 4) {
+            regions[i + 2] = 1;
+            regions[i + 3] = 1;
+        }
+        assertThrows(InvalidRegionsException.class, () -> chartasService.getFragments(
+                createMaxCharta(),
+                0,
+                regions,
+                OutputStream.nullOutputStream())
+        );
+    }
+
+    @Test
+    public void givenRegionsOfExceedMaximumArea_whenGetFragments_thenExceptionIsThrown() {
+        int side = (int) Math.sqrt(getRegionsMaxArea() / 2) + 1;
+        assertThrows(InvalidRegionsException.class, () -> chartasService.getFragments(
+                createMaxCharta(),
+                0,
+                new int[]{0, 0, side, side, 0, 0, side, side},
+                OutputStream.nullOutputStream())
+        );
+    }
+
+    @Test
+    public void givenOutOfMaxXRegion_whenGetFragments_thenExceptionIsThrown() {
+        assertThrows(NoIntersectionException.class, () -> chartasService.getFragments(
+                createMaxCharta(),
+                0,
+                new int[]{0, 0, 2, 2, getChartaMaxWidth() + 1, 0, 2, 2},
+                OutputStream.nullOutputStream())
         );
     }
 
+    @Test
+    public void givenIntersectingRegions_whenGetFragments_thenFragmentsAreWritten() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        chartasService.getFragments(
+                createMaxCharta(),
+                0,
+                new int[]{-1, -1, 2, 2, 1, 1, 2, 2},
+                output);
+
+        byte[] expectedBytes = new byte[TEST_FRAGMENT_DATA.length * 2];
+        System.arraycopy(TEST_FRAGMENT_DATA, 0, expectedBytes, 0, TEST_FRAGMENT_DATA.length);
+        System.arraycopy(TEST_FRAGMENT_DATA, 0, expectedBytes, TEST_FRAGMENT_DATA.length, TEST_FRAGMENT_DATA.length);
+        assertArrayEquals(expectedBytes, output.toByteArray());
+    }
+
     @Test
     public void givenActualChartasId_whenDeleteCharta_thenNoExceptionIsThrown() {
         assertDoesNotThrow(() -> chartasService.deleteCharta(createMaxCharta()));
     }
 
+    /**
+     * @param fragments x, y, width and height of fragments, all of them carry {@link #TEST_FRAGMENT_DATA}
+     */
+    private byte[] toBatch(int[]... fragments) throws IOException {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(batch);
+        for (int[] fragment : fragments) {
+            for (int value : fragment) {
+                output.writeInt(value);
+            }
+            output.writeInt(TEST_FRAGMENT_DATA.length);
+            output.write(TEST_FRAGMENT_DATA);
+        }
+        return batch.toByteArray();
+    }
+
     private String createMaxCharta() {
         return chartasService.createCharta(getChartaMaxWidth(), getChartaMaxHeight());
     }
@@ -650,6 +893,14 @@ public class DefaultChartasServiceTest {
         return imageProperties.getFragment().getMaxDimensions().getHeight();
     }
 
+    private int getRegionsMaxCount() {
+        return imageProperties.getFragment().getMaxRegions().getCount();
+    }
+
+    private long getRegionsMaxArea() {
+        return imageProperties.getFragment().getMaxRegions().getArea();
+    }
+
     private void createTestFolder() {
         File chartasFolder = new File(imageProperties.getParentPath());
         if (!chartasFolder.exists()) {
@@ -673,8 +924,11 @@ public class DefaultChartasServiceTest {
 
     private void mockIOServiceFileMethods(IOService ioService) {
         mockCreateImage(ioService);
-        mockReadImage(ioService);
-        mockWriteImage(ioService);
+        mockReadImageDimensions(ioService);
+        mockReadImageRegion(ioService);
+        mockReadImageRegions(ioService);
+        mockWriteImageRegion(ioService);
+        mockWriteImageRegions(ioService);
         mockDeleteImage(ioService);
     }
 
@@ -686,22 +940,60 @@ public class DefaultChartasServiceTest {
         );
     }
 
-    private void mockReadImage(IOService ioService) {
-        /*Mockito.when(ioService.readImage(Mockito.anyString())).thenReturn(
-                new BufferedImage(getChartaMaxWidth(),
-                        getChartaMaxHeight(),
-                        BufferedImage.TYPE_INT_RGB)
-        );*/
+    private void mockReadImageDimensions(IOService ioService) {
         Mockito.doReturn(
-                new BufferedImage(
-                        getChartaMaxWidth(),
-                        getChartaMaxHeight(),
-                        BufferedImage.TYPE_INT_RGB)
-        ).when(ioService).readImage(Mockito.anyString());
+                new Dimension(getChartaMaxWidth(), getChartaMaxHeight())
+        ).when(ioService).readImageDimensions(Mockito.anyString());
     }
 
-    private void mockWriteImage(IOService ioService) {
-        Mockito.doNothing().when(ioService).writeImage(Mockito.any(), Mockito.anyString());
+    private void mockReadImageRegion(IOService ioService) {
+        Mockito.doAnswer(invocation -> {
+            invocation.getArgument(5, OutputStream.class).write(TEST_FRAGMENT_DATA);
+            return null;
+        }).when(ioService).readImageRegion(
+                Mockito.anyString(),
+                Mockito.anyInt(),
+                Mockito.anyInt(),
+                Mockito.anyInt(),
+                Mockito.anyInt(),
+                Mockito.any()
+        );
+    }
+
+    private void mockReadImageRegions(IOService ioService) {
+        Mockito.doAnswer(invocation -> {
+            OutputStream output = invocation.getArgument(2, OutputStream.class);
+            for (Object ignored : invocation.getArgument(1, List.class)) {
+                output.write(TEST_FRAGMENT_DATA);
+            }
+            return null;
+        }).when(ioService).readImageRegions(Mockito.anyString(), Mockito.anyList(), Mockito.any());
+    }
+
+    private void mockWriteImageRegion(IOService ioService) {
+        Mockito.doNothing().when(ioService).writeImageRegion(
+                Mockito.anyString(),
+                Mockito.anyInt(),
+                Mockito.anyInt(),
+                Mockito.anyInt(),
+                Mockito.anyInt(),
+                Mockito.any()
+        );
+    }
+
+    @SuppressWarnings("unchecked")
+    private void mockWriteImageRegions(IOService ioService) {
+        Mockito.doAnswer(invocation -> {
+            FragmentBatchReader batchReader = new FragmentBatchReader(
+                    invocation.getArgument(1, Resource.class).getInputStream()
+            );
+            Consumer<FragmentBatchReader.Fragment> regionValidator = invocation.getArgument(2, Consumer.class);
+            FragmentBatchReader.Fragment fragment;
+            while ((fragment = batchReader.readFragment()) != null) {
+                regionValidator.accept(fragment);
+            }
+            return null;
+        }).when(ioService).writeImageRegions(Mockito.anyString(), Mockito.any(), Mockito.any());
     }
 
     private void mockDeleteImage(IOService ioService) {
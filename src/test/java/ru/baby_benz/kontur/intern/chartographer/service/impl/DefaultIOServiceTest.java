@@ -1,5 +1,7 @@
 package ru.baby_benz.kontur.intern.chartographer.service.impl;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -9,25 +11,41 @@ import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.boot.test.context.ConfigDataApplicationContextInitializer;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
 import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.configuration.LockProperties;
 import ru.baby_benz.kontur.intern.chartographer.controller.exception.ChartaIOException;
 import ru.baby_benz.kontur.intern.chartographer.controller.exception.ChartaNotFoundException;
 import ru.baby_benz.kontur.intern.chartographer.controller.exception.FileIsLockedException;
+import ru.baby_benz.kontur.intern.chartographer.controller.exception.InvalidFragmentDataException;
 import ru.baby_benz.kontur.intern.chartographer.controller.exception.ServiceIsUnavailableException;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaStorage;
 import ru.baby_benz.kontur.intern.chartographer.service.IOService;
 import ru.baby_benz.kontur.intern.chartographer.service.LockerService;
+import ru.baby_benz.kontur.intern.chartographer.service.WriteBackService;
+import ru.baby_benz.kontur.intern.chartographer.util.BmpHeader;
+import ru.baby_benz.kontur.intern.chartographer.util.Pyramid;
 
+import javax.imageio.ImageIO;
+import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -40,17 +58,26 @@ public class DefaultIOServiceTest {
     @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
     @Autowired
     private ImageProperties imageProperties;
+    private static final int BAND_HEIGHT = 8;
+
     private final LockerService lockerService = new ReadWriteLockerService();
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    // The catalog file can't be opened twice, so every IO service of a test shares it
+    private DefaultChartaCatalog chartaCatalog;
     private IOService ioService;
 
     @BeforeEach
     public void setUp() {
         createTestFolder();
-        ioService = new DefaultIOService(imageProperties, lockerService);
+        chartaCatalog = new DefaultChartaCatalog(imageProperties);
+        ioService = createIOService(lockerService);
     }
 
     @AfterEach
     public void tearDown() throws IOException {
+        // Tests of interrupted threads leave the flag set, it would close the catalog file channel
+        Thread.interrupted();
+        chartaCatalog.close();
         deleteTestFolder();
     }
 
@@ -61,6 +88,13 @@ public class DefaultIOServiceTest {
         assertTrue(isImageOk(fileId));
     }
 
+    @Test
+    public void givenEmptyIdAndOddWidth_whenCreateImage_thenFileLengthIncludesRowPadding() throws IOException {
+        String fileId = "";
+        ioService.createImage(fileId, 3, 3);
+        assertEquals(54 + 12 * 3, Files.size(getImagePath(fileId)));
+    }
+
     @Test
     public void givenEmptyId_whenDeleteTestFolderAndCreateImage_thenExceptionIsThrown() throws IOException {
         deleteTestFolder();
@@ -68,95 +102,302 @@ public class DefaultIOServiceTest {
     }
 
     @Test
-    public void givenEmptyId_whenReadImage_thenExceptionIsThrown() {
-        assertThrows(ChartaNotFoundException.class, () -> ioService.readImage(""));
+    public void givenEmptyIdAndMockedLockerService_whenReadImageRegion_thenExceptionIsThrown() throws InterruptedException {
+        String fileId = "";
+
+        LockerService lockerService = Mockito.mock(LockerService.class);
+        Mockito.doReturn(false).when(lockerService).acquireLock(fileId, LockType.SHARED, 0, 1);
+        ioService = createIOService(lockerService);
+
+        assertThrows(FileIsLockedException.class, () -> ioService.readImageRegion(
+                fileId, 0, 0, 1, 1, OutputStream.nullOutputStream())
+        );
+    }
+
+    @Test
+    public void givenEmptyId_whenCreateImageAndInterruptThreadAndReadImageRegion_thenExceptionIsThrown() {
+        String fileId = "";
+        ioService.createImage(fileId, 2, 2);
+        Thread.currentThread().interrupt();
+        assertThrows(ServiceIsUnavailableException.class, () -> ioService.readImageRegion(
+                fileId, 0, 0, 1, 1, OutputStream.nullOutputStream())
+        );
+    }
+
+    @Test
+    public void givenEmptyId_whenReadImageDimensions_thenExceptionIsThrown() {
+        assertThrows(ChartaNotFoundException.class, () -> ioService.readImageDimensions(""));
     }
 
     @Test
-    public void givenEmptyId_whenCreateImageAndReadImage_thenReturnedImageEquals() {
+    public void givenEmptyId_whenCreateImageAndReadImageDimensions_thenDimensionsEqual() {
         String fileId = "";
+        ioService.createImage(fileId, 3, 2);
+        assertEquals(new Dimension(3, 2), ioService.readImageDimensions(fileId));
+    }
+
+    @Test
+    public void givenEmptyId_whenReadImageRegion_thenExceptionIsThrown() {
+        assertThrows(ChartaNotFoundException.class, () -> ioService.readImageRegion(
+                "", 0, 0, 1, 1, OutputStream.nullOutputStream())
+        );
+    }
+
+    @Test
+    public void givenEmptyId_whenCreateImageAndReadImageRegion_thenReturnedImageEquals() {
+        String fileId = "";
+        ioService.createImage(fileId, 2, 2);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ioService.readImageRegion(fileId, 0, 0, 2, 2, output);
+        assertTrue(isImageOk(output.toByteArray()));
+    }
 
+    @Test
+    public void givenEmptyId_whenWriteImageRegionAndReadPartiallyOutOfBoundsRegion_thenOutsidePixelsAreBlack() throws IOException {
+        String fileId = "";
         ioService.createImage(fileId, 2, 2);
 
-        final byte[] expectedBytes = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        BufferedImage region = new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB);
+        region.setRGB(0, 0, 0x010203);
+        region.setRGB(1, 0, 0x040506);
+        region.setRGB(0, 1, 0x070809);
+        region.setRGB(1, 1, 0x0A0B0C);
+        ioService.writeImageRegion(fileId, 0, 0, 2, 2, toBmpResource(region));
+
+        // 2x2 region at (1;-1): its bottom-left pixel is the charta's top-right pixel
+        final byte[] expectedPixelBytes = {
+                6, 5, 4, 0, 0, 0, 0, 0,
+                0, 0, 0, 0, 0, 0, 0, 0};
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ioService.readImageRegion(fileId, 1, -1, 2, 2, output);
+
+        byte[] regionBytes = output.toByteArray();
+        assertArrayEquals(expectedPixelBytes, Arrays.copyOfRange(regionBytes, 54, regionBytes.length));
+    }
+
+    @Test
+    public void givenEmptyId_whenWriteImageRegionAndReadImageRegions_thenRegionsAreConcatenated() throws IOException {
+        String fileId = "";
+        ioService.createImage(fileId, 3, 3);
+
+        BufferedImage region = new BufferedImage(3, 3, BufferedImage.TYPE_INT_RGB);
+        for (int i = 0; i < 9; i++) {
+            region.setRGB(i % 3, i / 3, 0x010101 * (i + 1));
+        }
+        ioService.writeImageRegion(fileId, 0, 0, 3, 3, toBmpResource(region));
+
+        ByteArrayOutputStream expectedOutput = new ByteArrayOutputStream();
+        ioService.readImageRegion(fileId, 0, 0, 2, 2, expectedOutput);
+        ioService.readImageRegion(fileId, 1, -1, 3, 2, expectedOutput);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ioService.readImageRegions(fileId, List.of(new Rectangle(0, 0, 2, 2), new Rectangle(1, -1, 3, 2)), output);
+        assertArrayEquals(expectedOutput.toByteArray(), output.toByteArray());
+    }
+
+    @Test
+    public void givenEmptyId_whenWriteImageRegionAndReadImageRegion_thenBytesAreCounted() throws IOException {
+        String fileId = "";
+        ioService.createImage(fileId, 3, 3);
+
+        ioService.writeImageRegion(fileId, 1, 1, 3, 3,
+                toBmpResource(new BufferedImage(3, 3, BufferedImage.TYPE_INT_RGB)));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ioService.readImageRegion(fileId, 0, 0, 2, 2, output);
 
-        DataBufferByte imageDataBuffer = (DataBufferByte) ioService.readImage(fileId).getRaster().getDataBuffer();
-        assertArrayEquals(expectedBytes, imageDataBuffer.getData());
+        assertEquals(2 * 2 * 3, meterRegistry.counter("chartas.io.bytes", "direction", "written").count());
+        assertEquals(output.size(), meterRegistry.counter("chartas.io.bytes", "direction", "read").count());
     }
 
     @Test
-    public void givenEmptyId_whenCreateImageAndDeleteTestFolderAndReadImage_thenExceptionIsThrown() throws IOException {
+    public void givenEmptyId_whenCreateImageAndDeleteTestFolderAndReadImageRegion_thenExceptionIsThrown() throws IOException {
         String fileId = "";
         ioService.createImage(fileId, 2, 2);
         deleteTestFolder();
-        assertThrows(ChartaIOException.class, () -> ioService.readImage(fileId));
+        assertThrows(ChartaIOException.class, () -> ioService.readImageRegion(
+                fileId, 0, 0, 1, 1, OutputStream.nullOutputStream())
+        );
     }
 
     @Test
-    public void givenEmptyIdAndMockedLockerService_whenReadImage_thenExceptionIsThrown() throws InterruptedException {
+    public void givenEmptyId_whenWriteImageRegion_thenExceptionIsThrown() {
+        assertThrows(ChartaNotFoundException.class, () -> ioService.writeImageRegion(
+                "", 0, 0, 1, 1, toBmpResource(new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB)))
+        );
+    }
+
+    @Test
+    public void givenEmptyId_whenCreateImageAndWriteImageRegion_thenOnlyRegionPixelsChange() throws IOException {
         String fileId = "";
+        ioService.createImage(fileId, 3, 2);
 
-        LockerService lockerService = Mockito.mock(LockerService.class);
-        Mockito.doReturn(false).when(lockerService).acquireLock(fileId, LockType.SHARED);
-        ioService = new DefaultIOService(imageProperties, lockerService);
+        BufferedImage region = new BufferedImage(2, 1, BufferedImage.TYPE_INT_RGB);
+        region.setRGB(0, 0, 0x010203);
+        region.setRGB(1, 0, 0x040506);
+        ioService.writeImageRegion(fileId, 1, 0, 2, 1, toBmpResource(region));
+
+        // Rows are stored bottom-up and padded to 12 bytes, so the top row comes last
+        final byte[] expectedPixelBytes = {
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                0, 0, 0, 3, 2, 1, 6, 5, 4, 0, 0, 0};
 
-        assertThrows(FileIsLockedException.class, () -> ioService.readImage(fileId));
+        byte[] imageBytes = Files.readAllBytes(getImagePath(fileId));
+        assertArrayEquals(expectedPixelBytes, Arrays.copyOfRange(imageBytes, 54, imageBytes.length));
     }
 
     @Test
-    public void givenEmptyId_whenCreateImageAndInterruptThreadAndReadImage_thenExceptionIsThrown() {
+    public void givenEmptyId_whenCreateImageAndWriteImageRegionPartiallyOutOfBounds_thenOutsidePixelsAreSkipped() throws IOException {
         String fileId = "";
         ioService.createImage(fileId, 2, 2);
-        Thread.currentThread().interrupt();
-        assertThrows(ServiceIsUnavailableException.class, () -> ioService.readImage(fileId));
+
+        BufferedImage region = new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB);
+        region.setRGB(0, 0, 0x010203);
+        region.setRGB(1, 0, 0x040506);
+        region.setRGB(0, 1, 0x070809);
+        region.setRGB(1, 1, 0x0A0B0C);
+        ioService.writeImageRegion(fileId, -1, 1, 2, 2, toBmpResource(region));
+
+        // Only the region's top-right pixel lands on the charta, at its bottom-left corner
+        final byte[] expectedPixelBytes = {
+                6, 5, 4, 0, 0, 0, 0, 0,
+                0, 0, 0, 0, 0, 0, 0, 0};
+
+        byte[] imageBytes = Files.readAllBytes(getImagePath(fileId));
+        assertArrayEquals(expectedPixelBytes, Arrays.copyOfRange(imageBytes, 54, imageBytes.length));
     }
 
     @Test
-    public void givenEmptyId_whenWriteImage_thenExceptionIsThrown() {
-        assertThrows(ChartaNotFoundException.class, () -> ioService.writeImage(
-                new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB), "")
-        );
+    public void givenEmptyId_whenCreateImageAndWriteImageRegion_thenLevelPixelsAreAveraged() throws IOException {
+        String fileId = "";
+        ioService.createImage(fileId, 4, 2);
+
+        BufferedImage region = new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB);
+        region.setRGB(0, 0, 0x040404);
+        region.setRGB(1, 0, 0x080808);
+        region.setRGB(0, 1, 0x0C0C0C);
+        region.setRGB(1, 1, 0x101010);
+        ioService.writeImageRegion(fileId, 0, 0, 2, 2, toBmpResource(region));
+
+        // Level 1 is 2x1 with the average of the region in its left pixel, level 2 is 1x1 averaging level 1
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ioService.readImageRegion(Pyramid.getLevelId(fileId, 1), 0, 0, 2, 1, output);
+        byte[] firstLevelBytes = output.toByteArray();
+        assertArrayEquals(new byte[]{10, 10, 10, 0, 0, 0}, Arrays.copyOfRange(firstLevelBytes, 54, 60));
+
+        output.reset();
+        ioService.readImageRegion(Pyramid.getLevelId(fileId, 2), 0, 0, 1, 1, output);
+        byte[] secondLevelBytes = output.toByteArray();
+        assertArrayEquals(new byte[]{5, 5, 5}, Arrays.copyOfRange(secondLevelBytes, 54, 57));
     }
 
     @Test
-    public void givenEmptyId_whenCreateImageAndWriteImage_thenFileChecksReturnTrue() throws IOException {
+    public void givenEmptyIdAndRegionAboveParallelismThreshold_whenWriteImageRegion_thenLevelPixelsAreAveraged() throws IOException {
+        String fileId = "";
+        int size = 15;
+        ioService.createImage(fileId, size, size);
+
+        BufferedImage region = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                region.setRGB(x, y, 0x010101 * (x * 16 + y));
+            }
+        }
+        ioService.writeImageRegion(fileId, 0, 0, size, size, toBmpResource(region));
+
+        int levelSize = (size + 1) / 2;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ioService.readImageRegion(Pyramid.getLevelId(fileId, 1), 0, 0, levelSize, levelSize, output);
+        BufferedImage level = ImageIO.read(new ByteArrayInputStream(output.toByteArray()));
+
+        for (int y = 0; y < levelSize; y++) {
+            for (int x = 0; x < levelSize; x++) {
+                int sum = 0;
+                int count = 0;
+                for (int sourceY = y * 2; sourceY < Math.min(y * 2 + 2, size); sourceY++) {
+                    for (int sourceX = x * 2; sourceX < Math.min(x * 2 + 2, size); sourceX++) {
+                        sum += region.getRGB(sourceX, sourceY) & 0xFF;
+                        count++;
+                    }
+                }
+                assertEquals((sum + count / 2) / count, level.getRGB(x, y) & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void givenEmptyId_whenCreateImageAndWriteImageRegions_thenRegionsAreWrittenInOrder() throws IOException {
+        String fileId = "";
+        ioService.createImage(fileId, 3, 1);
+
+        BufferedImage firstRegion = new BufferedImage(2, 1, BufferedImage.TYPE_INT_RGB);
+        firstRegion.setRGB(0, 0, 0x010203);
+        firstRegion.setRGB(1, 0, 0x040506);
+        BufferedImage secondRegion = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        secondRegion.setRGB(0, 0, 0x070809);
+
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        writeBatchEntry(batch, 0, 0, firstRegion);
+        writeBatchEntry(batch, 1, 0, secondRegion);
+        List<Integer> validatedXs = new ArrayList<>();
+        ioService.writeImageRegions(fileId, new InputStreamResource(new ByteArrayInputStream(batch.toByteArray())),
+                region -> validatedXs.add(region.getX()));
+
+        // The second region overwrites the right pixel of the first one
+        final byte[] expectedPixelBytes = {3, 2, 1, 9, 8, 7, 0, 0, 0, 0, 0, 0};
+
+        byte[] imageBytes = Files.readAllBytes(getImagePath(fileId));
+        assertArrayEquals(expectedPixelBytes, Arrays.copyOfRange(imageBytes, 54, imageBytes.length));
+        assertEquals(List.of(0, 1), validatedXs);
+    }
+
+    @Test
+    public void givenEmptyIdAndTruncatedBatch_whenCreateImageAndWriteImageRegions_thenExceptionIsThrown() {
         String fileId = "";
         ioService.createImage(fileId, 2, 2);
-        ioService.writeImage(new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB), fileId);
-        assertTrue(isImageOk(fileId));
+        assertThrows(InvalidFragmentDataException.class, () -> ioService.writeImageRegions(
+                fileId, new InputStreamResource(new ByteArrayInputStream(new byte[]{0, 0, 0, 0, 0, 0})), region -> {
+                })
+        );
     }
 
     @Test
-    public void givenEmptyId_whenCreateImageAndDeleteTestFolderAndWriteImage_thenExceptionIsThrown() throws IOException {
+    public void givenEmptyIdAndNonBmpData_whenCreateImageAndWriteImageRegion_thenExceptionIsThrown() {
         String fileId = "";
         ioService.createImage(fileId, 2, 2);
-        deleteTestFolder();
-        assertThrows(ChartaIOException.class, () -> ioService.writeImage(
-                new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB), fileId)
+        assertThrows(InvalidFragmentDataException.class, () -> ioService.writeImageRegion(
+                fileId, 0, 0, 2, 2, new InputStreamResource(new ByteArrayInputStream(new byte[]{1, 2, 3})))
         );
     }
 
     @Test
-    public void givenEmptyIdAndMockedLockerService_whenWriteImage_thenExceptionIsThrown() throws InterruptedException {
+    public void givenEmptyIdAndMockedLockerService_whenWriteImageRegion_thenExceptionIsThrown() throws InterruptedException {
         String fileId = "";
 
         LockerService lockerService = Mockito.mock(LockerService.class);
-        Mockito.doReturn(false).when(lockerService).acquireLock(fileId, LockType.SHARED);
-        ioService = new DefaultIOService(imageProperties, lockerService);
+        Mockito.doReturn(false).when(lockerService).acquireLock(fileId, LockType.EXCLUSIVE, 0, 1);
+        ioService = createIOService(lockerService);
 
-        assertThrows(FileIsLockedException.class, () -> ioService.writeImage(
-                new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB), fileId)
+        assertThrows(FileIsLockedException.class, () -> ioService.writeImageRegion(
+                fileId, 0, 0, 1, 1, toBmpResource(new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB)))
         );
     }
 
     @Test
-    public void givenEmptyId_whenCreateImageAndInterruptThreadAndWriteImage_thenExceptionIsThrown() {
+    public void givenEmptyId_whenCreateImageAndWriteImageRegion_thenVersionsOfItsRowsAndLevelRowsAdvance() throws IOException {
         String fileId = "";
-        ioService.createImage(fileId, 2, 2);
-        Thread.currentThread().interrupt();
-        assertThrows(ServiceIsUnavailableException.class, () -> ioService.writeImage(
-                new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB), fileId)
-        );
+        ioService.createImage(fileId, 4, BAND_HEIGHT * 4);
+        long version = ioService.readImageRegionVersion(fileId, 0, BAND_HEIGHT * 4);
+
+        BufferedImage region = new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB);
+        ioService.writeImageRegion(fileId, 0, BAND_HEIGHT * 2, 2, 2, toBmpResource(region));
+
+        assertEquals(version, ioService.readImageRegionVersion(fileId, 0, BAND_HEIGHT * 2));
+        assertTrue(ioService.readImageRegionVersion(fileId, BAND_HEIGHT * 2, 1) > version);
+        // Rows of the first level are downsampled from twice as many rows of the charta
+        assertEquals(version, ioService.readImageRegionVersion(Pyramid.getLevelId(fileId, 1), 0, BAND_HEIGHT));
+        assertTrue(ioService.readImageRegionVersion(Pyramid.getLevelId(fileId, 1), BAND_HEIGHT, 1) > version);
     }
 
     @Test
@@ -172,6 +413,75 @@ public class DefaultIOServiceTest {
         assertFalse(isFileExist(fileId));
     }
 
+    @Test
+    public void givenEmptyId_whenCreateImageAndDeleteImage_thenLevelsDoNotExist() {
+        String fileId = "";
+        ioService.createImage(fileId, 4, 4);
+        assertTrue(isFileExist(Pyramid.getLevelId(fileId, 2)));
+
+        ioService.deleteImage(fileId);
+        assertFalse(isFileExist(Pyramid.getLevelId(fileId, 1)));
+        assertFalse(isFileExist(Pyramid.getLevelId(fileId, 2)));
+    }
+
+    @Test
+    public void givenEmptyIdAndRegionOfSeveralBands_whenReadImageRegion_thenBandsAreWrittenWithoutLocks() {
+        String fileId = "";
+        ioService.createImage(fileId, 2, 2);
+        int height = 1 << 17;
+        List<Integer> lockCounts = new ArrayList<>();
+        ByteArrayOutputStream output = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] bytes, int offset, int length) {
+                lockCounts.add(((ReadWriteLockerService) lockerService).getLockCount());
+                super.write(bytes, offset, length);
+            }
+        };
+
+        ioService.readImageRegion(fileId, 0, 1 - height, 1, height, output);
+
+        assertTrue(lockCounts.size() > 1);
+        assertTrue(lockCounts.stream().allMatch(lockCount -> lockCount == 0));
+        assertEquals(BmpHeader.of(1, height).getFileSize(), output.size());
+    }
+
+    @Test
+    public void givenEmptyId_whenCreateImageAndWriteImageRegionAndDeleteImage_thenNoLockIsKept() throws IOException {
+        String fileId = "";
+        ioService.createImage(fileId, 4, 4);
+        ioService.writeImageRegion(fileId, 0, 0, 2, 2, toBmpResource(new BufferedImage(2, 2, BufferedImage.TYPE_3BYTE_BGR)));
+        ioService.deleteImage(fileId);
+        assertEquals(0, ((ReadWriteLockerService) lockerService).getLockCount());
+    }
+
+    @Test
+    public void givenEmptyId_whenCreateImageAndDeleteImageAndReadImageDimensions_thenExceptionIsThrown() {
+        String fileId = "";
+        ioService.createImage(fileId, 2, 2);
+        ioService.deleteImage(fileId);
+        assertThrows(ChartaNotFoundException.class, () -> ioService.readImageDimensions(fileId));
+        assertNull(chartaCatalog.get(fileId));
+    }
+
+    @Test
+    public void givenCreatedImageAndClosedCatalog_whenPrepareService_thenImageIsReadableWithoutDiscovery() {
+        String fileId = "";
+        ioService.createImage(fileId, 2, 2);
+        chartaCatalog.close();
+
+        chartaCatalog = new DefaultChartaCatalog(imageProperties);
+        ChartaStorage chartaStorage = Mockito.spy(new BmpChartaStorage(imageProperties, new DefaultChartaVolumes(imageProperties)));
+        WriteBackService writeBackService = new DefaultWriteBackService(imageProperties, lockerService, chartaStorage);
+        ioService = new DefaultIOService(imageProperties, lockerService, chartaStorage, chartaCatalog, writeBackService,
+                new DefaultTileCacheService(imageProperties),
+                new DefaultJournalService(imageProperties, writeBackService, chartaStorage),
+                new DefaultChartaVersionService(new LockProperties("striped", BAND_HEIGHT), imageProperties), meterRegistry);
+        ReflectionTestUtils.invokeMethod(ioService, "prepareService");
+
+        assertDoesNotThrow(() -> Mockito.verify(chartaStorage, Mockito.never()).list());
+        assertEquals(new Dimension(2, 2), ioService.readImageDimensions(fileId));
+    }
+
     @Test
     public void givenEmptyId_whenCreateImageAndDeleteTestFolderAndDeleteImage_thenExceptionIsThrown() throws IOException {
         String fileId = "";
@@ -186,7 +496,7 @@ public class DefaultIOServiceTest {
 
         LockerService lockerService = Mockito.mock(LockerService.class);
         Mockito.doReturn(false).when(lockerService).acquireLock(fileId, LockType.SHARED);
-        ioService = new DefaultIOService(imageProperties, lockerService);
+        ioService = createIOService(lockerService);
 
         assertThrows(FileIsLockedException.class, () -> ioService.deleteImage(fileId));
     }
@@ -199,23 +509,56 @@ public class DefaultIOServiceTest {
         assertThrows(ServiceIsUnavailableException.class, () -> ioService.deleteImage(fileId));
     }
 
+    private IOService createIOService(LockerService lockerService) {
+        ChartaStorage chartaStorage = new BmpChartaStorage(imageProperties, new DefaultChartaVolumes(imageProperties));
+        WriteBackService writeBackService = new DefaultWriteBackService(imageProperties, lockerService, chartaStorage);
+        return new DefaultIOService(imageProperties, lockerService, chartaStorage, chartaCatalog, writeBackService,
+                new DefaultTileCacheService(imageProperties),
+                new DefaultJournalService(imageProperties, writeBackService, chartaStorage),
+                new DefaultChartaVersionService(new LockProperties("striped", BAND_HEIGHT), imageProperties), meterRegistry);
+    }
+
+    private void writeBatchEntry(OutputStream batch, int x, int y, BufferedImage region) throws IOException {
+        ByteArrayOutputStream regionBytes = new ByteArrayOutputStream();
+        ImageIO.write(region, "bmp", regionBytes);
+
+        DataOutputStream output = new DataOutputStream(batch);
+        output.writeInt(x);
+        output.writeInt(y);
+        output.writeInt(region.getWidth());
+        output.writeInt(region.getHeight());
+        output.writeInt(regionBytes.size());
+        regionBytes.writeTo(output);
+    }
+
+    private Resource toBmpResource(BufferedImage image) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(image, "bmp", output);
+        return new InputStreamResource(new ByteArrayInputStream(output.toByteArray()));
+    }
+
+    private Path getImagePath(String fileId) {
+        return new DefaultChartaVolumes(imageProperties)
+                .locate(Pyramid.getChartaId(fileId), fileId + "." + imageProperties.getType());
+    }
+
     private boolean isFileExist(String fileId) {
-        String fileName = fileId + "." + imageProperties.getType();
-        Path pathToFile = Path.of(imageProperties.getParentPath(), fileName);
-        return Files.exists(pathToFile);
+        return Files.exists(getImagePath(fileId));
     }
 
     private boolean isImageOk(String fileId) throws IOException {
+        Path pathToFile = getImagePath(fileId);
+        return Files.exists(pathToFile) && isImageOk(Files.readAllBytes(pathToFile));
+    }
+
+    private boolean isImageOk(byte[] imageBytes) {
         // Byte form of the RGB black 2x2 bmp image
         final byte[] EXPECTED_IMAGE_BYTES = {
                 66, 77, 70, 0, 0, 0, 0, 0, 0, 0, 54, 0, 0, 0, 40, 0, 0, 0, 2, 0, 0, 0,
                 2, 0, 0, 0, 1, 0, 24, 0, 0, 0, 0, 0, 16, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
                 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
 
-        String fileName = fileId + "." + imageProperties.getType();
-        Path pathToFile = Path.of(imageProperties.getParentPath(), fileName);
-
-        return Files.exists(pathToFile) && Arrays.equals(EXPECTED_IMAGE_BYTES, Files.readAllBytes(pathToFile));
+        return Arrays.equals(EXPECTED_IMAGE_BYTES, imageBytes);
     }
 
     private void createTestFolder() {
@@ -0,0 +1,251 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.ConfigDataApplicationContextInitializer;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.util.unit.DataSize;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaFile;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaStorage;
+import ru.baby_benz.kontur.intern.chartographer.service.JournalService;
+import ru.baby_benz.kontur.intern.chartographer.service.LockerService;
+import ru.baby_benz.kontur.intern.chartographer.service.WriteBackService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(SpringExtension.class)
+@ContextConfiguration(initializers = ConfigDataApplicationContextInitializer.class)
+@EnableConfigurationProperties(ImageProperties.class)
+@ActiveProfiles("test")
+@Slf4j
+public class DefaultJournalServiceTest {
+    private static final String ID = "id";
+    private static final int WIDTH = 6;
+
+    @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
+    @Autowired
+    private ImageProperties imageProperties;
+    private final LockerService lockerService = new ReadWriteLockerService();
+    private ChartaStorage chartaStorage;
+    private WriteBackService writeBackService;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        createTestFolder();
+        chartaStorage = new BmpChartaStorage(imageProperties, new DefaultChartaVolumes(imageProperties));
+        chartaStorage.create(ID, WIDTH, 2);
+        writeBackService = createWriteBackService();
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        deleteTestFolder();
+    }
+
+    @Test
+    public void givenId_whenWriteRowAndReplay_thenRowIsReplayed() throws IOException {
+        JournalService journalService = createJournalService();
+        byte[] pixels = getPixels(2);
+
+        writeRow(journalService, 1, 1, pixels);
+
+        assertEquals(List.of(new ReplayedRow(ID, 1, 1, pixels)), replay(createJournalService()));
+    }
+
+    @Test
+    public void givenId_whenWriteRowAndDiscardAndWriteRowAndReplay_thenOnlyLaterRowIsReplayed() throws IOException {
+        JournalService journalService = createJournalService();
+        byte[] pixels = getPixels(2);
+
+        writeRow(journalService, 0, 0, getPixels(WIDTH));
+        journalService.discard(ID);
+        writeRow(journalService, 2, 1, pixels);
+
+        assertEquals(List.of(new ReplayedRow(ID, 2, 1, pixels)), replay(createJournalService()));
+    }
+
+    @Test
+    public void givenWrittenBackRow_whenCheckpoint_thenRowIsStoredAndJournalIsEmpty() throws IOException {
+        JournalService journalService = createJournalService();
+        byte[] pixels = getPixels(2);
+
+        try (ChartaFile chartaFile = journalService.wrap(ID, writeBackService.wrap(ID, chartaStorage.open(ID, true)))) {
+            chartaFile.writeRow(1, 0, ByteBuffer.wrap(pixels));
+        }
+        assertArrayEquals(new byte[pixels.length], readStoredRow(1, 0, 2));
+
+        assertTrue(journalService.checkpoint());
+
+        assertArrayEquals(pixels, readStoredRow(1, 0, 2));
+        assertTrue(listSegments().isEmpty());
+        assertTrue(replay(createJournalService()).isEmpty());
+    }
+
+    @Test
+    public void givenOpenedView_whenCheckpoint_thenItsSegmentIsKeptUntilViewIsClosed() throws IOException {
+        JournalService journalService = createJournalService();
+        byte[] pixels = getPixels(2);
+
+        try (ChartaFile chartaFile = journalService.wrap(ID, writeBackService.wrap(ID, chartaStorage.open(ID, true)))) {
+            chartaFile.writeRow(1, 0, ByteBuffer.wrap(pixels));
+            // The checkpoint doesn't wait for the view, which is opened by the same thread
+            assertFalse(journalService.checkpoint());
+            chartaFile.writeRow(1, 1, ByteBuffer.wrap(pixels));
+        }
+        assertEquals(2, listSegments().size());
+
+        assertTrue(journalService.checkpoint());
+
+        assertArrayEquals(pixels, readStoredRow(1, 0, 2));
+        assertArrayEquals(pixels, readStoredRow(1, 1, 2));
+        assertTrue(listSegments().isEmpty());
+    }
+
+    @Test
+    public void givenTornRecord_whenReplay_thenRowsBeforeItAreReplayed() throws IOException {
+        JournalService journalService = createJournalService();
+        byte[] pixels = getPixels(2);
+
+        writeRow(journalService, 0, 0, pixels);
+        writeRow(journalService, 0, 1, getPixels(WIDTH));
+        List<Path> segments = listSegments();
+        assertEquals(1, segments.size());
+        try (RandomAccessFile segment = new RandomAccessFile(segments.get(0).toFile(), "rw")) {
+            segment.setLength(segment.length() - 1);
+        }
+
+        assertEquals(List.of(new ReplayedRow(ID, 0, 0, pixels)), replay(createJournalService()));
+    }
+
+    @Test
+    public void givenDisabledJournal_whenWrap_thenSameFileIsReturned() throws IOException {
+        JournalService journalService = createJournalService(new ImageProperties.Journal(false, Duration.ofHours(1)));
+        try (ChartaFile chartaFile = chartaStorage.open(ID, false)) {
+            assertSame(chartaFile, journalService.wrap(ID, chartaFile));
+        }
+    }
+
+    private void writeRow(JournalService journalService, int x, int y, byte[] pixels) throws IOException {
+        try (ChartaFile chartaFile = journalService.wrap(ID, chartaStorage.open(ID, true))) {
+            chartaFile.writeRow(x, y, ByteBuffer.wrap(pixels));
+        }
+    }
+
+    private List<ReplayedRow> replay(JournalService journalService) throws IOException {
+        List<ReplayedRow> replayedRows = new ArrayList<>();
+        journalService.replay((id, x, y, pixels) -> replayedRows.add(new ReplayedRow(id, x, y, toArray(pixels))));
+        return replayedRows;
+    }
+
+    private JournalService createJournalService() {
+        return createJournalService(imageProperties.getJournal());
+    }
+
+    private JournalService createJournalService(ImageProperties.Journal journal) {
+        ImageProperties properties = new ImageProperties(
+                imageProperties.getType(),
+                imageProperties.getParentPath(),
+                imageProperties.getCharta(),
+                imageProperties.getFragment(),
+                imageProperties.getStorage(),
+                imageProperties.getWriteBack(),
+                imageProperties.getTileCache(),
+                imageProperties.getPyramid(),
+                journal
+        );
+        return new DefaultJournalService(properties, writeBackService, chartaStorage);
+    }
+
+    private WriteBackService createWriteBackService() {
+        ImageProperties properties = new ImageProperties(
+                imageProperties.getType(),
+                imageProperties.getParentPath(),
+                imageProperties.getCharta(),
+                imageProperties.getFragment(),
+                imageProperties.getStorage(),
+                new ImageProperties.WriteBack(DataSize.ofKilobytes(1), Duration.ofHours(1)),
+                imageProperties.getTileCache(),
+                imageProperties.getPyramid(),
+                imageProperties.getJournal()
+        );
+        return new DefaultWriteBackService(properties, lockerService, chartaStorage);
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(Path.of(imageProperties.getParentPath()))) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".journal"))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private byte[] readStoredRow(int x, int y, int width) throws IOException {
+        try (ChartaFile chartaFile = chartaStorage.open(ID, false)) {
+            return toArray(chartaFile.readRow(x, y, width));
+        }
+    }
+
+    private byte[] getPixels(int width) {
+        byte[] pixels = new byte[width * 3];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) (i + 1);
+        }
+        return pixels;
+    }
+
+    private byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private void createTestFolder() {
+        File chartasFolder = new File(imageProperties.getParentPath());
+        if (!chartasFolder.exists()) {
+            chartasFolder.mkdir();
+        }
+    }
+
+    private void deleteTestFolder() throws IOException {
+        Files.walk(Path.of(imageProperties.getParentPath()))
+                .sorted(Comparator.reverseOrder())
+                .map(Path::toFile)
+                .forEach((File fileToBeDeleted) -> {
+                    if (!fileToBeDeleted.delete()) {
+                        log.warn(
+                                "Error while deleting test folder " + imageProperties.getParentPath()
+                                        + ". Please, delete it manually"
+                        );
+                    }
+                });
+    }
+
+    @Value
+    private static class ReplayedRow {
+        String id;
+        int x;
+        int y;
+        byte[] pixels;
+    }
+}
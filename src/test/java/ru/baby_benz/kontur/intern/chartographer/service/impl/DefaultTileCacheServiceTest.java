@@ -0,0 +1,231 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.ConfigDataApplicationContextInitializer;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaFile;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaStorage;
+import ru.baby_benz.kontur.intern.chartographer.service.TileCacheService;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(SpringExtension.class)
+@ContextConfiguration(initializers = ConfigDataApplicationContextInitializer.class)
+@EnableConfigurationProperties(ImageProperties.class)
+@ActiveProfiles("test")
+@Slf4j
+public class DefaultTileCacheServiceTest {
+    private static final String ID = "id";
+
+    @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
+    @Autowired
+    private ImageProperties imageProperties;
+    private ChartaStorage chartaStorage;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        createTestFolder();
+        chartaStorage = new BmpChartaStorage(imageProperties, new DefaultChartaVolumes(imageProperties));
+        chartaStorage.create(ID, getTileSize() * 2 + 1, getTileSize() + 1);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        deleteTestFolder();
+    }
+
+    @Test
+    public void givenId_whenReadRowAcrossTilesTwice_thenTilesAreLoadedOnce() throws IOException {
+        TileCacheService tileCacheService = createTileCacheService(getTileBytes() * 3, "lru");
+        int width = getTileSize() + 1;
+        byte[] pixels = writeStoredRow(getTileSize() - 1, 1, width);
+
+        assertArrayEquals(pixels, readCachedRow(tileCacheService, getTileSize() - 1, 1, width));
+        assertArrayEquals(pixels, readCachedRow(tileCacheService, getTileSize() - 1, 1, width));
+        assertEquals(2, tileCacheService.getMissCount());
+        assertEquals(2, tileCacheService.getHitCount());
+    }
+
+    @Test
+    public void givenId_whenReadRowOfEdgeTile_thenPixelsEqual() throws IOException {
+        TileCacheService tileCacheService = createTileCacheService(getTileBytes() * 3, "lru");
+        int x = getTileSize() * 2;
+        byte[] pixels = writeStoredRow(x, getTileSize(), 1);
+
+        assertArrayEquals(pixels, readCachedRow(tileCacheService, x, getTileSize(), 1));
+    }
+
+    @Test
+    public void givenId_whenReadRowAndWriteRowAndInvalidateRegionAndReadRow_thenNewPixelsAreRead() throws IOException {
+        TileCacheService tileCacheService = createTileCacheService(getTileBytes() * 3, "lru");
+        readCachedRow(tileCacheService, 0, 0, 1);
+
+        byte[] pixels = writeStoredRow(0, 0, 1);
+        tileCacheService.invalidate(ID, 0, 0, 1, 1);
+
+        assertArrayEquals(pixels, readCachedRow(tileCacheService, 0, 0, 1));
+        assertEquals(2, tileCacheService.getMissCount());
+    }
+
+    @Test
+    public void givenId_whenReadRowAndInvalidateOtherRegionAndReadRow_thenTileIsKept() throws IOException {
+        TileCacheService tileCacheService = createTileCacheService(getTileBytes() * 3, "lru");
+        readCachedRow(tileCacheService, 0, 0, 1);
+
+        tileCacheService.invalidate(ID, getTileSize(), getTileSize(), 1, 1);
+        readCachedRow(tileCacheService, 0, 0, 1);
+
+        assertEquals(1, tileCacheService.getHitCount());
+    }
+
+    @Test
+    public void givenId_whenReadRowAndInvalidateChartaAndReadRow_thenTileIsLoadedAgain() throws IOException {
+        TileCacheService tileCacheService = createTileCacheService(getTileBytes() * 3, "lru");
+        readCachedRow(tileCacheService, 0, 0, 1);
+
+        tileCacheService.invalidate(ID);
+        readCachedRow(tileCacheService, 0, 0, 1);
+
+        assertEquals(2, tileCacheService.getMissCount());
+    }
+
+    @Test
+    public void givenId_whenReadRowAndInvalidateItsTileAndOtherCharta_thenNoChartaIsKept() throws IOException {
+        TileCacheService tileCacheService = createTileCacheService(getTileBytes() * 3, "lru");
+        readCachedRow(tileCacheService, 0, 0, 1);
+
+        tileCacheService.invalidate(ID, 0, 0, 1, 1);
+        tileCacheService.invalidate("other", 0, 0, 1, 1);
+
+        assertTrue(((Map<?, ?>) ReflectionTestUtils.getField(tileCacheService, "cachedChartas")).isEmpty());
+    }
+
+    @Test
+    public void givenLruPolicyAndCapacityOfTwoTiles_whenReadThreeTiles_thenLeastRecentlyUsedIsEvicted() throws IOException {
+        TileCacheService tileCacheService = createTileCacheService(getTileBytes() * 2, "lru");
+        readCachedRow(tileCacheService, 0, 0, 1);
+        readCachedRow(tileCacheService, getTileSize(), 0, 1);
+        readCachedRow(tileCacheService, 0, 0, 1);
+        readCachedRow(tileCacheService, 0, getTileSize(), 1);
+
+        readCachedRow(tileCacheService, 0, 0, 1);
+        readCachedRow(tileCacheService, getTileSize(), 0, 1);
+
+        assertEquals(2, tileCacheService.getHitCount());
+        assertEquals(4, tileCacheService.getMissCount());
+    }
+
+    @Test
+    public void givenLfuPolicyAndCapacityOfTwoTiles_whenReadThreeTiles_thenLeastFrequentlyUsedIsEvicted() throws IOException {
+        TileCacheService tileCacheService = createTileCacheService(getTileBytes() * 2, "lfu");
+        readCachedRow(tileCacheService, 0, 0, 1);
+        readCachedRow(tileCacheService, 0, 0, 1);
+        readCachedRow(tileCacheService, getTileSize(), 0, 1);
+        readCachedRow(tileCacheService, 0, getTileSize(), 1);
+
+        readCachedRow(tileCacheService, 0, 0, 1);
+        readCachedRow(tileCacheService, getTileSize(), 0, 1);
+
+        assertEquals(2, tileCacheService.getHitCount());
+        assertEquals(4, tileCacheService.getMissCount());
+    }
+
+    @Test
+    public void givenZeroCapacity_whenWrap_thenSameFileIsReturned() throws IOException {
+        TileCacheService tileCacheService = createTileCacheService(0, "lru");
+        try (ChartaFile chartaFile = chartaStorage.open(ID, false)) {
+            assertSame(chartaFile, tileCacheService.wrap(ID, chartaFile));
+        }
+    }
+
+    @Test
+    public void givenUnknownPolicy_whenCreateService_thenExceptionIsThrown() {
+        assertThrows(IllegalArgumentException.class, () -> createTileCacheService(getTileBytes(), "fifo"));
+    }
+
+    private TileCacheService createTileCacheService(long capacity, String evictionPolicy) {
+        ImageProperties properties = new ImageProperties(
+                imageProperties.getType(),
+                imageProperties.getParentPath(),
+                imageProperties.getCharta(),
+                imageProperties.getFragment(),
+                imageProperties.getStorage(),
+                imageProperties.getWriteBack(),
+                new ImageProperties.TileCache(DataSize.ofBytes(capacity), evictionPolicy),
+                imageProperties.getPyramid(),
+                imageProperties.getJournal()
+        );
+        return new DefaultTileCacheService(properties);
+    }
+
+    private byte[] readCachedRow(TileCacheService tileCacheService, int x, int y, int width) throws IOException {
+        try (ChartaFile chartaFile = tileCacheService.wrap(ID, chartaStorage.open(ID, false))) {
+            return toArray(chartaFile.readRow(x, y, width));
+        }
+    }
+
+    private byte[] writeStoredRow(int x, int y, int width) throws IOException {
+        byte[] pixels = new byte[width * 3];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) (i + 1);
+        }
+        try (ChartaFile chartaFile = chartaStorage.open(ID, true)) {
+            chartaFile.writeRow(x, y, ByteBuffer.wrap(pixels));
+        }
+        return pixels;
+    }
+
+    private int getTileSize() {
+        return imageProperties.getStorage().getTileSize();
+    }
+
+    private long getTileBytes() {
+        return (long) getTileSize() * getTileSize() * 3;
+    }
+
+    private byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private void createTestFolder() {
+        File chartasFolder = new File(imageProperties.getParentPath());
+        if (!chartasFolder.exists()) {
+            chartasFolder.mkdir();
+        }
+    }
+
+    private void deleteTestFolder() throws IOException {
+        Files.walk(Path.of(imageProperties.getParentPath()))
+                .sorted(Comparator.reverseOrder())
+                .map(Path::toFile)
+                .forEach((File fileToBeDeleted) -> {
+                    if (!fileToBeDeleted.delete()) {
+                        log.warn(
+                                "Error while deleting test folder " + imageProperties.getParentPath()
+                                        + ". Please, delete it manually"
+                        );
+                    }
+                });
+    }
+}
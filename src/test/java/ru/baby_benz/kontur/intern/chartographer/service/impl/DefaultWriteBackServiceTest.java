@@ -0,0 +1,246 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.ConfigDataApplicationContextInitializer;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaFile;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaStorage;
+import ru.baby_benz.kontur.intern.chartographer.service.LockerService;
+import ru.baby_benz.kontur.intern.chartographer.service.WriteBackService;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(SpringExtension.class)
+@ContextConfiguration(initializers = ConfigDataApplicationContextInitializer.class)
+@EnableConfigurationProperties(ImageProperties.class)
+@ActiveProfiles("test")
+@Slf4j
+public class DefaultWriteBackServiceTest {
+    private static final String ID = "id";
+    private static final int WIDTH = 6;
+
+    @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
+    @Autowired
+    private ImageProperties imageProperties;
+    private final LockerService lockerService = new ReadWriteLockerService();
+    private ChartaStorage chartaStorage;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        createTestFolder();
+        chartaStorage = new BmpChartaStorage(imageProperties, new DefaultChartaVolumes(imageProperties));
+        chartaStorage.create(ID, WIDTH, 2);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        deleteTestFolder();
+    }
+
+    @Test
+    public void givenId_whenWriteRowAndReadRow_thenPixelsAreReadFromMemory() throws IOException {
+        WriteBackService writeBackService = createWriteBackService(DataSize.ofKilobytes(1));
+        byte[] pixels = getPixels(2);
+
+        try (ChartaFile chartaFile = writeBackService.wrap(ID, chartaStorage.open(ID, true))) {
+            chartaFile.writeRow(1, 0, ByteBuffer.wrap(pixels));
+            assertArrayEquals(pixels, toArray(chartaFile.readRow(1, 0, 2)));
+        }
+
+        assertArrayEquals(new byte[pixels.length], readStoredRow(1, 0, 2));
+    }
+
+    @Test
+    public void givenId_whenWriteRowAndFlush_thenPixelsAreStored() throws IOException {
+        WriteBackService writeBackService = createWriteBackService(DataSize.ofKilobytes(1));
+        byte[] pixels = getPixels(2);
+
+        try (ChartaFile chartaFile = writeBackService.wrap(ID, chartaStorage.open(ID, true))) {
+            chartaFile.writeRow(1, 1, ByteBuffer.wrap(pixels));
+        }
+        writeBackService.flush();
+
+        assertArrayEquals(pixels, readStoredRow(1, 1, 2));
+    }
+
+    @Test
+    public void givenReadOnlyView_whenReadRow_thenChartaIsNotTracked() throws IOException {
+        WriteBackService writeBackService = createWriteBackService(DataSize.ofKilobytes(1));
+
+        try (ChartaFile chartaFile = writeBackService.wrap(ID, chartaStorage.open(ID, false))) {
+            chartaFile.readRow(0, 0, WIDTH);
+        }
+
+        assertTrue(getDirtyChartas(writeBackService).isEmpty());
+    }
+
+    @Test
+    public void givenId_whenWriteRowAndFlush_thenChartaIsNoLongerTracked() throws IOException {
+        WriteBackService writeBackService = createWriteBackService(DataSize.ofKilobytes(1));
+        byte[] pixels = getPixels(2);
+
+        try (ChartaFile chartaFile = writeBackService.wrap(ID, chartaStorage.open(ID, true))) {
+            chartaFile.writeRow(1, 1, ByteBuffer.wrap(pixels));
+        }
+        assertEquals(Set.of(ID), getDirtyChartas(writeBackService).keySet());
+        assertTrue(writeBackService.flush());
+
+        assertTrue(getDirtyChartas(writeBackService).isEmpty());
+        try (ChartaFile chartaFile = writeBackService.wrap(ID, chartaStorage.open(ID, true))) {
+            assertArrayEquals(pixels, toArray(chartaFile.readRow(1, 1, 2)));
+        }
+    }
+
+    @Test
+    public void givenId_whenWriteDisjointSegmentsAndFlush_thenStoredPixelsBetweenAreKept() throws IOException {
+        WriteBackService writeBackService = createWriteBackService(DataSize.ofKilobytes(1));
+        byte[] storedPixels = getPixels(WIDTH);
+        try (ChartaFile chartaFile = chartaStorage.open(ID, true)) {
+            chartaFile.writeRow(0, 0, ByteBuffer.wrap(storedPixels));
+        }
+
+        byte[] pixels = new byte[2 * 3];
+        try (ChartaFile chartaFile = writeBackService.wrap(ID, chartaStorage.open(ID, true))) {
+            chartaFile.writeRow(0, 0, ByteBuffer.wrap(pixels));
+            chartaFile.writeRow(4, 0, ByteBuffer.wrap(pixels));
+        }
+        writeBackService.flush();
+
+        byte[] expectedPixels = storedPixels.clone();
+        Arrays.fill(expectedPixels, 0, 2 * 3, (byte) 0);
+        Arrays.fill(expectedPixels, 4 * 3, WIDTH * 3, (byte) 0);
+        assertArrayEquals(expectedPixels, readStoredRow(0, 0, WIDTH));
+    }
+
+    @Test
+    public void givenId_whenWriteRowAndReadWiderRow_thenDirtyPixelsAreLaidOverStoredOnes() throws IOException {
+        WriteBackService writeBackService = createWriteBackService(DataSize.ofKilobytes(1));
+        byte[] pixels = getPixels(2);
+
+        try (ChartaFile chartaFile = writeBackService.wrap(ID, chartaStorage.open(ID, true))) {
+            chartaFile.writeRow(2, 0, ByteBuffer.wrap(pixels));
+
+            byte[] expectedPixels = new byte[WIDTH * 3];
+            System.arraycopy(pixels, 0, expectedPixels, 2 * 3, pixels.length);
+            assertArrayEquals(expectedPixels, toArray(chartaFile.readRow(0, 0, WIDTH)));
+        }
+    }
+
+    @Test
+    public void givenIdAndSpentMemoryBudget_whenWriteRow_thenPixelsAreStoredImmediately() throws IOException {
+        WriteBackService writeBackService = createWriteBackService(DataSize.ofBytes(WIDTH * 3));
+        byte[] pixels = getPixels(2);
+
+        try (ChartaFile chartaFile = writeBackService.wrap(ID, chartaStorage.open(ID, true))) {
+            chartaFile.writeRow(0, 0, ByteBuffer.wrap(pixels));
+            chartaFile.writeRow(0, 1, ByteBuffer.wrap(pixels));
+        }
+
+        assertArrayEquals(new byte[pixels.length], readStoredRow(0, 0, 2));
+        assertArrayEquals(pixels, readStoredRow(0, 1, 2));
+    }
+
+    @Test
+    public void givenId_whenWriteRowAndDiscardAndFlush_thenNothingIsStored() throws IOException {
+        WriteBackService writeBackService = createWriteBackService(DataSize.ofKilobytes(1));
+        byte[] pixels = getPixels(2);
+
+        try (ChartaFile chartaFile = writeBackService.wrap(ID, chartaStorage.open(ID, true))) {
+            chartaFile.writeRow(0, 0, ByteBuffer.wrap(pixels));
+        }
+        writeBackService.discard(ID);
+        writeBackService.flush();
+
+        assertArrayEquals(new byte[pixels.length], readStoredRow(0, 0, 2));
+    }
+
+    @Test
+    public void givenIdAndZeroMemoryBudget_whenWrap_thenSameFileIsReturned() throws IOException {
+        WriteBackService writeBackService = createWriteBackService(DataSize.ofBytes(0));
+        try (ChartaFile chartaFile = chartaStorage.open(ID, false)) {
+            assertSame(chartaFile, writeBackService.wrap(ID, chartaFile));
+        }
+    }
+
+    private WriteBackService createWriteBackService(DataSize memoryBudget) {
+        ImageProperties properties = new ImageProperties(
+                imageProperties.getType(),
+                imageProperties.getParentPath(),
+                imageProperties.getCharta(),
+                imageProperties.getFragment(),
+                imageProperties.getStorage(),
+                new ImageProperties.WriteBack(memoryBudget, Duration.ofHours(1)),
+                imageProperties.getTileCache(),
+                imageProperties.getPyramid(),
+                imageProperties.getJournal()
+        );
+        return new DefaultWriteBackService(properties, lockerService, chartaStorage);
+    }
+
+    private Map<?, ?> getDirtyChartas(WriteBackService writeBackService) {
+        return (Map<?, ?>) ReflectionTestUtils.getField(writeBackService, "dirtyChartas");
+    }
+
+    private byte[] readStoredRow(int x, int y, int width) throws IOException {
+        try (ChartaFile chartaFile = chartaStorage.open(ID, false)) {
+            return toArray(chartaFile.readRow(x, y, width));
+        }
+    }
+
+    private byte[] getPixels(int width) {
+        byte[] pixels = new byte[width * 3];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) (i + 1);
+        }
+        return pixels;
+    }
+
+    private byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private void createTestFolder() {
+        File chartasFolder = new File(imageProperties.getParentPath());
+        if (!chartasFolder.exists()) {
+            chartasFolder.mkdir();
+        }
+    }
+
+    private void deleteTestFolder() throws IOException {
+        Files.walk(Path.of(imageProperties.getParentPath()))
+                .sorted(Comparator.reverseOrder())
+                .map(Path::toFile)
+                .forEach((File fileToBeDeleted) -> {
+                    if (!fileToBeDeleted.delete()) {
+                        log.warn(
+                                "Error while deleting test folder " + imageProperties.getParentPath()
+                                        + ". Please, delete it manually"
+                        );
+                    }
+                });
+    }
+}
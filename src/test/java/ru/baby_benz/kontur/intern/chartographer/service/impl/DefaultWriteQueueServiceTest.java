@@ -0,0 +1,209 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.baby_benz.kontur.intern.chartographer.configuration.AsyncProperties;
+import ru.baby_benz.kontur.intern.chartographer.configuration.LockProperties;
+import ru.baby_benz.kontur.intern.chartographer.controller.exception.ChartaNotFoundException;
+import ru.baby_benz.kontur.intern.chartographer.controller.exception.WriteQueueIsFullException;
+import ru.baby_benz.kontur.intern.chartographer.service.WriteQueueService;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DefaultWriteQueueServiceTest {
+    private static final int WRITE_QUEUE_DEPTH = 4;
+    private static final int BAND_HEIGHT = 8;
+
+    private ExecutorService executor;
+    private WriteQueueService writeQueueService;
+
+    @BeforeEach
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        writeQueueService = new DefaultWriteQueueService(
+                new AsyncProperties(4, 0, Duration.ofSeconds(10), WRITE_QUEUE_DEPTH),
+                new LockProperties("striped", BAND_HEIGHT),
+                executor
+        );
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void givenEmptyIdAndBlockedCommand_whenSubmitCommands_thenCommandsRunInArrivalOrder()
+            throws InterruptedException, ExecutionException, TimeoutException {
+        String id = "";
+        CountDownLatch isReleased = new CountDownLatch(1);
+        List<Integer> runOrder = Collections.synchronizedList(new ArrayList<>());
+
+        writeQueueService.submit(id, () -> await(isReleased));
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (int i = 0; i < WRITE_QUEUE_DEPTH - 1; i++) {
+            int number = i;
+            results.add(writeQueueService.submit(id, () -> runOrder.add(number)));
+        }
+        isReleased.countDown();
+
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        assertEquals(List.of(0, 1, 2), runOrder);
+    }
+
+    @Test
+    public void givenEmptyIdAndFullQueue_whenSubmitCommand_thenExceptionIsThrown() {
+        String id = "";
+        CountDownLatch isReleased = new CountDownLatch(1);
+
+        for (int i = 0; i < WRITE_QUEUE_DEPTH; i++) {
+            writeQueueService.submit(id, () -> await(isReleased));
+        }
+
+        try {
+            assertThrows(WriteQueueIsFullException.class, () -> writeQueueService.submit(id, () -> {
+            }));
+        } finally {
+            isReleased.countDown();
+        }
+    }
+
+    @Test
+    public void givenDifferentIdsAndFullQueue_whenSubmitCommand_thenCommandRuns()
+            throws InterruptedException, ExecutionException, TimeoutException {
+        CountDownLatch isReleased = new CountDownLatch(1);
+
+        for (int i = 0; i < WRITE_QUEUE_DEPTH; i++) {
+            writeQueueService.submit("", () -> await(isReleased));
+        }
+
+        try {
+            assertNull(writeQueueService.submit("other", () -> {
+            }).get(10, TimeUnit.SECONDS));
+        } finally {
+            isReleased.countDown();
+        }
+    }
+
+    @Test
+    public void givenEmptyIdAndFailingCommand_whenSubmitCommands_thenFailureIsReturnedAndNextCommandRuns()
+            throws InterruptedException, ExecutionException, TimeoutException {
+        String id = "";
+
+        CompletableFuture<Void> failedResult = writeQueueService.submit(id, () -> {
+            throw new ChartaNotFoundException(id);
+        });
+        CompletableFuture<Void> result = writeQueueService.submit(id, () -> {
+        });
+
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> failedResult.get(10, TimeUnit.SECONDS));
+        assertTrue(exception.getCause() instanceof ChartaNotFoundException);
+        assertNull(result.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void givenEmptyIdAndDrainedQueue_whenSubmitCommand_thenCommandRuns()
+            throws InterruptedException, ExecutionException, TimeoutException {
+        String id = "";
+
+        for (int i = 0; i < WRITE_QUEUE_DEPTH * 2; i++) {
+            assertNull(writeQueueService.submit(id, () -> {
+            }).get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void givenEmptyIdAndBlockedCommandOnBand_whenSubmitCommandOnOtherBand_thenCommandRuns()
+            throws InterruptedException, ExecutionException, TimeoutException {
+        String id = "";
+        CountDownLatch isReleased = new CountDownLatch(1);
+
+        writeQueueService.submit(id, 0, BAND_HEIGHT, () -> await(isReleased));
+
+        try {
+            assertNull(writeQueueService.submit(id, BAND_HEIGHT, BAND_HEIGHT * 2, () -> {
+            }).get(10, TimeUnit.SECONDS));
+        } finally {
+            isReleased.countDown();
+        }
+    }
+
+    @Test
+    public void givenEmptyIdAndBlockedCommandOnBand_whenSubmitCommandsOnSameBandAndWholeCharta_thenCommandsWait()
+            throws InterruptedException, ExecutionException, TimeoutException {
+        String id = "";
+        CountDownLatch isReleased = new CountDownLatch(1);
+        List<Integer> runOrder = Collections.synchronizedList(new ArrayList<>());
+
+        writeQueueService.submit(id, 0, 1, () -> await(isReleased));
+        CompletableFuture<Void> sameBandResult = writeQueueService.submit(id, BAND_HEIGHT - 1, BAND_HEIGHT,
+                () -> runOrder.add(0));
+        CompletableFuture<Void> wholeChartaResult = writeQueueService.submit(id, () -> runOrder.add(1));
+        // Comes after the whole charta command, though its band is free of the blocked command
+        CompletableFuture<Void> otherBandResult = writeQueueService.submit(id, BAND_HEIGHT, BAND_HEIGHT + 1,
+                () -> runOrder.add(2));
+
+        assertThrows(TimeoutException.class, () -> otherBandResult.get(100, TimeUnit.MILLISECONDS));
+        isReleased.countDown();
+
+        CompletableFuture.allOf(sameBandResult, wholeChartaResult, otherBandResult).get(10, TimeUnit.SECONDS);
+        assertEquals(List.of(0, 1, 2), runOrder);
+    }
+
+    @Test
+    public void givenEmptyIdAndBlockedCommand_whenCancelQueuedCommand_thenItNeverRunsAndNextCommandRuns()
+            throws InterruptedException, ExecutionException, TimeoutException {
+        String id = "";
+        CountDownLatch isReleased = new CountDownLatch(1);
+        List<Integer> runOrder = Collections.synchronizedList(new ArrayList<>());
+
+        writeQueueService.submit(id, () -> await(isReleased));
+        CompletableFuture<Void> cancelledResult = writeQueueService.submit(id, () -> runOrder.add(0));
+        CompletableFuture<Void> result = writeQueueService.submit(id, () -> runOrder.add(1));
+
+        assertTrue(cancelledResult.cancel(false));
+        isReleased.countDown();
+
+        assertNull(result.get(10, TimeUnit.SECONDS));
+        assertEquals(List.of(1), runOrder);
+    }
+
+    @Test
+    public void givenEmptyIdAndStartedCommand_whenCancel_thenCommandIsNotCancelled()
+            throws InterruptedException, ExecutionException, TimeoutException {
+        String id = "";
+        CountDownLatch isStarted = new CountDownLatch(1);
+        CountDownLatch isReleased = new CountDownLatch(1);
+
+        CompletableFuture<Void> result = writeQueueService.submit(id, () -> {
+            isStarted.countDown();
+            await(isReleased);
+        });
+        assertTrue(isStarted.await(10, TimeUnit.SECONDS));
+
+        assertFalse(result.cancel(false));
+        isReleased.countDown();
+        assertNull(result.get(10, TimeUnit.SECONDS));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
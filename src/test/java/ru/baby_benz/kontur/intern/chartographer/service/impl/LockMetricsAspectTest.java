@@ -0,0 +1,53 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import ru.baby_benz.kontur.intern.chartographer.service.LockerService;
+
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LockMetricsAspectTest {
+    private MeterRegistry meterRegistry;
+    private LockerService lockerService;
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        AspectJProxyFactory proxyFactory = new AspectJProxyFactory(new ReadWriteLockerService());
+        proxyFactory.addAspect(new LockMetricsAspect(meterRegistry));
+        lockerService = proxyFactory.getProxy();
+    }
+
+    @Test
+    public void givenEmptyId_whenAcquireLockAndFreeLock_thenWaitAndHoldAreTimed() throws InterruptedException {
+        String id = "";
+        assertTrue(lockerService.acquireLock(id, LockType.SHARED, 0, 1));
+        lockerService.freeLock(id, LockType.SHARED, 0, 1);
+
+        assertEquals(1, getTimer("chartas.lock.wait", LockType.SHARED, "true").count());
+        assertEquals(1, meterRegistry.get("chartas.lock.hold").tag("type", "SHARED").timer().count());
+    }
+
+    @Test
+    public void givenEmptyIdLockedInSeparateThread_whenAcquireLockAndFreeLock_thenHoldIsNotTimed() throws Exception {
+        String id = "";
+        assertTrue(Executors.newSingleThreadExecutor().submit(
+                () -> lockerService.acquireLock(id, LockType.EXCLUSIVE)).get());
+
+        assertFalse(lockerService.acquireLock(id, LockType.EXCLUSIVE));
+        lockerService.freeLock(id, LockType.EXCLUSIVE);
+
+        assertEquals(1, getTimer("chartas.lock.wait", LockType.EXCLUSIVE, "false").count());
+        assertNull(meterRegistry.find("chartas.lock.hold").timer());
+    }
+
+    private Timer getTimer(String name, LockType lockType, String acquired) {
+        return meterRegistry.get(name).tag("type", lockType.name()).tag("acquired", acquired).timer();
+    }
+}
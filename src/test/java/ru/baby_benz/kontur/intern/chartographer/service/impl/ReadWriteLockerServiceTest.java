@@ -7,9 +7,6 @@ import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.EnumSource;
 import org.junit.jupiter.params.provider.MethodSource;
-import org.mockito.Mockito;
-import ru.baby_benz.kontur.intern.chartographer.controller.exception.ChartaNotFoundException;
-import ru.baby_benz.kontur.intern.chartographer.service.LockerService;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -20,38 +17,25 @@ import java.util.stream.Stream;
 import static org.junit.jupiter.api.Assertions.*;
 
 public class ReadWriteLockerServiceTest {
-    private LockerService lockerService;
+    private ReadWriteLockerService lockerService;
 
     @BeforeEach
     public void setUp() {
         lockerService = new ReadWriteLockerService();
     }
 
-    @Test
-    public void givenEmptyId_whenAddLock_thenNoExceptionIsThrown() {
-        assertDoesNotThrow(() -> lockerService.addLock(""));
-    }
-
     @ParameterizedTest
     @EnumSource(LockType.class)
-    public void givenEmptyIdAndLockType_whenAddLockAndAcquireLock_thenTrueReturned(LockType lockType) throws InterruptedException {
-        String id = Mockito.anyString();
-        lockerService.addLock(id);
+    public void givenEmptyIdAndLockType_whenAcquireLock_thenTrueReturned(LockType lockType) throws InterruptedException {
+        String id = "";
         assertTrue(lockerService.acquireLock(id, lockType));
     }
 
-    @ParameterizedTest
-    @EnumSource(LockType.class)
-    public void givenEmptyIdAndLockType_whenAcquireLock_thenExceptionIsThrown(LockType lockType) {
-        assertThrows(ChartaNotFoundException.class, () -> lockerService.acquireLock("", lockType));
-    }
-
     @Test
-    public void givenEmptyIdAndExclusiveLockType_whenAddLockAndAcquireLockInSeparateThread_thenFalseReturned() throws InterruptedException, ExecutionException {
+    public void givenEmptyIdAndExclusiveLockType_whenAcquireLockInSeparateThread_thenFalseReturned() throws InterruptedException, ExecutionException {
         String id = "";
         LockType lockType = LockType.EXCLUSIVE;
 
-        lockerService.addLock(id);
         assertTrue(lockerService.acquireLock(id, lockType));
 
         Future<Boolean> future = Executors.newSingleThreadExecutor().submit(new AcquireLockTask(id, lockType));
@@ -59,11 +43,10 @@ public class ReadWriteLockerServiceTest {
     }
 
     @Test
-    public void givenEmptyIdAndSharedLockType_whenAddLockAndAcquireLockInSeparateThread_thenTrueReturned() throws InterruptedException, ExecutionException {
+    public void givenEmptyIdAndSharedLockType_whenAcquireLockInSeparateThread_thenTrueReturned() throws InterruptedException, ExecutionException {
         String id = "";
         LockType lockType = LockType.SHARED;
 
-        lockerService.addLock(id);
         assertTrue(lockerService.acquireLock(id, lockType));
 
         Future<Boolean> future = Executors.newSingleThreadExecutor().submit(new AcquireLockTask(id, lockType));
@@ -71,10 +54,9 @@ public class ReadWriteLockerServiceTest {
     }
 
     @Test
-    public void givenEmptyIdAndExclusiveLockType_whenAddLockAndAcquireSharedLockInSeparateThread_thenFalseReturned() throws InterruptedException, ExecutionException {
+    public void givenEmptyIdAndExclusiveLockType_whenAcquireSharedLockInSeparateThread_thenFalseReturned() throws InterruptedException, ExecutionException {
         String id = "";
 
-        lockerService.addLock(id);
         assertTrue(lockerService.acquireLock(id, LockType.EXCLUSIVE));
 
         Future<Boolean> future = Executors.newSingleThreadExecutor().submit(new AcquireLockTask(id, LockType.SHARED));
@@ -82,10 +64,9 @@ public class ReadWriteLockerServiceTest {
     }
 
     @Test
-    public void givenEmptyIdAndSharedLockType_whenAddLockAndAcquireExclusiveLockInSeparateThread_thenFalseReturned() throws InterruptedException, ExecutionException {
+    public void givenEmptyIdAndSharedLockType_whenAcquireExclusiveLockInSeparateThread_thenFalseReturned() throws InterruptedException, ExecutionException {
         String id = "";
 
-        lockerService.addLock(id);
         assertTrue(lockerService.acquireLock(id, LockType.SHARED));
 
         Future<Boolean> future = Executors.newSingleThreadExecutor().submit(new AcquireLockTask(id, LockType.EXCLUSIVE));
@@ -100,29 +81,19 @@ public class ReadWriteLockerServiceTest {
 
     @ParameterizedTest
     @EnumSource(LockType.class)
-    public void givenEmptyIdAndLockType_whenAddLockAndFreeLock_thenNoExceptionIsThrown(LockType lockType) {
+    public void givenEmptyIdAndLockType_whenAcquireLockAndFreeLock_thenNoExceptionIsThrown(LockType lockType) throws InterruptedException {
         String id = "";
-        lockerService.addLock(id);
-        assertDoesNotThrow(() -> lockerService.freeLock(id, lockType));
-    }
 
-    @ParameterizedTest
-    @EnumSource(LockType.class)
-    public void givenEmptyIdAndLockType_whenAddLockAndAcquireLockAndFreeLock_thenNoExceptionIsThrown(LockType lockType) throws InterruptedException {
-        String id = "";
-
-        lockerService.addLock(id);
         assertTrue(lockerService.acquireLock(id, lockType));
         assertDoesNotThrow(() -> lockerService.freeLock(id, lockType));
     }
 
     @ParameterizedTest
     @MethodSource("lockTypeProvider")
-    public void givenEmptyIdAndLockType_whenAddLockAndAcquireLockInSeparateThreadAndFreeLock_thenTrueReturned(
+    public void givenEmptyIdAndLockType_whenAcquireLockInSeparateThreadAndFreeLock_thenTrueReturned(
             LockType mainLockType, LockType separateLockType) throws InterruptedException, ExecutionException {
-        String id = Mockito.anyString();
+        String id = "";
 
-        lockerService.addLock(id);
         assertTrue(lockerService.acquireLock(id, mainLockType));
 
         Future<Boolean> future = Executors.newSingleThreadExecutor().submit(new AcquireLockTask(id, separateLockType));
@@ -130,16 +101,40 @@ public class ReadWriteLockerServiceTest {
         assertTrue(future.get());
     }
 
-    @Test
-    public void givenEmptyId_whenRemoveLock_thenNoExceptionIsThrown() {
-        assertDoesNotThrow(() -> lockerService.removeLock(""));
+    @ParameterizedTest
+    @EnumSource(LockType.class)
+    public void givenEmptyIdAndLockType_whenAcquireLockAndFreeLock_thenNoLockIsKept(LockType lockType) throws InterruptedException {
+        String id = "";
+
+        assertTrue(lockerService.acquireLock(id, lockType));
+        assertEquals(1, lockerService.getLockCount());
+        lockerService.freeLock(id, lockType);
+        assertEquals(0, lockerService.getLockCount());
     }
 
     @Test
-    public void givenEmptyId_whenAddLockAndRemoveLock_thenNoExceptionIsThrown() {
+    public void givenEmptyIdLockedInSeparateThread_whenAcquireLockAndFreeLock_thenHeldLockIsKept() throws InterruptedException, ExecutionException {
         String id = "";
-        lockerService.addLock(id);
-        assertDoesNotThrow(() -> lockerService.removeLock(id));
+        assertTrue(Executors.newSingleThreadExecutor().submit(new AcquireLockTask(id, LockType.SHARED)).get());
+
+        // The lock isn't held by this thread, so freeing it must neither unlock nor drop it
+        lockerService.freeLock(id, LockType.SHARED);
+        assertFalse(lockerService.acquireLock(id, LockType.EXCLUSIVE));
+
+        assertEquals(1, lockerService.getLockCount());
+    }
+
+    @Test
+    public void givenManyIds_whenAcquireLocksAndFreeLocks_thenNoLockIsKept() throws InterruptedException {
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(lockerService.acquireLock(String.valueOf(i), LockType.EXCLUSIVE));
+        }
+        assertEquals(1000, lockerService.getLockCount());
+
+        for (int i = 0; i < 1000; i++) {
+            lockerService.freeLock(String.valueOf(i), LockType.EXCLUSIVE);
+        }
+        assertEquals(0, lockerService.getLockCount());
     }
 
     @RequiredArgsConstructor
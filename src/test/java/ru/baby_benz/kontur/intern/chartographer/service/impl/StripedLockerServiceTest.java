@@ -0,0 +1,155 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import lombok.RequiredArgsConstructor;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.configuration.LockProperties;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StripedLockerServiceTest {
+    private static final int BAND_HEIGHT = 8;
+
+    private StripedLockerService lockerService;
+
+    @BeforeEach
+    public void setUp() {
+        lockerService = createLockerService(1);
+    }
+
+    @ParameterizedTest
+    @EnumSource(LockType.class)
+    public void givenEmptyIdAndLockType_whenAcquireRegionLock_thenTrueReturned(LockType lockType) throws InterruptedException {
+        assertTrue(lockerService.acquireLock("", lockType, 0, 1));
+    }
+
+    @Test
+    public void givenEmptyId_whenAcquireExclusiveRegionLocksOfDifferentBands_thenTrueReturned() throws InterruptedException, ExecutionException {
+        String id = "";
+
+        assertTrue(lockerService.acquireLock(id, LockType.EXCLUSIVE, 0, BAND_HEIGHT));
+
+        Future<Boolean> future = Executors.newSingleThreadExecutor().submit(
+                new AcquireRegionLockTask(id, LockType.EXCLUSIVE, BAND_HEIGHT, BAND_HEIGHT * 2)
+        );
+        assertTrue(future.get());
+    }
+
+    @Test
+    public void givenEmptyId_whenAcquireExclusiveRegionLocksOfSameBand_thenFalseReturned() throws InterruptedException, ExecutionException {
+        String id = "";
+
+        assertTrue(lockerService.acquireLock(id, LockType.EXCLUSIVE, 0, 1));
+
+        Future<Boolean> future = Executors.newSingleThreadExecutor().submit(
+                new AcquireRegionLockTask(id, LockType.EXCLUSIVE, BAND_HEIGHT - 1, BAND_HEIGHT)
+        );
+        assertFalse(future.get());
+    }
+
+    @Test
+    public void givenEmptyId_whenAcquireSharedRegionLocksOfSameBand_thenTrueReturned() throws InterruptedException, ExecutionException {
+        String id = "";
+
+        assertTrue(lockerService.acquireLock(id, LockType.SHARED, 0, BAND_HEIGHT));
+
+        Future<Boolean> future = Executors.newSingleThreadExecutor().submit(
+                new AcquireRegionLockTask(id, LockType.SHARED, 0, BAND_HEIGHT)
+        );
+        assertTrue(future.get());
+    }
+
+    @Test
+    public void givenEmptyId_whenAcquireExclusiveLockAndEmptyRegionLock_thenFalseReturned() throws InterruptedException, ExecutionException {
+        String id = "";
+
+        assertTrue(lockerService.acquireLock(id, LockType.EXCLUSIVE));
+
+        Future<Boolean> future = Executors.newSingleThreadExecutor().submit(
+                new AcquireRegionLockTask(id, LockType.SHARED, 0, 0)
+        );
+        assertFalse(future.get());
+    }
+
+    @Test
+    public void givenEmptyId_whenAcquireAndFreeRegionLockAndAcquireExclusiveLock_thenTrueReturned() throws InterruptedException, ExecutionException {
+        String id = "";
+
+        assertTrue(lockerService.acquireLock(id, LockType.EXCLUSIVE, 0, BAND_HEIGHT * 3));
+        lockerService.freeLock(id, LockType.EXCLUSIVE, 0, BAND_HEIGHT * 3);
+
+        Future<Boolean> future = Executors.newSingleThreadExecutor().submit(() -> lockerService.acquireLock(id, LockType.EXCLUSIVE));
+        assertTrue(future.get());
+    }
+
+    @Test
+    public void givenEmptyIdAndTileSize_whenAcquireExclusiveRegionLocksOfSameTile_thenFalseReturned() throws InterruptedException, ExecutionException {
+        String id = "";
+        lockerService = createLockerService(BAND_HEIGHT * 2);
+
+        assertTrue(lockerService.acquireLock(id, LockType.EXCLUSIVE, 0, 1));
+
+        Future<Boolean> future = Executors.newSingleThreadExecutor().submit(
+                new AcquireRegionLockTask(id, LockType.EXCLUSIVE, BAND_HEIGHT, BAND_HEIGHT + 1)
+        );
+        assertFalse(future.get());
+    }
+
+    @ParameterizedTest
+    @EnumSource(LockType.class)
+    public void givenEmptyIdAndLockType_whenFreeRegionLock_thenNoExceptionIsThrown(LockType lockType) {
+        String id = "";
+        assertDoesNotThrow(() -> lockerService.freeLock(id, lockType, 0, BAND_HEIGHT));
+    }
+
+    @ParameterizedTest
+    @EnumSource(LockType.class)
+    public void givenEmptyIdAndLockType_whenAcquireRegionLockAndFreeRegionLock_thenNoLockIsKept(LockType lockType) throws InterruptedException {
+        String id = "";
+
+        assertTrue(lockerService.acquireLock(id, lockType, 0, BAND_HEIGHT * 2));
+        // The charta lock and the locks of two bands
+        assertEquals(3, lockerService.getLockCount());
+        lockerService.freeLock(id, lockType, 0, BAND_HEIGHT * 2);
+        assertEquals(0, lockerService.getLockCount());
+    }
+
+    @Test
+    public void givenEmptyIdLockedBandInSeparateThread_whenAcquireRegionLock_thenOnlyHeldLocksAreKept() throws InterruptedException, ExecutionException {
+        String id = "";
+        assertTrue(Executors.newSingleThreadExecutor().submit(
+                new AcquireRegionLockTask(id, LockType.EXCLUSIVE, BAND_HEIGHT, BAND_HEIGHT + 1)
+        ).get());
+
+        assertFalse(lockerService.acquireLock(id, LockType.EXCLUSIVE, 0, BAND_HEIGHT * 2));
+
+        assertEquals(2, lockerService.getLockCount());
+    }
+
+    private StripedLockerService createLockerService(int tileSize) {
+        ImageProperties imageProperties = new ImageProperties(null, null, null, null,
+                new ImageProperties.Storage("bmp", tileSize, "lz4", null), null, null, null, null);
+        return new StripedLockerService(new LockProperties("striped", BAND_HEIGHT), imageProperties);
+    }
+
+    @RequiredArgsConstructor
+    private class AcquireRegionLockTask implements Callable<Boolean> {
+        private final String id;
+        private final LockType lockType;
+        private final int fromRow;
+        private final int toRow;
+
+        @Override
+        public Boolean call() throws InterruptedException {
+            return lockerService.acquireLock(id, lockType, fromRow, toRow);
+        }
+    }
+}
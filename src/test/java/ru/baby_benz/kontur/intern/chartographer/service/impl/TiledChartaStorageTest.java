@@ -0,0 +1,260 @@
+package ru.baby_benz.kontur.intern.chartographer.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.ConfigDataApplicationContextInitializer;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import ru.baby_benz.kontur.intern.chartographer.configuration.ImageProperties;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaFile;
+import ru.baby_benz.kontur.intern.chartographer.service.ChartaStorage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(SpringExtension.class)
+@ContextConfiguration(initializers = ConfigDataApplicationContextInitializer.class)
+@EnableConfigurationProperties(ImageProperties.class)
+@ActiveProfiles("test")
+@Slf4j
+public class TiledChartaStorageTest {
+    @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
+    @Autowired
+    private ImageProperties imageProperties;
+    private ChartaStorage chartaStorage;
+
+    @BeforeEach
+    public void setUp() {
+        createTestFolder();
+        chartaStorage = new TiledChartaStorage(imageProperties, new DefaultChartaVolumes(imageProperties));
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        deleteTestFolder();
+    }
+
+    @Test
+    public void givenId_whenCreate_thenNoTileIsWritten() throws IOException {
+        String id = "id";
+        chartaStorage.create(id, getChartaMaxWidth(), getChartaMaxHeight());
+        assertEquals(0, Files.size(getDataPath(id)));
+    }
+
+    @Test
+    public void givenId_whenCreateAndOpen_thenDimensionsEqual() throws IOException {
+        String id = "id";
+        chartaStorage.create(id, 3, 2);
+        try (ChartaFile chartaFile = chartaStorage.open(id, false)) {
+            assertEquals(3, chartaFile.getWidth());
+            assertEquals(2, chartaFile.getHeight());
+        }
+    }
+
+    @Test
+    public void givenId_whenOpen_thenExceptionIsThrown() {
+        assertThrows(NoSuchFileException.class, () -> chartaStorage.open("id", false));
+    }
+
+    @Test
+    public void givenId_whenCreateAndReadRow_thenPixelsAreBlack() throws IOException {
+        String id = "id";
+        int width = getChartaMaxWidth();
+        chartaStorage.create(id, width, getChartaMaxHeight());
+
+        try (ChartaFile chartaFile = chartaStorage.open(id, false)) {
+            assertArrayEquals(new byte[width * 3], toArray(chartaFile.readRow(0, getChartaMaxHeight() - 1, width)));
+        }
+    }
+
+    @Test
+    public void givenId_whenWriteRowAcrossTilesAndReopenAndReadRow_thenPixelsEqual() throws IOException {
+        String id = "id";
+        int tileSize = getTileSize();
+        chartaStorage.create(id, getChartaMaxWidth(), getChartaMaxHeight());
+
+        byte[] pixels = new byte[(tileSize + 2) * 3];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) (i + 1);
+        }
+
+        try (ChartaFile chartaFile = chartaStorage.open(id, true)) {
+            chartaFile.writeRow(tileSize - 1, tileSize + 1, ByteBuffer.wrap(pixels));
+        }
+
+        try (ChartaFile chartaFile = chartaStorage.open(id, false)) {
+            assertArrayEquals(pixels, toArray(chartaFile.readRow(tileSize - 1, tileSize + 1, tileSize + 2)));
+            assertArrayEquals(new byte[3], toArray(chartaFile.readRow(tileSize - 2, tileSize + 1, 1)));
+            assertArrayEquals(new byte[pixels.length], toArray(chartaFile.readRow(tileSize - 1, tileSize, tileSize + 2)));
+        }
+    }
+
+    @Test
+    public void givenId_whenWriteRowInFirstTile_thenOnlyFirstTileIsWritten() throws IOException {
+        String id = "id";
+        int tileSize = getTileSize();
+        chartaStorage.create(id, getChartaMaxWidth(), getChartaMaxHeight());
+
+        try (ChartaFile chartaFile = chartaStorage.open(id, true)) {
+            chartaFile.writeRow(0, 0, ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        }
+
+        // The tile is encoded into the beginning of its first slot
+        long dataSize = Files.size(getDataPath(id));
+        assertTrue(dataSize > 0 && dataSize < (long) tileSize * tileSize * 3);
+    }
+
+    @Test
+    public void givenId_whenWriteBlackRow_thenNoTileIsWritten() throws IOException {
+        String id = "id";
+        chartaStorage.create(id, getChartaMaxWidth(), getChartaMaxHeight());
+
+        try (ChartaFile chartaFile = chartaStorage.open(id, true)) {
+            chartaFile.writeRow(0, 0, ByteBuffer.wrap(new byte[getTileSize() * 3]));
+        }
+
+        assertEquals(0, Files.size(getDataPath(id)));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = TileCodec.class, names = {"RAW", "RLE", "DEFLATE", "LZ4"})
+    public void givenCodec_whenWriteRowsTwiceAndReopenAndReadRows_thenPixelsEqual(TileCodec codec) throws IOException {
+        int tileSize = getTileSize();
+        int width = tileSize * 2;
+        int height = tileSize * 2;
+        Path indexPath = Path.of(imageProperties.getParentPath(), "id.tile-index");
+        Path dataPath = Path.of(imageProperties.getParentPath(), "id.tile-data");
+        TiledChartaFile.create(indexPath, dataPath, width, height, tileSize, codec);
+
+        // Runs of pixels in the first tile column and noise, which doesn't get any shorter, in the second one
+        Random random = new Random(0);
+        byte[][] rows = new byte[height][width * 3];
+        for (int y = 0; y < height; y++) {
+            for (int i = 0; i < tileSize * 3; i++) {
+                rows[y][i] = (byte) (i / 12 + y);
+            }
+            for (int i = tileSize * 3; i < width * 3; i++) {
+                rows[y][i] = (byte) random.nextInt();
+            }
+        }
+
+        // Tiles are rewritten to their other slots
+        for (int pass = 0; pass < 2; pass++) {
+            try (ChartaFile chartaFile = TiledChartaFile.open(indexPath, dataPath, true)) {
+                for (int y = 0; y < height; y++) {
+                    rows[y][0] = (byte) pass;
+                    chartaFile.writeRow(0, y, ByteBuffer.wrap(rows[y]));
+                }
+            }
+        }
+
+        try (ChartaFile chartaFile = TiledChartaFile.open(indexPath, dataPath, false)) {
+            for (int y = 0; y < height; y++) {
+                assertArrayEquals(rows[y], toArray(chartaFile.readRow(0, y, width)));
+            }
+        }
+        // Entries of the first two tiles, which follow the index header, start with the codec ids
+        byte[] entries = Files.readAllBytes(indexPath);
+        assertEquals(codec.getId(), entries[20]);
+        assertEquals(TileCodec.RAW.getId(), entries[20 + 6]);
+    }
+
+    @Test
+    public void givenId_whenWriteRowOutOfBounds_thenExceptionIsThrown() throws IOException {
+        String id = "id";
+        chartaStorage.create(id, 2, 2);
+
+        try (ChartaFile chartaFile = chartaStorage.open(id, true)) {
+            assertThrows(IllegalArgumentException.class, () -> chartaFile.writeRow(1, 0, ByteBuffer.allocate(6)));
+        }
+    }
+
+    @Test
+    public void givenId_whenCreateAndList_thenIdIsListed() throws IOException {
+        String id = "id";
+        chartaStorage.create(id, 2, 2);
+        assertEquals(List.of(id), chartaStorage.list());
+    }
+
+    @Test
+    public void givenId_whenCreateAndDelete_thenNothingIsListed() throws IOException {
+        String id = "id";
+        chartaStorage.create(id, 2, 2);
+        chartaStorage.delete(id);
+        assertTrue(chartaStorage.list().isEmpty());
+        assertFalse(Files.exists(getDataPath(id)));
+    }
+
+    @Test
+    public void givenDataFileWithoutIndex_whenMigrateChartas_thenDataFileIsDeleted() throws IOException {
+        String id = "id";
+        chartaStorage.create(id, 2, 2);
+        // Data file left by a deletion interrupted after the index had been deleted
+        Files.createFile(getDataPath(id).resolveSibling("orphan.tile-data"));
+
+        ((TiledChartaStorage) chartaStorage).migrateChartas();
+
+        assertEquals(2, new DefaultChartaVolumes(imageProperties).list().size());
+        assertTrue(Files.exists(getDataPath(id)));
+    }
+
+    private byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private Path getDataPath(String id) {
+        return new DefaultChartaVolumes(imageProperties).locate(id, id + ".tile-data");
+    }
+
+    private int getTileSize() {
+        return imageProperties.getStorage().getTileSize();
+    }
+
+    private int getChartaMaxWidth() {
+        return imageProperties.getCharta().getMaxDimensions().getWidth();
+    }
+
+    private int getChartaMaxHeight() {
+        return imageProperties.getCharta().getMaxDimensions().getHeight();
+    }
+
+    private void createTestFolder() {
+        File chartasFolder = new File(imageProperties.getParentPath());
+        if (!chartasFolder.exists()) {
+            chartasFolder.mkdir();
+        }
+    }
+
+    private void deleteTestFolder() throws IOException {
+        Files.walk(Path.of(imageProperties.getParentPath()))
+                .sorted(Comparator.reverseOrder())
+                .map(Path::toFile)
+                .forEach((File fileToBeDeleted) -> {
+                    if (!fileToBeDeleted.delete()) {
+                        log.warn(
+                                "Error while deleting test folder " + imageProperties.getParentPath()
+                                        + ". Please, delete it manually"
+                        );
+                    }
+                });
+    }
+}